@@ -0,0 +1,98 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Audio Frame Ring
+ * Hands decoded call audio from the network reader threads (TCP and UDP) to
+ * the playout thread without locks or allocation. The ring is a fixed array
+ * of frame slots: a reader claims a slot with one compare-and-set, decodes
+ * straight into it and publishes it; the playout thread drains whatever has
+ * been published once per 20 ms tick. When the playout thread falls behind
+ * and the ring is full, new frames are dropped, which the jitter buffer
+ * then conceals.
+ *
+ * Each slot carries a sequence number telling whose turn it is: equal to the
+ * write position when free for a writer, one more once published for the
+ * reader (the bounded queue design by Dmitry Vyukov).
+ */
+class AudioRing {
+    private static final int CAPACITY = 64; // Power of two, 1.28 s of a single stream
+
+    /**
+     * One decoded frame. Only the thread that claimed the slot may touch it.
+     */
+    static final class Slot {
+        private final int index;
+        int senderId;
+        int seq;
+        int samples;
+        final short[] pcm = new short[VoiceCodec.FRAME_SAMPLES];
+
+        Slot(int index) {
+            this.index = index;
+        }
+    }
+
+    /**
+     * Receives drained frames on the playout thread.
+     */
+    interface Consumer {
+        void frame(Slot slot);
+    }
+
+    private final Slot[] slots = new Slot[CAPACITY];
+    private final AtomicLongArray turns = new AtomicLongArray(CAPACITY);
+    private final AtomicLong writePosition = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private long readPosition; // Playout thread only
+
+    AudioRing() {
+        for (int i = 0; i < CAPACITY; i++) {
+            slots[i] = new Slot(i);
+            turns.set(i, i);
+        }
+    }
+
+    /**
+     * Claims the next free slot, or returns null if the ring is full. The
+     * caller fills it in and must then pass it to publish().
+     */
+    Slot claim() {
+        while (true) {
+            long position = writePosition.get();
+            int index = (int) (position & (CAPACITY - 1));
+            long turn = turns.get(index);
+            if (turn == position) {
+                if (writePosition.compareAndSet(position, position + 1))
+                    return slots[index];
+            } else if (turn < position) {
+                dropped.incrementAndGet(); // Full
+                return null;
+            }
+            // Another writer took this position first, try the next one
+        }
+    }
+
+    void publish(Slot slot) {
+        turns.lazySet(slot.index, turns.get(slot.index) + 1);
+    }
+
+    /**
+     * Passes every published frame to the consumer, in the order claimed.
+     * Playout thread only.
+     */
+    void drain(Consumer consumer) {
+        while (true) {
+            int index = (int) (readPosition & (CAPACITY - 1));
+            if (turns.get(index) != readPosition + 1)
+                return; // Not yet published
+            consumer.frame(slots[index]);
+            turns.lazySet(index, readPosition + CAPACITY);
+            readPosition++;
+        }
+    }
+
+    long dropped() {
+        return dropped.get();
+    }
+}
@@ -0,0 +1,51 @@
+import javax.swing.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Chat History Model
+ * The messages behind the chat list. The JList only creates components for
+ * the rows on screen, so what a long conversation costs is what is held
+ * here: at most MAX_MESSAGES entries. Past that the oldest EVICT_BATCH are
+ * dropped at once, together with their files on disk and thumbnails, which
+ * keeps memory flat however long the client runs.
+ *
+ * EDT only, like any Swing model.
+ */
+class ChatHistory extends AbstractListModel<ChatMessage> {
+    private static final long serialVersionUID = 1L;
+
+    static final int MAX_MESSAGES = 5000;
+    private static final int EVICT_BATCH = 500; // Evict in batches so the list relayouts rarely
+
+    private final List<ChatMessage> messages = new ArrayList<>();
+    private final ThumbnailCache thumbnails;
+
+    ChatHistory(ThumbnailCache thumbnails) {
+        this.thumbnails = thumbnails;
+    }
+
+    @Override
+    public int getSize() {
+        return messages.size();
+    }
+
+    @Override
+    public ChatMessage getElementAt(int index) {
+        return messages.get(index);
+    }
+
+    void add(ChatMessage message) {
+        messages.add(message);
+        fireIntervalAdded(this, messages.size() - 1, messages.size() - 1);
+        if (messages.size() > MAX_MESSAGES) {
+            List<ChatMessage> oldest = messages.subList(0, EVICT_BATCH);
+            for (ChatMessage evicted : oldest) {
+                thumbnails.remove(evicted);
+                evicted.discard();
+            }
+            oldest.clear();
+            fireIntervalRemoved(this, 0, EVICT_BATCH - 1);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+import java.io.File;
+
+/**
+ * Chat History Entry
+ * One row of the message list. Only text and a few numbers live in memory;
+ * images and voice notes stay on disk in {@code file} and are read back when
+ * a thumbnail has to be rebuilt or a note is played, so a long history costs
+ * a few hundred bytes per message whatever was sent.
+ */
+final class ChatMessage {
+    enum Kind {
+        TEXT, SYSTEM, IMAGE, FILE, VOICE_NOTE
+    }
+
+    final Kind kind;
+    final String sender;
+    final String text; // Message text, system notice or file name
+    final boolean isMe;
+    final long time = System.currentTimeMillis();
+    final File file; // Image, file or encoded voice note, null for text
+    final boolean ownsFile; // A temporary copy, deleted when the message leaves the history
+    final long size; // File size in bytes
+    final int thumbnailWidth, thumbnailHeight; // Images only, so rows keep their height while loading
+
+    // Row height and wrapped text for the list width they were measured at (EDT only)
+    int rowWidth = -1;
+    int rowHeight;
+    int wrapWidth = -1;
+    String[] lines;
+    int linesWidth;
+
+    private ChatMessage(Kind kind, String sender, String text, boolean isMe, File file, boolean ownsFile,
+            int thumbnailWidth, int thumbnailHeight) {
+        this.kind = kind;
+        this.sender = sender;
+        this.text = text;
+        this.isMe = isMe;
+        this.file = file;
+        this.ownsFile = ownsFile;
+        this.size = file != null ? file.length() : 0;
+        this.thumbnailWidth = thumbnailWidth;
+        this.thumbnailHeight = thumbnailHeight;
+    }
+
+    static ChatMessage text(String sender, String text, boolean isMe) {
+        return new ChatMessage(Kind.TEXT, sender, text, isMe, null, false, 0, 0);
+    }
+
+    static ChatMessage system(String text) {
+        return new ChatMessage(Kind.SYSTEM, null, text, false, null, false, 0, 0);
+    }
+
+    static ChatMessage image(String sender, File file, boolean ownsFile, boolean isMe, int width, int height) {
+        return new ChatMessage(Kind.IMAGE, sender, file.getName(), isMe, file, ownsFile, width, height);
+    }
+
+    static ChatMessage file(String sender, String name, File file, boolean ownsFile, boolean isMe) {
+        return new ChatMessage(Kind.FILE, sender, name, isMe, file, ownsFile, 0, 0);
+    }
+
+    static ChatMessage voiceNote(String sender, File note, boolean isMe) {
+        return new ChatMessage(Kind.VOICE_NOTE, sender, null, isMe, note, true, 0, 0);
+    }
+
+    /**
+     * Drops what this message keeps on disk. Called when it is evicted.
+     */
+    void discard() {
+        lines = null;
+        if (ownsFile && file != null) {
+            file.delete();
+        }
+    }
+}
@@ -5,6 +5,15 @@ import java.awt.event.*;
 import java.awt.image.BufferedImage;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -19,15 +28,17 @@ import javax.sound.sampled.*;
 public class Client extends JFrame {
     private static final String SERVER_IP = "127.0.0.1";
     private static final int SERVER_PORT = 8889;
+    private static final int HELLO_TIMEOUT_MILLIS = 5000; // Older servers never answer
+    private static final int MAX_INFLATED_SIZE = 1024 * 1024; // Only text is compressed
 
     // --- App Colors (Red Theme) ---
-    private static final Color APP_RED = new Color(220, 53, 69);
+    static final Color APP_RED = new Color(220, 53, 69);
     private static final Color APP_DARK_RED = new Color(139, 0, 0);
     private static final Color APP_LIGHT_RED = new Color(255, 218, 224);
     private static final Color APP_GRAY = new Color(240, 240, 240);
     private static final Color APP_DARK_GRAY = new Color(42, 57, 66);
-    private static final Color APP_BUBBLE_RECEIVED = Color.WHITE;
-    private static final Color APP_BUBBLE_SENT = new Color(220, 53, 69);
+    static final Color APP_BUBBLE_RECEIVED = Color.WHITE;
+    static final Color APP_BUBBLE_SENT = new Color(220, 53, 69);
 
     // --- Protocol Constants ---
     private static final byte TYPE_TEXT = 1;
@@ -39,14 +50,57 @@ public class Client extends JFrame {
     private static final byte TYPE_CALL_DECLINE = 8;
     private static final byte TYPE_CALL_END = 9;
     private static final byte TYPE_GROUP_CALL_REQUEST = 10;
+    // Types 11-13 (file transfer) are handled by FileTransfers
+    private static final byte TYPE_MEDIA_SESSION = 14;
+    private static final byte TYPE_CODECS = 15;
+    private static final byte TYPE_HISTORY = 16;
+    private static final byte TYPE_LOGIN = 17;
+    private static final int LOGIN_TOKEN_LENGTH = 16;
+    private static final byte TYPE_ROOM = 19;
 
     // --- Networking ---
     private Socket socket;
-    private DataOutputStream out;
+    private volatile DataOutputStream out;
+    // Headers of the frames we send, in the version agreed for this connection
+    private volatile Protocol.Encoder encoder;
+    private volatile boolean compression; // Long text may go out deflated
+    private final ByteBuffer header = ByteBuffer.allocate(Protocol.MAX_HEADER_SIZE); // Held by the scheduler's writer
     private DataInputStream in;
+    // --- Frame Being Read (listener thread only) ---
+    private Protocol.Decoder decoder;
+    private byte frameType;
+    private int frameSender;
+    private ByteArrayOutputStream pieces; // Of a chunked message, null between messages
+    // Call audio and signalling go out ahead of queued text and file chunks
+    private final FrameScheduler scheduler = new FrameScheduler();
+    private final FileTransfers transfers = new FileTransfers(this::sendMessage, new FileTransfers.Listener() {
+        @Override
+        public void fileReceived(int senderId, String name, byte kind, File file) {
+            mediaWorkers.execute(() -> showReceivedFile("User " + senderId, name, kind, file));
+        }
+
+        @Override
+        public void fileSent(String name, boolean delivered) {
+            SwingUtilities.invokeLater(() -> addSystemMessage(delivered ? "✓ Sent " + name : "✗ Could not send " + name));
+        }
+    });
+    // Codec for outgoing call audio and voice notes, agreed with the server
+    private volatile byte voiceCodec = VoiceCodec.PCM;
+    // Offset of the last logged message received, -1 for none yet; sent on
+    // connect so the server replays only what was missed
+    private volatile long historyOffset = -1;
+    // Name we log in with, null to stay a guest, and the user ID it was given
+    private volatile String userName;
+    private volatile int myId;
+    // Room our text goes to, joined with /join; 0 and null for everyone.
+    // The name is joined again on reconnect, which may give a new ID
+    private volatile String roomName;
+    private volatile int roomId;
+    // Call audio goes over UDP once the server has handed out a session
+    private final UdpVoice udpVoice = new UdpVoice(SERVER_IP, this::receiveVoice);
 
     // --- UI Components ---
-    private JPanel chatPanel;
+    private JList<ChatMessage> messageList;
     private JScrollPane scrollPane;
     private JTextField inputField;
     private JButton sendButton, attachButton, voiceButton, callButton, groupCallButton;
@@ -59,9 +113,29 @@ public class Client extends JFrame {
 
     // --- Audio ---
     private TargetDataLine microphone;
-    private SourceDataLine speakers;
+    // Decoded call audio on its way from the reader threads to the playout thread
+    private final AudioRing audioRing = new AudioRing();
+    private long ringDropsAtCallStart; // EDT only
+
+    // --- Off-EDT Work ---
+    // Image decoding, thumbnails and voice note decoding; the EDT only gets
+    // the finished result
+    private final ExecutorService mediaWorkers = Executors.newFixedThreadPool(2, r -> {
+        Thread t = new Thread(r, "media-worker");
+        t.setDaemon(true);
+        return t;
+    });
+    private final EdtMonitor edtMonitor = new EdtMonitor();
     private Clip ringtoneClip;
 
+    // --- Chat History ---
+    // Only visible rows get components; images are kept as cached thumbnails
+    // and their files, voice notes as files (EDT only)
+    private final ThumbnailCache thumbnails = new ThumbnailCache(mediaWorkers, () -> messageList.repaint());
+    private final ChatHistory history = new ChatHistory(thumbnails);
+    private final MessageRenderer renderer = new MessageRenderer(thumbnails);
+    private Clip noteClip;
+
     public Client() {
         super("Chat App");
         setSize(1100, 700);
@@ -112,12 +186,32 @@ public class Client extends JFrame {
         chatArea.add(chatHeader, BorderLayout.NORTH);
 
         // 2. Chat Messages Area
-        chatPanel = new JPanel();
-        chatPanel.setLayout(new BoxLayout(chatPanel, BoxLayout.Y_AXIS));
-        chatPanel.setBackground(new Color(230, 221, 212));
-        chatPanel.setBorder(new EmptyBorder(10, 10, 10, 10));
+        messageList = new JList<ChatMessage>(history) {
+            @Override
+            public boolean getScrollableTracksViewportWidth() {
+                return true; // Wrap bubbles to the window instead of scrolling sideways
+            }
+        };
+        messageList.setCellRenderer(renderer);
+        messageList.setFocusable(false);
+        messageList.setBackground(new Color(230, 221, 212));
+        messageList.setBorder(new EmptyBorder(10, 10, 10, 10));
+        messageList.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                messageClicked(e.getPoint());
+            }
+        });
+        messageList.addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent e) {
+                // Row heights depend on the width; make the list measure them again
+                messageList.setFixedCellHeight(1);
+                messageList.setFixedCellHeight(-1);
+            }
+        });
 
-        scrollPane = new JScrollPane(chatPanel);
+        scrollPane = new JScrollPane(messageList);
         scrollPane.setBorder(null);
         scrollPane.getVerticalScrollBar().setUnitIncrement(16);
         chatArea.add(scrollPane, BorderLayout.CENTER);
@@ -132,8 +226,8 @@ public class Client extends JFrame {
         leftButtons.setOpaque(false);
 
         attachButton = createButton("Attach", "🖼️", APP_GRAY);
-        attachButton.setToolTipText("Attach Image");
-        attachButton.addActionListener(e -> sendImage());
+        attachButton.setToolTipText("Attach Image or File");
+        attachButton.addActionListener(e -> sendFile());
         leftButtons.add(attachButton);
 
         inputArea.add(leftButtons, BorderLayout.WEST);
@@ -174,10 +268,23 @@ public class Client extends JFrame {
         mainPanel.add(chatArea, BorderLayout.CENTER);
         add(mainPanel);
 
+        userName = askUserName();
         connectToServer();
         setVisible(true);
     }
 
+    /**
+     * Asks for the name to log in with. Messages sent to a name while it is
+     * offline wait for it on the server. Returns null to continue as a guest.
+     */
+    private String askUserName() {
+        String name = (String) JOptionPane.showInputDialog(this, "Your name (leave empty to join as a guest):",
+                "Log In", JOptionPane.PLAIN_MESSAGE, null, null, System.getProperty("user.name"));
+        if (name == null || name.trim().isEmpty())
+            return null;
+        return name.trim();
+    }
+
     /**
      * Helper to create styled buttons with text and icons.
      */
@@ -197,9 +304,7 @@ public class Client extends JFrame {
 
     private void connectToServer() {
         try {
-            socket = new Socket(SERVER_IP, SERVER_PORT);
-            out = new DataOutputStream(socket.getOutputStream());
-            in = new DataInputStream(socket.getInputStream());
+            openConnection();
             new Thread(this::listenForMessages).start();
             addSystemMessage("✓ Connected");
         } catch (IOException e) {
@@ -207,30 +312,322 @@ public class Client extends JFrame {
         }
     }
 
+    private void openConnection() throws IOException {
+        socket = new Socket(SERVER_IP, SERVER_PORT);
+        socket.setTcpNoDelay(true);
+        // Header and body leave in one write
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 8192));
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 8192));
+        decoder = new Protocol.Decoder(Protocol.FLAG_PRIORITY | Protocol.FLAG_CHUNKED | Protocol.FLAG_COMPRESSED);
+        pieces = null;
+
+        // Agree on the protocol version before anything else is sent; other
+        // threads only see the connection once that is done
+        out.writeByte(Protocol.TYPE_HELLO);
+        out.writeInt(0);
+        out.writeInt(5);
+        out.writeByte(Protocol.MAX_VERSION);
+        out.writeInt(Protocol.SUPPORTED_CAPABILITIES);
+        out.flush();
+        Protocol.Encoder encoder = new Protocol.Encoder();
+        encoder.setVersion(awaitHello());
+        this.encoder = encoder;
+        this.out = out;
+
+        // Log in first, so everything after is sent under our own user ID
+        if (userName != null) {
+            sendMessage(TYPE_LOGIN, 0, loginRequest(userName));
+        }
+        // Plain PCM until the server has picked a codec
+        voiceCodec = VoiceCodec.PCM;
+        sendMessage(TYPE_CODECS, 0, VoiceCodec.SUPPORTED);
+        // Catch up on messages logged while we were away
+        sendMessage(TYPE_HISTORY, 0, ByteBuffer.allocate(8).putLong(historyOffset).array());
+        String room = roomName;
+        if (room != null) {
+            sendMessage(TYPE_ROOM, 0, room.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Reads frames until the connection drops, then reconnects so that
+     * unfinished file transfers can resume.
+     */
     private void listenForMessages() {
+        while (true) {
+            try {
+                readMessages();
+            } catch (IOException e) {
+                transfers.disconnected();
+                udpVoice.close();
+                SwingUtilities.invokeLater(() -> addSystemMessage("✗ Disconnected, reconnecting..."));
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+            reconnect();
+        }
+    }
+
+    /**
+     * Reads until the server answers the hello, handling whatever arrives
+     * before it. Returns the agreed version. A server that does not answer
+     * in time is an older one, and the connection stays on version 1.
+     */
+    private int awaitHello() throws IOException {
+        compression = false;
+        socket.setSoTimeout(HELLO_TIMEOUT_MILLIS);
         try {
             while (true) {
-                byte type = in.readByte();
-                int senderId = in.readInt();
-                int length = in.readInt();
-                byte[] body = new byte[length];
-                in.readFully(body);
+                byte[] body = readFrame();
+                if (frameType == Protocol.TYPE_HELLO && frameSender == 0) {
+                    int version = body.length >= 1 ? body[0] : Protocol.V1;
+                    if (version < Protocol.V1 || version > Protocol.MAX_VERSION)
+                        throw new IOException("Server picked protocol version " + version);
+                    int capabilities = body.length >= 5 ? ByteBuffer.wrap(body, 1, 4).getInt() : 0;
+                    compression = (capabilities & Protocol.CAP_COMPRESSION) != 0;
+                    decoder.setVersion(version);
+                    return version;
+                }
+                handleFrame(frameType, frameSender, body);
+            }
+        } catch (SocketTimeoutException e) {
+            return Protocol.V1;
+        } finally {
+            socket.setSoTimeout(0);
+        }
+    }
 
-                SwingUtilities.invokeLater(() -> {
+    private void readMessages() throws IOException {
+        while (true) {
+            byte[] body = readFrame();
+            try {
+                handleFrame(frameType, frameSender, body);
+            } catch (RuntimeException e) {
+                // A malformed frame from another client; the connection is fine
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Reads the next message, joining the pieces of a chunked one. Realtime
+     * frames the server sends between two pieces come out first.
+     */
+    private byte[] readFrame() throws IOException {
+        while (true) {
+            while (!decoder.put(in.readByte())) {
+                // Header bytes until the header is complete
+            }
+            if (decoder.error() != null)
+                throw new IOException("Bad frame from server: " + decoder.error());
+            byte[] body = new byte[decoder.length];
+            in.readFully(body);
+            frameType = decoder.type;
+            frameSender = decoder.peer;
+            if ((decoder.flags & Protocol.FLAG_COMPRESSED) != 0) {
+                body = Protocol.decompress(body, 0, body.length, MAX_INFLATED_SIZE);
+            }
+
+            boolean piece = (decoder.flags & Protocol.FLAG_CHUNKED) != 0;
+            if (!piece && (pieces == null || (decoder.flags & Protocol.FLAG_PRIORITY) != 0))
+                return body;
+            if (pieces == null) {
+                pieces = new ByteArrayOutputStream(body.length * 4);
+            }
+            pieces.write(body);
+            if (!piece) {
+                byte[] whole = pieces.toByteArray();
+                pieces = null;
+                return whole;
+            }
+        }
+    }
+
+    private void handleFrame(byte type, int senderId, byte[] body) throws IOException {
+        int length = body.length;
+        if (type == FileTransfers.TYPE_FILE_OFFER || type == FileTransfers.TYPE_FILE_CHUNK
+                || type == FileTransfers.TYPE_FILE_ACK) {
+            handleTransfer(type, senderId, body);
+            return;
+        }
+        // Audio goes straight to the jitter buffers, not through the UI thread
+        if (type == TYPE_VOICE_STREAM) {
+            if (length >= 4) {
+                receiveVoice(senderId, ByteBuffer.wrap(body).getInt(), body, 4, length - 4);
+            }
+            return;
+        }
+        if (type == TYPE_CODECS) {
+            if (senderId == 0 && length == 1 && VoiceCodec.decoder(body[0]) != null) {
+                voiceCodec = body[0];
+            }
+            return;
+        }
+        if (type == TYPE_HISTORY) {
+            if (senderId == 0 && length == 8) {
+                historyOffset = ByteBuffer.wrap(body).getLong();
+            }
+            return;
+        }
+        if (type == TYPE_LOGIN) {
+            if (senderId == 0) {
+                if (length == 4 + LOGIN_TOKEN_LENGTH) {
+                    // The name is ours now; later logins need the token
                     try {
-                        handleMessage(type, senderId, body);
-                    } catch (Exception e) {
-                        e.printStackTrace();
+                        LoginTokens.save(SERVER_IP + ":" + SERVER_PORT, userName, Arrays.copyOfRange(body, 4, length));
+                    } catch (IOException e) {
+                        e.printStackTrace(); // Logged in, but the name is lost after a restart
                     }
-                });
+                }
+                loggedIn(length >= 4 ? ByteBuffer.wrap(body).getInt() : 0);
+            }
+            return;
+        }
+        if (type == TYPE_ROOM) {
+            if (senderId == 0 && length >= 4) {
+                joinedRoom(ByteBuffer.wrap(body).getInt(), new String(body, 4, length - 4, StandardCharsets.UTF_8));
+            }
+            return;
+        }
+        if (type == Protocol.TYPE_PING) {
+            if (senderId == 0) {
+                sendMessage(Protocol.TYPE_PONG, 0, body); // Still here
+            }
+            return;
+        }
+        if (type == Protocol.TYPE_HELLO) {
+            // An answer after awaitHello() gave up: the server has switched
+            // versions and we have not, so start over
+            if (senderId == 0 && length >= 1 && body[0] != Protocol.V1)
+                throw new IOException("Protocol answer came too late");
+            return;
+        }
+        if (type == TYPE_MEDIA_SESSION) {
+            try {
+                if (senderId == 0)
+                    udpVoice.start(body);
+            } catch (IOException e) {
+                e.printStackTrace(); // No UDP socket, audio stays on TCP
+            }
+            return;
+        }
+
+        // Media is decoded on a worker, only UI updates go to the EDT.
+        // Our own messages come back when they are replayed from the log.
+        boolean isMe = myId != 0 && senderId == myId;
+        String userLabel = isMe ? "You" : "User " + senderId;
+        if (type == TYPE_IMAGE) {
+            mediaWorkers.execute(() -> {
+                File file = spill(body, ".img");
+                if (file != null && !showImage(userLabel, file, true, isMe)) {
+                    file.delete();
+                }
+            });
+            return;
+        }
+        if (type == TYPE_AUDIO) {
+            mediaWorkers.execute(() -> {
+                File note = spill(body, ".note");
+                if (note != null) {
+                    SwingUtilities.invokeLater(() -> addMessage(ChatMessage.voiceNote(userLabel, note, isMe)));
+                }
+            });
+            return;
+        }
+
+        SwingUtilities.invokeLater(() -> {
+            try {
+                handleMessage(type, senderId, body);
+            } catch (Exception e) {
+                e.printStackTrace();
             }
+        });
+    }
+
+    /**
+     * [Name (UTF-8)], followed by [0][Token (16)] if we have claimed the
+     * name on this server before.
+     */
+    private static byte[] loginRequest(String name) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] token = LoginTokens.load(SERVER_IP + ":" + SERVER_PORT, name);
+        if (token == null)
+            return nameBytes;
+        byte[] request = Arrays.copyOf(nameBytes, nameBytes.length + 1 + token.length);
+        System.arraycopy(token, 0, request, nameBytes.length + 1, token.length);
+        return request;
+    }
+
+    /**
+     * Login answer: our user ID, or 0 if the name was refused.
+     */
+    private void loggedIn(int id) {
+        int previous = myId;
+        String name = userName;
+        myId = id;
+        if (id == 0) {
+            userName = null; // Refused names are not retried on reconnect
+            SwingUtilities.invokeLater(() -> addSystemMessage("✗ Name " + name + " was refused (taken, or online elsewhere), joined as a guest"));
+        } else if (previous == 0) {
+            SwingUtilities.invokeLater(() -> addSystemMessage("✓ Logged in as " + name + " (User " + id + ")"));
+        }
+    }
+
+    /**
+     * Join answer: the room's ID, or 0 if the name was refused.
+     */
+    private void joinedRoom(int id, String name) throws IOException {
+        if (!name.equals(roomName)) {
+            if (id != 0) {
+                sendMessage(TYPE_ROOM, id, new byte[0]); // Left again before the answer came
+            }
+        } else if (id == 0) {
+            roomName = null;
+            SwingUtilities.invokeLater(() -> addSystemMessage("✗ Room " + name + " was refused"));
+        } else {
+            boolean rejoined = roomId != 0;
+            roomId = id;
+            if (!rejoined) {
+                SwingUtilities.invokeLater(() -> addSystemMessage("✓ Joined room " + name));
+            }
+        }
+    }
+
+    private void handleTransfer(byte type, int senderId, byte[] body) {
+        try {
+            transfers.handle(type, senderId, body);
         } catch (IOException e) {
-            addSystemMessage("✗ Disconnected");
+            e.printStackTrace(); // Malformed frame or disk error, only this transfer is affected
+        }
+    }
+
+    /**
+     * Retries with a growing delay, up to 10 seconds between attempts.
+     */
+    private void reconnect() {
+        long delay = 500;
+        while (true) {
+            try {
+                Thread.sleep(delay);
+                openConnection();
+                transfers.reconnected();
+                SwingUtilities.invokeLater(() -> addSystemMessage("✓ Reconnected"));
+                return;
+            } catch (IOException e) {
+                delay = Math.min(delay * 2, 10_000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
         }
     }
 
     private void handleMessage(byte type, int senderId, byte[] body) throws Exception {
-        String userLabel = "User " + senderId;
+        boolean isMe = myId != 0 && senderId == myId;
+        String userLabel = isMe ? "You" : "User " + senderId;
 
         switch (type) {
             case TYPE_TEXT:
@@ -238,19 +635,9 @@ public class Client extends JFrame {
                 if (senderId == 0) {
                     addSystemMessage(text);
                 } else {
-                    addMessageBubble(userLabel, text, false);
+                    addMessage(ChatMessage.text(userLabel, text, isMe));
                 }
                 break;
-            case TYPE_IMAGE:
-                BufferedImage img = ImageIO.read(new ByteArrayInputStream(body));
-                addImageBubble(userLabel, img, false);
-                break;
-            case TYPE_AUDIO:
-                addAudioBubble(userLabel, body, false);
-                break;
-            case TYPE_VOICE_STREAM:
-                playStreamedAudio(body);
-                break;
             case TYPE_CALL_REQUEST:
                 handleIncomingCall(senderId, false);
                 break;
@@ -359,11 +746,20 @@ public class Client extends JFrame {
             }
         });
 
-        new Thread(this::streamVoice).start();
+        new Thread(this::streamVoice, "voice-capture").start();
+        Thread playout = new Thread(this::playVoice, "voice-playout");
+        playout.setPriority(Thread.MAX_PRIORITY);
+        playout.start();
+        ringDropsAtCallStart = audioRing.dropped();
+        edtMonitor.start();
     }
 
     private void endCall(boolean local) {
-        isCalling.set(false);
+        if (isCalling.getAndSet(false)) {
+            edtMonitor.stop();
+            addSystemMessage("📊 UI latency during call: " + edtMonitor.summary() + ", "
+                    + (audioRing.dropped() - ringDropsAtCallStart) + " voice frames dropped by the audio ring");
+        }
         callButton.setEnabled(true);
         groupCallButton.setText("📢 Group Call");
         groupCallButton.setBackground(APP_DARK_RED);
@@ -417,157 +813,151 @@ public class Client extends JFrame {
 
     // --- UI Helpers ---
 
-    private void addMessageBubble(String sender, String text, boolean isMe) {
-        JPanel container = new JPanel(new FlowLayout(isMe ? FlowLayout.RIGHT : FlowLayout.LEFT, 5, 5));
-        container.setOpaque(false);
-
-        JPanel bubble = new JPanel(new BorderLayout());
-        bubble.setBackground(isMe ? APP_BUBBLE_SENT : APP_BUBBLE_RECEIVED);
-        bubble.setBorder(new CompoundBorder(
-                new LineBorder(isMe ? APP_BUBBLE_SENT : APP_BUBBLE_RECEIVED, 1, true),
-                new EmptyBorder(8, 12, 8, 12)));
-        bubble.setMaximumSize(new Dimension(400, Integer.MAX_VALUE));
+    /**
+     * Appends a message to the history and scrolls to it. The list only
+     * creates components for the rows on screen, see MessageRenderer.
+     */
+    private void addMessage(ChatMessage message) {
+        history.add(message);
+        SwingUtilities.invokeLater(() -> messageList.ensureIndexIsVisible(history.getSize() - 1));
+    }
 
-        JPanel content = new JPanel(new BorderLayout());
-        content.setOpaque(false);
+    private void addSystemMessage(String text) {
+        addMessage(ChatMessage.system(text));
+    }
 
-        if (!isMe) {
-            JLabel nameLabel = new JLabel(sender);
-            nameLabel.setFont(new Font(Font.DIALOG, Font.BOLD, 11));
-            nameLabel.setForeground(APP_RED);
-            content.add(nameLabel, BorderLayout.NORTH);
+    /**
+     * Decodes an image on a media worker and adds it to the history. Only
+     * the thumbnail is kept; the full-size image is dropped here and read
+     * from the file again if the thumbnail cache has to rebuild it. Returns
+     * false if the file is not an image.
+     */
+    private boolean showImage(String sender, File file, boolean ownsFile, boolean isMe) {
+        BufferedImage img = null;
+        try {
+            img = ImageIO.read(file);
+        } catch (IOException e) {
+            // Not an image
         }
-
-        JTextArea textArea = new JTextArea(text);
-        textArea.setWrapStyleWord(true);
-        textArea.setLineWrap(true);
-        textArea.setEditable(false);
-        textArea.setFont(new Font("Segoe UI", Font.PLAIN, 14));
-        textArea.setBackground(isMe ? APP_BUBBLE_SENT : APP_BUBBLE_RECEIVED);
-        textArea.setForeground(isMe ? Color.WHITE : Color.BLACK);
-        textArea.setBorder(null);
-        content.add(textArea, BorderLayout.CENTER);
-
-        JLabel timeLabel = new JLabel(new SimpleDateFormat("HH:mm").format(new Date()));
-        timeLabel.setFont(new Font("Segoe UI", Font.PLAIN, 10));
-        timeLabel.setForeground(isMe ? new Color(240, 240, 240) : Color.GRAY);
-        timeLabel.setHorizontalAlignment(SwingConstants.RIGHT);
-        content.add(timeLabel, BorderLayout.SOUTH);
-
-        bubble.add(content);
-        container.add(bubble);
-
-        chatPanel.add(container);
-        scrollToBottom();
+        if (img == null)
+            return false;
+        Icon thumbnail = ThumbnailCache.scale(img);
+        ChatMessage message = ChatMessage.image(sender, file, ownsFile, isMe,
+                thumbnail.getIconWidth(), thumbnail.getIconHeight());
+        SwingUtilities.invokeLater(() -> {
+            thumbnails.put(message, thumbnail);
+            addMessage(message);
+        });
+        return true;
     }
 
-    private void addImageBubble(String sender, BufferedImage img, boolean isMe) {
-        JPanel container = new JPanel(new FlowLayout(isMe ? FlowLayout.RIGHT : FlowLayout.LEFT, 5, 5));
-        container.setOpaque(false);
-
-        int maxWidth = 250;
-        int newHeight = (img.getHeight() * maxWidth) / img.getWidth();
-        Image scaled = img.getScaledInstance(maxWidth, newHeight, Image.SCALE_SMOOTH);
-
-        JPanel bubble = new JPanel(new BorderLayout());
-        bubble.setBackground(isMe ? APP_BUBBLE_SENT : APP_BUBBLE_RECEIVED);
-        bubble.setBorder(new EmptyBorder(5, 5, 5, 5));
+    /**
+     * Runs on a media worker: images are decoded and scaled here, the EDT
+     * only adds the message.
+     */
+    private void showReceivedFile(String sender, String name, byte kind, File file) {
+        if (kind == FileTransfers.KIND_IMAGE && showImage(sender, file, true, false))
+            return;
+        SwingUtilities.invokeLater(() -> addMessage(ChatMessage.file(sender, name, file, true, false)));
+    }
 
-        if (!isMe) {
-            JLabel nameLabel = new JLabel("👤 " + sender);
-            nameLabel.setFont(new Font(Font.DIALOG, Font.BOLD, 11));
-            nameLabel.setForeground(APP_RED);
-            nameLabel.setBorder(new EmptyBorder(5, 5, 2, 5));
-            bubble.add(nameLabel, BorderLayout.NORTH);
+    /**
+     * Writes received media to a temporary file, so the history holds a
+     * path rather than the bytes. Media worker only.
+     */
+    private static File spill(byte[] data, String suffix) {
+        try {
+            File file = File.createTempFile("chat-", suffix);
+            file.deleteOnExit();
+            Files.write(file.toPath(), data);
+            return file;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
         }
-
-        JLabel imgLabel = new JLabel(new ImageIcon(scaled));
-        bubble.add(imgLabel, BorderLayout.CENTER);
-
-        container.add(bubble);
-        chatPanel.add(container);
-        scrollToBottom();
     }
 
-    private void addAudioBubble(String sender, byte[] audioData, boolean isMe) {
-        JPanel container = new JPanel(new FlowLayout(isMe ? FlowLayout.RIGHT : FlowLayout.LEFT, 5, 5));
-        container.setOpaque(false);
-
-        JPanel bubble = new JPanel(new BorderLayout());
-        bubble.setBackground(isMe ? APP_BUBBLE_SENT : APP_BUBBLE_RECEIVED);
-        bubble.setBorder(new EmptyBorder(8, 12, 8, 12));
-
-        if (!isMe) {
-            JLabel nameLabel = new JLabel("👤 " + sender);
-            nameLabel.setFont(new Font(Font.DIALOG, Font.BOLD, 11));
-            nameLabel.setForeground(APP_RED);
-            bubble.add(nameLabel, BorderLayout.NORTH);
+    /**
+     * Bubble buttons are only painted by the renderer, so clicks are
+     * handled here for the row under the mouse.
+     */
+    private void messageClicked(Point point) {
+        int index = messageList.locationToIndex(point);
+        if (index < 0 || !messageList.getCellBounds(index, index).contains(point))
+            return;
+        ChatMessage message = history.getElementAt(index);
+        if (message.kind == ChatMessage.Kind.VOICE_NOTE) {
+            toggleNote(message);
+        } else if (message.kind == ChatMessage.Kind.FILE && !message.isMe) {
+            saveFile(message);
         }
+    }
 
-        JButton playBtn = new JButton("▶ Voice Message");
-        playBtn.setFont(new Font(Font.DIALOG, Font.PLAIN, 12));
-        playBtn.setBackground(isMe ? APP_BUBBLE_SENT : APP_BUBBLE_RECEIVED);
-        playBtn.setForeground(isMe ? Color.WHITE : APP_RED);
-        playBtn.setFocusPainted(false);
-        playBtn.setBorderPainted(false);
-
-        playBtn.addActionListener(new ActionListener() {
-            Clip clip;
+    private void saveFile(ChatMessage message) {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setSelectedFile(new File(message.text));
+        if (chooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+            try {
+                Files.copy(message.file.toPath(), chooser.getSelectedFile().toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
 
-            @Override
-            public void actionPerformed(ActionEvent e) {
-                if (clip != null && clip.isRunning()) {
-                    clip.stop();
-                    clip.close();
-                    playBtn.setText("▶ Voice Message");
-                } else {
-                    try {
-                        AudioFormat format = new AudioFormat(16000, 16, 1, true, true);
-                        clip = AudioSystem.getClip();
-                        clip.open(format, audioData, 0, audioData.length);
-                        clip.addLineListener(event -> {
-                            if (event.getType() == LineEvent.Type.STOP) {
-                                clip.close();
-                                playBtn.setText("▶ Voice Message");
-                            }
+    /**
+     * Plays a voice note, or stops it if it is the one playing. The note is
+     * read back and decoded on a media worker.
+     */
+    private void toggleNote(ChatMessage message) {
+        boolean wasPlaying = renderer.playing() == message;
+        stopNote();
+        if (wasPlaying)
+            return;
+        renderer.setPlaying(message);
+        messageList.repaint();
+        mediaWorkers.execute(() -> {
+            try {
+                byte[] pcm = decodeNote(Files.readAllBytes(message.file.toPath()));
+                AudioFormat format = new AudioFormat(16000, 16, 1, true, true);
+                Clip clip = AudioSystem.getClip();
+                clip.open(format, pcm, 0, pcm.length);
+                clip.addLineListener(event -> {
+                    if (event.getType() == LineEvent.Type.STOP) {
+                        SwingUtilities.invokeLater(() -> {
+                            if (noteClip == clip)
+                                stopNote();
                         });
-                        clip.start();
-                        playBtn.setText("⏹ Stop");
-                    } catch (Exception ex) {
-                        ex.printStackTrace();
                     }
-                }
+                });
+                SwingUtilities.invokeLater(() -> {
+                    if (renderer.playing() != message) {
+                        clip.close(); // Stopped while it was being decoded
+                        return;
+                    }
+                    noteClip = clip;
+                    clip.start();
+                });
+            } catch (Exception ex) {
+                ex.printStackTrace();
+                SwingUtilities.invokeLater(() -> {
+                    if (renderer.playing() == message)
+                        stopNote();
+                });
             }
         });
-
-        bubble.add(playBtn, BorderLayout.CENTER);
-        container.add(bubble);
-        chatPanel.add(container);
-        scrollToBottom();
-    }
-
-    private void addSystemMessage(String text) {
-        JPanel container = new JPanel(new FlowLayout(FlowLayout.CENTER));
-        container.setOpaque(false);
-
-        JLabel label = new JLabel("ℹ️ " + text);
-        label.setFont(new Font(Font.DIALOG, Font.ITALIC, 11));
-        label.setForeground(new Color(134, 150, 160));
-        label.setBackground(new Color(255, 255, 255, 200));
-        label.setOpaque(true);
-        label.setBorder(new EmptyBorder(4, 10, 4, 10));
-
-        container.add(label);
-        chatPanel.add(container);
-        scrollToBottom();
     }
 
-    private void scrollToBottom() {
-        chatPanel.revalidate();
-        SwingUtilities.invokeLater(() -> {
-            JScrollBar vertical = scrollPane.getVerticalScrollBar();
-            vertical.setValue(vertical.getMaximum());
-        });
+    private void stopNote() {
+        Clip clip = noteClip;
+        noteClip = null;
+        if (clip != null) {
+            clip.stop();
+            clip.close();
+        }
+        renderer.setPlaying(null);
+        messageList.repaint();
     }
 
     // --- Actions ---
@@ -577,36 +967,94 @@ public class Client extends JFrame {
         if (text.isEmpty())
             return;
         try {
-            sendMessage(TYPE_TEXT, 0, text.getBytes("UTF-8"));
-            addMessageBubble("You", text, true);
+            if (text.startsWith("/join ") || text.equals("/leave")) {
+                changeRoom(text.equals("/leave") ? null : text.substring("/join ".length()).trim());
+                inputField.setText("");
+                return;
+            }
+            if (roomName != null && roomId == 0) {
+                addSystemMessage("Still joining room " + roomName);
+                return;
+            }
+            sendMessage(TYPE_TEXT, roomId, text.getBytes("UTF-8"));
+            addMessage(ChatMessage.text("You", text, true));
             inputField.setText("");
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    private void sendImage() {
+    /**
+     * Leaves the current room, if any, and joins the named one; null goes
+     * back to everyone. Text goes to the new room once the server has
+     * answered with its ID.
+     */
+    private void changeRoom(String name) throws IOException {
+        if (roomId != 0) {
+            sendMessage(TYPE_ROOM, roomId, new byte[0]);
+            addSystemMessage("Left room " + roomName);
+        }
+        roomId = 0;
+        roomName = name;
+        if (name != null) {
+            sendMessage(TYPE_ROOM, 0, name.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Sends the chosen file in chunks through FileTransfers. Images are shown
+     * inline on both sides, anything else as a file bubble.
+     */
+    private void sendFile() {
         JFileChooser chooser = new JFileChooser();
         if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
-            try {
-                BufferedImage img = ImageIO.read(chooser.getSelectedFile());
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                ImageIO.write(img, "png", baos);
-                sendMessage(TYPE_IMAGE, 0, baos.toByteArray());
-                addImageBubble("You", img, true);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            File file = chooser.getSelectedFile();
+            mediaWorkers.execute(() -> {
+                if (showImage("You", file, false, true)) {
+                    transfers.send(file, FileTransfers.KIND_IMAGE, 0);
+                } else {
+                    SwingUtilities.invokeLater(
+                            () -> addMessage(ChatMessage.file("You", file.getName(), file, false, true)));
+                    transfers.send(file, FileTransfers.KIND_FILE, 0);
+                }
+            });
         }
     }
 
     private void sendMessage(byte type, int targetId, byte[] body) throws IOException {
-        synchronized (out) {
-            out.writeByte(type);
-            out.writeInt(targetId);
-            out.writeInt(body.length);
-            out.write(body);
-            out.flush();
+        sendMessage(type, targetId, body, 0, body.length);
+    }
+
+    /**
+     * Sends part of a buffer as the frame body, so callers can reuse one
+     * buffer instead of copying each chunk into a new array.
+     */
+    private void sendMessage(byte type, int targetId, byte[] body, int offset, int length) throws IOException {
+        int flags = 0;
+        if (compression && Protocol.isCompressible(type, length)) {
+            byte[] compressed = Protocol.compress(body, offset, length);
+            if (compressed != null) {
+                flags = Protocol.FLAG_COMPRESSED;
+                body = compressed;
+                offset = 0;
+                length = compressed.length;
+            }
+        }
+        int priority = FrameScheduler.priorityOf(type);
+        scheduler.acquire(priority);
+        try {
+            DataOutputStream out = this.out;
+            header.clear();
+            encoder.encode(header, type, flags, targetId, length);
+            out.write(header.array(), 0, header.position());
+            out.write(body, offset, length);
+            // A thread waiting to write next flushes for both, so a burst
+            // leaves in as few segments as possible
+            if (!scheduler.hasWaiting()) {
+                out.flush();
+            }
+        } finally {
+            scheduler.release(priority);
         }
     }
 
@@ -632,9 +1080,12 @@ public class Client extends JFrame {
                 }
                 line.stop();
                 line.close();
-                byte[] audioData = baos.toByteArray();
-                sendMessage(TYPE_AUDIO, 0, audioData);
-                SwingUtilities.invokeLater(() -> addAudioBubble("You", audioData, true));
+                byte[] note = encodeNote(baos.toByteArray());
+                sendMessage(TYPE_AUDIO, 0, note);
+                File file = spill(note, ".note");
+                if (file != null) {
+                    SwingUtilities.invokeLater(() -> addMessage(ChatMessage.voiceNote("You", file, true)));
+                }
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -646,8 +1097,51 @@ public class Client extends JFrame {
         voiceButton.setBackground(APP_GRAY);
     }
 
+    /**
+     * Compresses a recording as [Codec (1)] followed by its 20 ms frames.
+     */
+    private byte[] encodeNote(byte[] pcm) {
+        VoiceCodec codec = VoiceCodec.encoder(voiceCodec);
+        int samples = pcm.length / 2;
+        int frames = (samples + VoiceCodec.FRAME_SAMPLES - 1) / VoiceCodec.FRAME_SAMPLES;
+        byte[] note = new byte[1 + frames * codec.frameBytes()];
+        note[0] = codec.id();
+        short[] frame = new short[VoiceCodec.FRAME_SAMPLES];
+        int length = 1;
+        for (int start = 0; start < samples; start += VoiceCodec.FRAME_SAMPLES) {
+            int count = Math.min(VoiceCodec.FRAME_SAMPLES, samples - start);
+            VoiceCodec.toSamples(pcm, 2 * start, count, frame);
+            length += codec.encode(frame, count, note, length);
+        }
+        return Arrays.copyOf(note, length);
+    }
+
+    /**
+     * Expands a received voice note back to PCM for playback.
+     */
+    private byte[] decodeNote(byte[] note) {
+        VoiceCodec codec = note.length > 0 ? VoiceCodec.decoder(note[0]) : null;
+        if (codec == null)
+            return new byte[0];
+        ByteArrayOutputStream pcm = new ByteArrayOutputStream(note.length * 4);
+        short[] frame = new short[VoiceCodec.FRAME_SAMPLES];
+        byte[] bytes = new byte[2 * VoiceCodec.FRAME_SAMPLES];
+        for (int offset = 1; offset < note.length; offset += codec.frameBytes()) {
+            int samples = codec.decode(note, offset, Math.min(codec.frameBytes(), note.length - offset), frame);
+            VoiceCodec.toBytes(frame, samples, bytes, 0);
+            pcm.write(bytes, 0, 2 * samples);
+        }
+        return pcm.toByteArray();
+    }
+
     // --- Voice Call Streaming ---
 
+    /**
+     * Captures the microphone in 20 ms frames, each encoded on its own and
+     * numbered so the receiving jitter buffers can restore order and spot
+     * losses. [Seq (4)] [Codec (1)] [Audio] over TCP, or the UdpVoice packet
+     * once UDP is ready.
+     */
     private void streamVoice() {
         try {
             AudioFormat format = new AudioFormat(16000, 16, 1, true, true);
@@ -655,14 +1149,33 @@ public class Client extends JFrame {
             line.open(format);
             line.start();
 
-            byte[] buffer = new byte[4096];
+            byte[] pcm = new byte[2 * VoiceCodec.FRAME_SAMPLES];
+            short[] samples = new short[VoiceCodec.FRAME_SAMPLES];
+            // The payload sits after room for the UDP header, the TCP body starts at the sequence number
+            byte[] packet = new byte[UdpVoice.HEADER_SIZE + 1 + 2 * VoiceCodec.FRAME_SAMPLES];
+            int payload = UdpVoice.HEADER_SIZE;
+            VoiceCodec codec = null;
+            int seq = 0;
             while (isCalling.get()) {
-                int count = line.read(buffer, 0, buffer.length);
-                if (count > 0) {
-                    byte[] chunk = new byte[count];
-                    System.arraycopy(buffer, 0, chunk, 0, count);
-                    sendMessage(TYPE_VOICE_STREAM, currentCallTarget, chunk);
+                int count = line.read(pcm, 0, pcm.length);
+                if (count <= 0)
+                    continue;
+                if (codec == null || codec.id() != voiceCodec) {
+                    codec = VoiceCodec.encoder(voiceCodec);
                 }
+                VoiceCodec.toSamples(pcm, 0, count / 2, samples);
+                packet[payload] = codec.id();
+                int length = 1 + codec.encode(samples, count / 2, packet, payload + 1);
+
+                // The relay only takes UDP audio for the call its session
+                // was issued for; group audio joins the mix over TCP
+                if (currentCallTarget != 0 && udpVoice.isReady()) {
+                    udpVoice.send(packet, currentCallTarget, seq, length);
+                } else {
+                    ByteBuffer.wrap(packet, payload - 4, 4).putInt(seq);
+                    sendMessage(TYPE_VOICE_STREAM, currentCallTarget, packet, payload - 4, 4 + length);
+                }
+                seq++;
             }
             line.stop();
             line.close();
@@ -671,18 +1184,80 @@ public class Client extends JFrame {
         }
     }
 
-    private void playStreamedAudio(byte[] chunk) {
+    /**
+     * Decodes a frame, [Codec (1)] [Audio], straight into the audio ring.
+     * Called on the TCP and UDP reader threads; allocates nothing.
+     */
+    private void receiveVoice(int senderId, int seq, byte[] data, int offset, int length) {
+        VoiceCodec codec = length > 0 ? VoiceCodec.decoder(data[offset]) : null;
+        if (!isCalling.get() || codec == null)
+            return;
+        AudioRing.Slot slot = audioRing.claim();
+        if (slot == null)
+            return; // Playout is behind, the jitter buffer conceals the gap
         try {
-            if (speakers == null || !speakers.isOpen()) {
-                AudioFormat format = new AudioFormat(16000, 16, 1, true, true);
-                speakers = AudioSystem.getSourceDataLine(format);
-                speakers.open(format);
-                speakers.start();
+            slot.senderId = senderId;
+            slot.seq = seq;
+            slot.samples = 0;
+            slot.samples = codec.decode(data, offset + 1, length - 1, slot.pcm);
+        } finally {
+            audioRing.publish(slot);
+        }
+    }
+
+    /**
+     * The call's real-time audio thread. Each 20 ms it moves new frames from
+     * the audio ring into per-caller jitter buffers, which only this thread
+     * touches, and mixes one frame from each. The speaker line only holds a
+     * few frames, so its blocking write paces the loop and keeps playout
+     * delay low.
+     */
+    private void playVoice() {
+        Map<Integer, JitterBuffer> streams = new HashMap<>(); // By sender
+        AudioRing.Consumer toJitterBuffers = slot -> {
+            if (slot.samples > 0) {
+                streams.computeIfAbsent(slot.senderId, id -> new JitterBuffer()).put(slot.seq, slot.pcm, slot.samples);
             }
-            speakers.write(chunk, 0, chunk.length);
+        };
+        audioRing.drain(slot -> { }); // Leftovers from the last call
+        try {
+            AudioFormat format = new AudioFormat(16000, 16, 1, true, true);
+            SourceDataLine speakers = AudioSystem.getSourceDataLine(format);
+            speakers.open(format, 4 * 2 * VoiceCodec.FRAME_SAMPLES);
+            speakers.start();
+
+            short[] frame = new short[VoiceCodec.FRAME_SAMPLES];
+            short[] mixed = new short[VoiceCodec.FRAME_SAMPLES];
+            int[] mix = new int[VoiceCodec.FRAME_SAMPLES];
+            byte[] output = new byte[2 * VoiceCodec.FRAME_SAMPLES];
+            while (isCalling.get()) {
+                audioRing.drain(toJitterBuffers);
+                Arrays.fill(mix, 0);
+                for (JitterBuffer stream : streams.values()) {
+                    if (stream.next(frame)) {
+                        for (int i = 0; i < mix.length; i++) {
+                            mix[i] += frame[i];
+                        }
+                    }
+                }
+                for (int i = 0; i < mix.length; i++) {
+                    mixed[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, mix[i]));
+                }
+                VoiceCodec.toBytes(mixed, mixed.length, output, 0);
+                speakers.write(output, 0, output.length);
+            }
+            speakers.stop();
+            speakers.close();
         } catch (Exception e) {
             e.printStackTrace();
         }
+        // Follows the UI latency endCall() reports
+        StringBuilder report = new StringBuilder();
+        streams.forEach((id, stream) -> report.append(report.length() == 0 ? "" : "; ")
+                .append("User ").append(id).append(": ").append(stream.stats()));
+        if (report.length() > 0) {
+            SwingUtilities.invokeLater(() -> addSystemMessage("📊 Call audio: " + report));
+        }
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,77 @@
+import javax.swing.*;
+import java.util.Arrays;
+
+/**
+ * Event Dispatch Thread Monitor
+ * Measures how long the Swing event thread takes to get to new work while
+ * it is running, e.g. during a call. Every 50 ms a probe is posted with
+ * invokeLater and the delay until it runs is recorded. A UI that stays
+ * responsive shows delays well under a frame (16 ms).
+ */
+class EdtMonitor {
+    private static final long PROBE_INTERVAL_MS = 50;
+    private static final int MAX_SAMPLES = 1 << 14; // Kept for percentiles, about 13 minutes
+
+    private final long[] samples = new long[MAX_SAMPLES]; // Nanoseconds
+    private int count; // EDT only
+    private long max;
+    private long total;
+    private volatile Thread prober;
+
+    /**
+     * Starts a new measurement, discarding the previous one.
+     */
+    synchronized void start() {
+        stop();
+        SwingUtilities.invokeLater(() -> {
+            count = 0;
+            max = 0;
+            total = 0;
+        });
+        Thread thread = new Thread(this::probe, "edt-monitor");
+        thread.setDaemon(true);
+        prober = thread;
+        thread.start();
+    }
+
+    synchronized void stop() {
+        Thread thread = prober;
+        prober = null;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private void probe() {
+        Thread self = Thread.currentThread();
+        while (prober == self) {
+            long posted = System.nanoTime();
+            SwingUtilities.invokeLater(() -> record(System.nanoTime() - posted));
+            try {
+                Thread.sleep(PROBE_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void record(long nanos) {
+        samples[count % MAX_SAMPLES] = nanos;
+        count++;
+        total += nanos;
+        max = Math.max(max, nanos);
+    }
+
+    /**
+     * Summary of the measurement so far. Call on the EDT.
+     */
+    String summary() {
+        if (count == 0)
+            return "no samples";
+        long[] sorted = Arrays.copyOf(samples, Math.min(count, MAX_SAMPLES));
+        Arrays.sort(sorted);
+        long p99 = sorted[Math.max(0, (int) Math.ceil(0.99 * sorted.length) - 1)];
+        return String.format("avg %.1f ms, p99 %.1f ms, max %.1f ms over %d samples",
+                total / 1e6 / count, p99 / 1e6, max / 1e6, count);
+    }
+}
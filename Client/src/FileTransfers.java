@@ -0,0 +1,493 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chunked, Resumable File Transfer
+ * Attachments are split into CHUNK_SIZE pieces sent as separate frames, so
+ * text and voice can go out between them instead of waiting for the whole
+ * upload. Receivers acknowledge progress as chunks arrive, and a transfer
+ * cut short by a dropped connection picks up from the last acknowledged
+ * chunk once either side has reconnected.
+ *
+ * [FILE_OFFER] [TransferID (8)] [Size (8)] [ChunkSize (4)] [Kind (1)] [Name (UTF)]
+ * [FILE_CHUNK] [TransferID (8)] [Index (4)] [Data]
+ * [FILE_ACK]   [TransferID (8)] [ReceiverKey (8)] [Next Missing Chunk (4)] [Resume (1)]
+ *
+ * Transfers and receivers are identified by random keys rather than by
+ * client ID, since a client is given a new ID every time it connects.
+ *
+ * Both sides give up on a transfer after a timeout of silence while
+ * connected: the sender on a receiver that stopped acking, the receiver on
+ * a sender that stopped sending, whose part file is then deleted.
+ */
+class FileTransfers {
+    static final byte TYPE_FILE_OFFER = 11;
+    static final byte TYPE_FILE_CHUNK = 12;
+    static final byte TYPE_FILE_ACK = 13;
+
+    static final byte KIND_FILE = 0;
+    static final byte KIND_IMAGE = 1;
+
+    private static final int CHUNK_SIZE = 32 * 1024;
+    static final long MAX_FILE_SIZE = 1L << 30; // Larger offers are ignored
+    private static final int MAX_COMPLETED = 1024; // Finished downloads remembered for late offers
+    private static final int CHUNK_HEADER = 12; // TransferID + Index
+    private static final int WINDOW = 32; // Unacknowledged chunks in flight (1 MB)
+    private static final int ACK_EVERY = 8; // Chunks between progress acks
+    private static final long ACK_TIMEOUT = 10_000; // ms of silence before a receiver is given up
+    // ms of silence before a sender is given up; longer than ACK_TIMEOUT, as
+    // a sender may wait that long for a slower receiver before going on
+    private static final long SEND_TIMEOUT = 2 * ACK_TIMEOUT;
+
+    /**
+     * Sends one frame. Implemented by the client's socket writer.
+     */
+    interface Link {
+        void send(byte type, int targetId, byte[] body, int offset, int length) throws IOException;
+    }
+
+    /**
+     * Transfer events, called from background threads.
+     */
+    interface Listener {
+        void fileReceived(int senderId, String name, byte kind, File file);
+
+        void fileSent(String name, boolean delivered);
+    }
+
+    private final Link link;
+    private final Listener listener;
+    private final Map<Long, Outgoing> outgoing = new ConcurrentHashMap<>();
+    private final Map<Long, Incoming> incoming = new ConcurrentHashMap<>();
+    // Downloads already finished, so a sender that missed the last ack is
+    // told instead of starting over. The oldest are forgotten.
+    private final Set<Long> completed = Collections.newSetFromMap(Collections.synchronizedMap(
+            new LinkedHashMap<Long, Boolean>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+                    return size() > MAX_COMPLETED;
+                }
+            }));
+    private final long receiverKey = ThreadLocalRandom.current().nextLong();
+
+    // --- Connection State ---
+    private volatile boolean connected = true;
+    private volatile int generation; // Bumped on every reconnect
+
+    FileTransfers(Link link, Listener listener) {
+        this.link = link;
+        this.listener = listener;
+        ScheduledExecutorService expiry = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "file-expiry");
+            t.setDaemon(true);
+            return t;
+        });
+        expiry.scheduleWithFixedDelay(this::expireStalled, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Starts sending a file in the background.
+     *
+     * @param targetId receiving client, or 0 for everyone
+     */
+    void send(File file, byte kind, int targetId) {
+        if (file.length() > MAX_FILE_SIZE) {
+            listener.fileSent(file.getName(), false); // Receivers would ignore it
+            return;
+        }
+        long id = ThreadLocalRandom.current().nextLong();
+        Outgoing transfer = new Outgoing(id, file, kind, targetId);
+        outgoing.put(id, transfer);
+        new Thread(transfer, "file-send").start();
+    }
+
+    /**
+     * Handles a file transfer frame. Called on the socket reader thread, so
+     * disk writes stay off the EDT.
+     */
+    void handle(byte type, int senderId, byte[] body) throws IOException {
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(body));
+        long id = data.readLong();
+        switch (type) {
+            case TYPE_FILE_OFFER:
+                handleOffer(id, senderId, data);
+                break;
+            case TYPE_FILE_CHUNK:
+                handleChunk(id, senderId, body);
+                break;
+            case TYPE_FILE_ACK:
+                Outgoing transfer = outgoing.get(id);
+                if (transfer != null) {
+                    transfer.acked(data.readLong(), senderId, data.readInt(), data.readBoolean());
+                }
+                break;
+        }
+    }
+
+    void disconnected() {
+        connected = false;
+        for (Outgoing transfer : outgoing.values()) {
+            transfer.wake();
+        }
+    }
+
+    /**
+     * Offers unfinished uploads again and asks senders of unfinished
+     * downloads to resume.
+     */
+    void reconnected() {
+        generation++;
+        connected = true;
+        for (Outgoing transfer : outgoing.values()) {
+            transfer.reoffer();
+        }
+        long now = System.currentTimeMillis();
+        for (Incoming transfer : incoming.values()) {
+            transfer.lastHeard = now; // The sender gets a fresh chance to resume
+            sendAck(transfer, true);
+        }
+    }
+
+    /**
+     * Drops downloads whose sender has been silent for SEND_TIMEOUT, closing
+     * and deleting their part files. Runs on the expiry thread.
+     */
+    private void expireStalled() {
+        if (!connected)
+            return; // Nothing can arrive; reconnected() restarts the clock
+        long now = System.currentTimeMillis();
+        for (Incoming transfer : incoming.values()) {
+            if (now - transfer.lastHeard > SEND_TIMEOUT && incoming.remove(transfer.id, transfer)) {
+                transfer.close();
+                transfer.file.delete();
+            }
+        }
+    }
+
+    // --- Receiving ---
+
+    private void handleOffer(long id, int senderId, DataInputStream data) throws IOException {
+        long size = data.readLong();
+        int chunkSize = data.readInt();
+        byte kind = data.readByte();
+        String name = data.readUTF();
+
+        // The sender's word is all there is, so offers are checked before
+        // anything is allocated for them
+        if (size < 0 || size > MAX_FILE_SIZE || chunkSize <= 0 || chunkSize > CHUNK_SIZE)
+            return;
+        int chunkCount;
+        try {
+            chunkCount = Math.toIntExact((size + chunkSize - 1) / chunkSize);
+        } catch (ArithmeticException e) {
+            return;
+        }
+
+        if (completed.contains(id)) {
+            sendAck(id, senderId, chunkCount, true);
+            return;
+        }
+        Incoming transfer = incoming.get(id);
+        if (transfer == null) {
+            transfer = new Incoming(id, name, kind, size, chunkSize, chunkCount);
+            incoming.put(id, transfer);
+        }
+        transfer.senderId = senderId;
+        transfer.lastHeard = System.currentTimeMillis();
+        if (transfer.isComplete()) {
+            finish(transfer); // Empty file
+        } else {
+            sendAck(transfer, true);
+        }
+    }
+
+    private void handleChunk(long id, int senderId, byte[] body) throws IOException {
+        Incoming transfer = incoming.get(id);
+        if (transfer == null)
+            return; // Offer was missed, e.g. connected mid-transfer
+        if (body.length < CHUNK_HEADER)
+            throw new EOFException("Chunk of " + body.length + " bytes");
+        transfer.senderId = senderId;
+        transfer.lastHeard = System.currentTimeMillis();
+        int index = ByteBuffer.wrap(body, 8, 4).getInt();
+        try {
+            if (!transfer.write(index, body, CHUNK_HEADER, body.length - CHUNK_HEADER))
+                return;
+        } catch (IOException e) {
+            incoming.remove(id);
+            transfer.close();
+            throw e;
+        }
+
+        if (transfer.isComplete()) {
+            finish(transfer);
+        } else if (++transfer.sinceAck >= ACK_EVERY) {
+            sendAck(transfer, false);
+        }
+    }
+
+    private void finish(Incoming transfer) {
+        if (!incoming.remove(transfer.id, transfer))
+            return; // Expired meanwhile
+        completed.add(transfer.id);
+        transfer.close();
+        sendAck(transfer, false);
+        listener.fileReceived(transfer.senderId, transfer.name, transfer.kind, transfer.file);
+    }
+
+    private void sendAck(Incoming transfer, boolean resume) {
+        transfer.sinceAck = 0;
+        sendAck(transfer.id, transfer.senderId, transfer.nextMissing, resume);
+    }
+
+    private void sendAck(long id, int senderId, int nextMissing, boolean resume) {
+        byte[] body = new byte[21];
+        ByteBuffer.wrap(body).putLong(id).putLong(receiverKey).putInt(nextMissing).put((byte) (resume ? 1 : 0));
+        try {
+            link.send(TYPE_FILE_ACK, senderId, body, 0, body.length);
+        } catch (IOException e) {
+            // Resent after reconnecting
+        }
+    }
+
+    /**
+     * A file being received into a temporary file.
+     */
+    private static final class Incoming {
+        final long id;
+        final String name;
+        final byte kind;
+        final long size;
+        final int chunkSize;
+        final int chunkCount;
+        final File file;
+        private final RandomAccessFile out;
+        private final BitSet received = new BitSet();
+        volatile int senderId;
+        volatile long lastHeard = System.currentTimeMillis(); // Last offer or chunk
+        int nextMissing; // Everything before this has been written
+        int sinceAck;
+        private boolean closed; // Guarded by this
+
+        Incoming(long id, String name, byte kind, long size, int chunkSize, int chunkCount) throws IOException {
+            this.id = id;
+            this.name = name;
+            this.kind = kind;
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.chunkCount = chunkCount;
+            this.file = File.createTempFile("chat-", ".part");
+            this.file.deleteOnExit();
+            // Not preallocated: the file grows as chunks are written
+            this.out = new RandomAccessFile(file, "rw");
+        }
+
+        /**
+         * Stores a chunk. Returns false for duplicates, malformed chunks and
+         * after the transfer has expired.
+         */
+        synchronized boolean write(int index, byte[] data, int offset, int length) throws IOException {
+            if (closed || index < 0 || index >= chunkCount || received.get(index))
+                return false;
+            long position = (long) index * chunkSize;
+            if (length != Math.min(chunkSize, size - position))
+                return false;
+            out.seek(position);
+            out.write(data, offset, length);
+            received.set(index);
+            nextMissing = received.nextClearBit(nextMissing);
+            return true;
+        }
+
+        boolean isComplete() {
+            return nextMissing >= chunkCount;
+        }
+
+        synchronized void close() {
+            closed = true;
+            try {
+                out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // --- Sending ---
+
+    /**
+     * An upload, run on its own thread. At most WINDOW chunks are sent ahead
+     * of the slowest receiver, so a large file never piles up in the
+     * server's queue for that receiver.
+     */
+    private final class Outgoing implements Runnable {
+        private static final int SEND_OFFER = -1;
+        private static final int DELIVERED = -2;
+        private static final int FAILED = -3;
+
+        final long id;
+        final File file;
+        final byte kind;
+        final long size;
+        final int chunkCount;
+        private int targetId;
+
+        // Next chunk each receiver is missing, by receiver key
+        private final Map<Long, Integer> acked = new HashMap<>();
+        private final Map<Long, Long> ackTimes = new HashMap<>();
+        private long lastAck; // Last ack from anyone, or when the offer went out
+        private int next; // Next chunk to send
+        private boolean offerNeeded = true;
+        private int failedGeneration = -1; // Connection a send failed on
+
+        Outgoing(long id, File file, byte kind, int targetId) {
+            this.id = id;
+            this.file = file;
+            this.kind = kind;
+            this.size = file.length();
+            this.chunkCount = (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            this.targetId = targetId;
+        }
+
+        @Override
+        public void run() {
+            boolean delivered = false;
+            try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+                delivered = transfer(in);
+            } catch (IOException | InterruptedException e) {
+                e.printStackTrace();
+            } finally {
+                outgoing.remove(id);
+                listener.fileSent(file.getName(), delivered);
+            }
+        }
+
+        private boolean transfer(RandomAccessFile in) throws IOException, InterruptedException {
+            byte[] chunk = new byte[CHUNK_HEADER + CHUNK_SIZE];
+            while (true) {
+                int step = awaitStep();
+                if (step == DELIVERED)
+                    return true;
+                if (step == FAILED)
+                    return false;
+
+                int sendGeneration = generation;
+                try {
+                    if (step == SEND_OFFER) {
+                        sendOffer();
+                    } else {
+                        long position = (long) step * CHUNK_SIZE;
+                        int length = (int) Math.min(CHUNK_SIZE, size - position);
+                        ByteBuffer.wrap(chunk).putLong(id).putInt(step);
+                        in.seek(position);
+                        in.readFully(chunk, CHUNK_HEADER, length);
+                        link.send(TYPE_FILE_CHUNK, target(), chunk, 0, CHUNK_HEADER + length);
+                    }
+                } catch (IOException e) {
+                    connectionLost(sendGeneration);
+                }
+            }
+        }
+
+        private void sendOffer() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(bytes);
+            data.writeLong(id);
+            data.writeLong(size);
+            data.writeInt(CHUNK_SIZE);
+            data.writeByte(kind);
+            data.writeUTF(file.getName());
+            link.send(TYPE_FILE_OFFER, target(), bytes.toByteArray(), 0, bytes.size());
+        }
+
+        /**
+         * Waits until there is something to do: offer the file, send the
+         * chunk at the returned index, or finish.
+         */
+        private synchronized int awaitStep() throws InterruptedException {
+            while (true) {
+                if (!connected || failedGeneration == generation) {
+                    wait();
+                    continue;
+                }
+                long now = System.currentTimeMillis();
+                if (offerNeeded) {
+                    offerNeeded = false;
+                    acked.clear();
+                    ackTimes.clear();
+                    lastAck = now;
+                    return SEND_OFFER;
+                }
+
+                if (acked.isEmpty()) {
+                    if (now - lastAck > ACK_TIMEOUT)
+                        return FAILED; // Nobody is receiving
+                    wait(ACK_TIMEOUT - (now - lastAck) + 1);
+                    continue;
+                }
+
+                int slowest = Collections.min(acked.values());
+                if (slowest >= chunkCount)
+                    return DELIVERED;
+                if (next < chunkCount && next - slowest < WINDOW)
+                    return next++;
+
+                // Held up by the slowest receivers, give up on them once they
+                // have been silent too long
+                boolean expired = false;
+                Iterator<Map.Entry<Long, Integer>> it = acked.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<Long, Integer> entry = it.next();
+                    if (entry.getValue() == slowest && now - ackTimes.get(entry.getKey()) > ACK_TIMEOUT) {
+                        ackTimes.remove(entry.getKey());
+                        it.remove();
+                        expired = true;
+                    }
+                }
+                if (!expired)
+                    wait(ACK_TIMEOUT);
+            }
+        }
+
+        private synchronized int target() {
+            return targetId;
+        }
+
+        /**
+         * Records a receiver's progress. A resume ack asks for everything from
+         * its index again, which other receivers simply ignore as duplicates.
+         */
+        synchronized void acked(long receiver, int clientId, int nextMissing, boolean resume) {
+            long now = System.currentTimeMillis();
+            acked.put(receiver, nextMissing);
+            ackTimes.put(receiver, now);
+            lastAck = now;
+            if (resume && nextMissing < next) {
+                next = nextMissing;
+            }
+            if (targetId != 0) {
+                targetId = clientId; // The receiver may have reconnected under a new ID
+            }
+            notifyAll();
+        }
+
+        synchronized void reoffer() {
+            offerNeeded = true;
+            notifyAll();
+        }
+
+        synchronized void connectionLost(int lostGeneration) {
+            failedGeneration = lostGeneration;
+        }
+
+        synchronized void wake() {
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Frame Scheduler
+ * Decides which thread writes to the connection next. Call audio and
+ * signalling (types 4 and 6-10) always go before anything else that is
+ * waiting; all other frames take turns in the order they arrived, so chat
+ * messages keep their order and a text can go out between two file chunks.
+ *
+ * Frames are written whole by the calling thread, so callers may reuse their
+ * buffer as soon as the write returns. Bulk data is kept to small frames by
+ * FileTransfers, which bounds how long a realtime frame can wait.
+ * A writer that sees another thread waiting leaves the flush to it, so a
+ * burst goes out in as few segments as possible.
+ */
+class FrameScheduler {
+    static final int REALTIME = 0;
+    static final int NORMAL = 1;
+
+    private static final byte TYPE_VOICE_STREAM = 4;
+    private static final byte TYPE_CALL_REQUEST = 6;
+    private static final byte TYPE_GROUP_CALL_REQUEST = 10;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition turn = lock.newCondition();
+    // Tickets handed out and tickets done, per priority
+    private final long[] issued = new long[2];
+    private final long[] served = new long[2];
+    private boolean busy;
+
+    static int priorityOf(byte type) {
+        return type == TYPE_VOICE_STREAM || (type >= TYPE_CALL_REQUEST && type <= TYPE_GROUP_CALL_REQUEST)
+                ? REALTIME
+                : NORMAL;
+    }
+
+    /**
+     * Waits for this thread's turn to write.
+     */
+    void acquire(int priority) {
+        lock.lock();
+        try {
+            long ticket = issued[priority]++;
+            while (busy || served[priority] != ticket
+                    || (priority == NORMAL && issued[REALTIME] != served[REALTIME])) {
+                turn.awaitUninterruptibly();
+            }
+            busy = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * True if another thread is waiting for its turn. Called by the thread
+     * holding the turn, which can then leave flushing to the next one.
+     */
+    boolean hasWaiting() {
+        lock.lock();
+        try {
+            return issued[REALTIME] - served[REALTIME] + issued[NORMAL] - served[NORMAL] > 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void release(int priority) {
+        lock.lock();
+        try {
+            busy = false;
+            served[priority]++;
+            turn.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+import java.util.Arrays;
+
+/**
+ * Adaptive Jitter Buffer
+ * Puts one sender's voice packets back in sequence order and hands them out
+ * one 20 ms frame at a time. The playout delay follows the measured network
+ * jitter: it grows when packets arrive unevenly, and whenever more is
+ * buffered than needed a frame is skipped, so latency stays bounded instead
+ * of building up over the call. A missing frame is concealed by repeating
+ * the previous one at decreasing volume.
+ *
+ * Frames are 20 ms of decoded 16 kHz mono samples with the sender's
+ * sequence number. Used by the playout thread only.
+ */
+class JitterBuffer {
+    static final int FRAME_SAMPLES = VoiceCodec.FRAME_SAMPLES; // 20 ms at 16 kHz
+    private static final long FRAME_NANOS = 20_000_000L;
+
+    private static final int CAPACITY = 64; // Frames held, 1.28 s
+    private static final int MAX_TARGET = 10; // Longest playout delay in frames, 200 ms
+    private static final int SLACK = 2; // Frames over target before one is skipped
+    private static final int MAX_CONCEALED = 5; // Repeated frames before going silent
+
+    private final short[][] frames = new short[CAPACITY][FRAME_SAMPLES];
+    private final boolean[] present = new boolean[CAPACITY];
+    private final short[] previous = new short[FRAME_SAMPLES];
+
+    private boolean started;
+    private boolean buffering = true; // Waiting until target frames are queued
+    private int playSeq; // Next frame to play
+    private int highestSeq; // Newest frame received
+    private int concealed; // Consecutive frames made up so far
+
+    // Jitter estimate in the style of RFC 3550, in nanoseconds
+    private double jitter;
+    private long lastArrival;
+    private int lastArrivalSeq;
+
+    // --- Statistics ---
+    private long lost; // Frames concealed
+    private long late; // Arrived after their playout time
+    private long skipped; // Dropped to bring latency back down
+
+    /**
+     * Adds one frame. Shorter frames are padded with silence.
+     */
+    void put(int seq, short[] samples, int count) {
+        long now = System.nanoTime();
+        if (started) {
+            long transitChange = (now - lastArrival) - (long) (seq - lastArrivalSeq) * FRAME_NANOS;
+            jitter += (Math.abs(transitChange) - jitter) / 16;
+        }
+        lastArrival = now;
+        lastArrivalSeq = seq;
+
+        if (!started || seq - playSeq >= CAPACITY || seq - playSeq < -CAPACITY) {
+            reset(seq); // First packet, or the sender restarted its numbering
+        }
+        if (seq - playSeq < 0) {
+            late++;
+            return;
+        }
+        int slot = Math.floorMod(seq, CAPACITY);
+        int length = Math.min(count, FRAME_SAMPLES);
+        System.arraycopy(samples, 0, frames[slot], 0, length);
+        Arrays.fill(frames[slot], length, FRAME_SAMPLES, (short) 0);
+        present[slot] = true;
+        if (seq - highestSeq > 0)
+            highestSeq = seq;
+    }
+
+    private void reset(int seq) {
+        Arrays.fill(present, false);
+        started = true;
+        buffering = true;
+        playSeq = seq;
+        highestSeq = seq - 1;
+        concealed = 0;
+    }
+
+    /**
+     * Fills {@code out} with the next frame to play. Returns false when
+     * there is nothing to play, so the caller can leave this stream out.
+     */
+    boolean next(short[] out) {
+        if (!started)
+            return false;
+        int buffered = highestSeq - playSeq + 1;
+        int target = targetDelay();
+
+        if (buffering) {
+            if (buffered < target)
+                return false;
+            buffering = false;
+        }
+
+        // Too far behind real time, skip frames to catch up
+        while (buffered > target + SLACK) {
+            present[Math.floorMod(playSeq, CAPACITY)] = false;
+            playSeq++;
+            buffered--;
+            skipped++;
+        }
+
+        int slot = Math.floorMod(playSeq, CAPACITY);
+        if (present[slot]) {
+            System.arraycopy(frames[slot], 0, out, 0, FRAME_SAMPLES);
+            System.arraycopy(frames[slot], 0, previous, 0, FRAME_SAMPLES);
+            present[slot] = false;
+            concealed = 0;
+        } else if (concealed < MAX_CONCEALED) {
+            conceal(out, ++concealed);
+            lost++;
+        } else {
+            // Sender went quiet, wait for enough audio to start again
+            buffering = true;
+            return false;
+        }
+        playSeq++;
+        return true;
+    }
+
+    /**
+     * Repeats the previous frame, halving the volume with each repeat.
+     */
+    private void conceal(short[] out, int repeat) {
+        for (int i = 0; i < FRAME_SAMPLES; i++) {
+            out[i] = (short) (previous[i] >> repeat);
+        }
+    }
+
+    /**
+     * Frames to hold before playing: enough to cover three times the
+     * current jitter estimate, at least one frame.
+     */
+    private int targetDelay() {
+        int frames = (int) Math.ceil(3 * jitter / FRAME_NANOS) + 1;
+        return Math.max(1, Math.min(MAX_TARGET, frames));
+    }
+
+    /**
+     * Jitter, target delay and frame counters, for the report at the end
+     * of a call.
+     */
+    String stats() {
+        return String.format("jitter %.1f ms, delay %d frames, %d lost, %d late, %d skipped",
+                jitter / 1e6, targetDelay(), lost, late, skipped);
+    }
+}
@@ -0,0 +1,58 @@
+import java.io.*;
+import java.util.Base64;
+import java.util.Properties;
+
+/**
+ * Login Tokens
+ * The tokens the server handed out for the names this user has claimed,
+ * kept in a file in the user's home directory so the names can be logged
+ * in to again after a restart. A name's token is sent with every login;
+ * without it the server refuses the name.
+ *
+ * Tokens are stored per server and name. The file is only readable by its
+ * owner where the file system allows that.
+ */
+final class LoginTokens {
+    private static final File FILE = new File(System.getProperty("user.home"), ".chat-tokens");
+
+    private LoginTokens() {
+    }
+
+    /**
+     * The token for a name on a server, or null if none was saved.
+     */
+    static synchronized byte[] load(String server, String name) {
+        String token = read().getProperty(server + "/" + name);
+        try {
+            return token != null ? Base64.getDecoder().decode(token) : null;
+        } catch (IllegalArgumentException e) {
+            return null; // Edited by hand
+        }
+    }
+
+    static synchronized void save(String server, String name, byte[] token) throws IOException {
+        Properties tokens = read();
+        tokens.setProperty(server + "/" + name, Base64.getEncoder().encodeToString(token));
+        if (!FILE.exists() && FILE.createNewFile()) {
+            FILE.setReadable(false, false);
+            FILE.setWritable(false, false);
+            FILE.setReadable(true, true);
+            FILE.setWritable(true, true);
+        }
+        try (OutputStream out = new FileOutputStream(FILE)) {
+            tokens.store(out, "Chat login tokens, one per server and name");
+        }
+    }
+
+    private static Properties read() {
+        Properties tokens = new Properties();
+        if (FILE.exists()) {
+            try (InputStream in = new FileInputStream(FILE)) {
+                tokens.load(in);
+            } catch (IOException e) {
+                e.printStackTrace(); // Log in without tokens
+            }
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,280 @@
+import javax.swing.*;
+import javax.swing.border.*;
+import java.awt.*;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Chat Bubble Renderer
+ * Draws the chat bubbles for the message list. One set of components is
+ * reconfigured for each row Swing paints, instead of keeping components for
+ * every message ever received. The list asks for every row's height
+ * whenever a message arrives, so row heights and wrapped text are kept on
+ * the message for the current list width; thumbnails come from the
+ * ThumbnailCache.
+ *
+ * Buttons in a bubble are only painted; the list's mouse listener finds the
+ * row that was clicked and acts on it.
+ */
+class MessageRenderer implements ListCellRenderer<ChatMessage> {
+    private static final int MAX_BUBBLE_WIDTH = 400;
+    private static final int ROW_INSETS = 10 + 5; // List border and FlowLayout gap, each side
+    private static final int TEXT_INSETS = 12 + 1; // Bubble padding and outline, each side
+
+    private static final Font NAME_FONT = new Font(Font.DIALOG, Font.BOLD, 11);
+    private static final Font TEXT_FONT = new Font("Segoe UI", Font.PLAIN, 14);
+    private static final Font TIME_FONT = new Font("Segoe UI", Font.PLAIN, 10);
+    private static final Font MEDIA_FONT = new Font(Font.DIALOG, Font.PLAIN, 12);
+    private static final Font SYSTEM_FONT = new Font(Font.DIALOG, Font.ITALIC, 11);
+
+    private static final Border SENT_TEXT_BORDER = new CompoundBorder(
+            new LineBorder(Client.APP_BUBBLE_SENT, 1, true), new EmptyBorder(8, 12, 8, 12));
+    private static final Border RECEIVED_TEXT_BORDER = new CompoundBorder(
+            new LineBorder(Client.APP_BUBBLE_RECEIVED, 1, true), new EmptyBorder(8, 12, 8, 12));
+    private static final Border MEDIA_BORDER = new EmptyBorder(8, 12, 8, 12);
+    private static final Border IMAGE_BORDER = new EmptyBorder(5, 5, 5, 5);
+    private static final Border IMAGE_NAME_BORDER = new EmptyBorder(5, 5, 2, 5);
+
+    private final ThumbnailCache thumbnails;
+    private ChatMessage playing; // Voice note being played, drawn with a Stop button
+
+    private final Row row = new Row();
+    private final JPanel bubble = new JPanel(new BorderLayout());
+    private final JLabel name = new JLabel();
+    private final TextBlock textBlock = new TextBlock();
+    private final JLabel media = new JLabel();
+    private final JLabel action = new JLabel("💾 Save");
+    private final JLabel time = new JLabel();
+    private final JLabel notice = new JLabel();
+    private final JPanel placeholder = new JPanel(); // Stands in for a thumbnail being loaded
+    private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm");
+
+    MessageRenderer(ThumbnailCache thumbnails) {
+        this.thumbnails = thumbnails;
+        row.setOpaque(false);
+        name.setFont(NAME_FONT);
+        name.setForeground(Client.APP_RED);
+        textBlock.setFont(TEXT_FONT);
+        media.setFont(MEDIA_FONT);
+        action.setFont(MEDIA_FONT);
+        action.setForeground(Client.APP_RED);
+        action.setBorder(new EmptyBorder(4, 0, 0, 0));
+        time.setFont(TIME_FONT);
+        time.setHorizontalAlignment(SwingConstants.RIGHT);
+        notice.setFont(SYSTEM_FONT);
+        notice.setForeground(new Color(134, 150, 160));
+        notice.setBackground(new Color(255, 255, 255, 200));
+        notice.setOpaque(true);
+        notice.setBorder(new EmptyBorder(4, 10, 4, 10));
+        placeholder.setBackground(new Color(245, 245, 245));
+    }
+
+    void setPlaying(ChatMessage message) {
+        playing = message;
+    }
+
+    ChatMessage playing() {
+        return playing;
+    }
+
+    @Override
+    public Component getListCellRendererComponent(JList<? extends ChatMessage> list, ChatMessage message,
+            int index, boolean isSelected, boolean cellHasFocus) {
+        row.message = message;
+        row.listWidth = list.getWidth();
+        row.configured = false;
+        return row;
+    }
+
+    /**
+     * The row component. The list measures every row each time a message
+     * is added, so the size is remembered on the message for the current
+     * width and the components are only set up for rows that are painted.
+     */
+    private final class Row extends JPanel {
+        private static final long serialVersionUID = 1L;
+
+        ChatMessage message;
+        int listWidth;
+        boolean configured;
+
+        Row() {
+            super(new FlowLayout(FlowLayout.LEFT, 5, 5));
+        }
+
+        @Override
+        public Dimension getPreferredSize() {
+            if (message.rowWidth != listWidth) {
+                configure();
+                Dimension size = super.getPreferredSize();
+                message.rowWidth = listWidth;
+                message.rowHeight = size.height;
+            }
+            return new Dimension(0, message.rowHeight);
+        }
+
+        @Override
+        public void paint(Graphics g) {
+            if (!configured) {
+                configure();
+                synchronized (getTreeLock()) {
+                    validateTree(); // Unlike validate(), also lays out a row that has no peer yet
+                }
+            }
+            super.paint(g);
+        }
+
+        private void configure() {
+            if (!configured) {
+                configured = true;
+                configureRow(message, listWidth);
+            }
+        }
+    }
+
+    private void configureRow(ChatMessage message, int listWidth) {
+        row.removeAll();
+        if (message.kind == ChatMessage.Kind.SYSTEM) {
+            ((FlowLayout) row.getLayout()).setAlignment(FlowLayout.CENTER);
+            notice.setText("ℹ️ " + message.text);
+            row.add(notice);
+            return;
+        }
+
+        boolean isMe = message.isMe;
+        Color background = isMe ? Client.APP_BUBBLE_SENT : Client.APP_BUBBLE_RECEIVED;
+        ((FlowLayout) row.getLayout()).setAlignment(isMe ? FlowLayout.RIGHT : FlowLayout.LEFT);
+        bubble.removeAll();
+        bubble.setBackground(background);
+        if (!isMe) {
+            name.setText(message.kind == ChatMessage.Kind.TEXT ? message.sender : "👤 " + message.sender);
+            name.setBorder(message.kind == ChatMessage.Kind.IMAGE ? IMAGE_NAME_BORDER : null);
+            bubble.add(name, BorderLayout.NORTH);
+        }
+
+        switch (message.kind) {
+            case TEXT:
+                bubble.setBorder(isMe ? SENT_TEXT_BORDER : RECEIVED_TEXT_BORDER);
+                int maxWidth = Math.min(MAX_BUBBLE_WIDTH, listWidth - 2 * ROW_INSETS) - 2 * TEXT_INSETS;
+                textBlock.setMessage(message, Math.max(50, maxWidth));
+                textBlock.setForeground(isMe ? Color.WHITE : Color.BLACK);
+                bubble.add(textBlock, BorderLayout.CENTER);
+                time.setText(timeFormat.format(new Date(message.time)));
+                time.setForeground(isMe ? new Color(240, 240, 240) : Color.GRAY);
+                bubble.add(time, BorderLayout.SOUTH);
+                break;
+            case IMAGE:
+                bubble.setBorder(IMAGE_BORDER);
+                Icon icon = thumbnails.get(message);
+                if (icon != null) {
+                    media.setIcon(icon);
+                    media.setText(null);
+                    bubble.add(media, BorderLayout.CENTER);
+                } else {
+                    placeholder.setPreferredSize(new Dimension(message.thumbnailWidth, message.thumbnailHeight));
+                    bubble.add(placeholder, BorderLayout.CENTER);
+                }
+                break;
+            case FILE:
+                bubble.setBorder(MEDIA_BORDER);
+                media.setIcon(null);
+                media.setText("📄 " + message.text + " (" + (message.size + 1023) / 1024 + " KB)");
+                media.setForeground(isMe ? Color.WHITE : Color.BLACK);
+                bubble.add(media, BorderLayout.CENTER);
+                if (!isMe) {
+                    bubble.add(action, BorderLayout.SOUTH);
+                }
+                break;
+            case VOICE_NOTE:
+                bubble.setBorder(MEDIA_BORDER);
+                media.setIcon(null);
+                media.setText(message == playing ? "⏹ Stop" : "▶ Voice Message");
+                media.setForeground(isMe ? Color.WHITE : Client.APP_RED);
+                bubble.add(media, BorderLayout.CENTER);
+                break;
+            default:
+                break;
+        }
+        row.add(bubble);
+    }
+
+    /**
+     * Word-wrapped message text. The wrapped lines are cached on the
+     * message, so measuring a row again is only a lookup.
+     */
+    private static final class TextBlock extends JComponent {
+        private static final long serialVersionUID = 1L;
+
+        private ChatMessage message;
+
+        void setMessage(ChatMessage message, int maxWidth) {
+            this.message = message;
+            if (message.wrapWidth != maxWidth || message.lines == null) {
+                wrap(message, getFontMetrics(getFont()), maxWidth);
+            }
+        }
+
+        @Override
+        public Dimension getPreferredSize() {
+            FontMetrics metrics = getFontMetrics(getFont());
+            return new Dimension(message.linesWidth, message.lines.length * metrics.getHeight());
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            Graphics2D g2 = (Graphics2D) g;
+            g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            g2.setFont(getFont());
+            g2.setColor(getForeground());
+            FontMetrics metrics = g2.getFontMetrics();
+            int y = metrics.getAscent();
+            for (String line : message.lines) {
+                g2.drawString(line, 0, y);
+                y += metrics.getHeight();
+            }
+        }
+
+        /**
+         * Breaks the text at spaces to fit maxWidth, and inside words that
+         * are wider than that on their own.
+         */
+        private static void wrap(ChatMessage message, FontMetrics metrics, int maxWidth) {
+            List<String> lines = new ArrayList<>();
+            int widest = 0;
+            for (String paragraph : message.text.split("\n", -1)) {
+                StringBuilder line = new StringBuilder();
+                for (String word : paragraph.split(" ", -1)) {
+                    String candidate = line.length() == 0 ? word : line + " " + word;
+                    if (metrics.stringWidth(candidate) <= maxWidth) {
+                        line.setLength(0);
+                        line.append(candidate);
+                        continue;
+                    }
+                    if (line.length() > 0) {
+                        widest = Math.max(widest, metrics.stringWidth(line.toString()));
+                        lines.add(line.toString());
+                        line.setLength(0);
+                    }
+                    // Split words that do not fit on a line of their own
+                    int start = 0;
+                    for (int end = 1; end <= word.length(); end++) {
+                        if (metrics.stringWidth(word.substring(start, end)) > maxWidth && end - 1 > start) {
+                            String piece = word.substring(start, end - 1);
+                            widest = Math.max(widest, metrics.stringWidth(piece));
+                            lines.add(piece);
+                            start = end - 1;
+                        }
+                    }
+                    line.append(word, start, word.length());
+                }
+                widest = Math.max(widest, metrics.stringWidth(line.toString()));
+                lines.add(line.toString());
+            }
+            message.lines = lines.toArray(new String[0]);
+            message.linesWidth = widest;
+            message.wrapWidth = maxWidth;
+        }
+    }
+}
@@ -0,0 +1,351 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Wire Protocol
+ * Frame headers for both protocol versions, shared by the client and the
+ * server (same file in both).
+ *
+ * Version 1, what every connection starts with:
+ *   [Type (1)] [Peer (4)] [Length (4)] [Body]
+ * Version 2, once both sides have agreed on it:
+ *   [Type (1)] [Flags (1)] [Peer (varint)] [Seq (varint)] [Length (varint)] [Body]
+ *
+ * Peer is the target ID in frames from a client and the sender ID in frames
+ * from the server. Varints are unsigned LEB128: 7 bits per byte, low bits
+ * first, high bit set on every byte but the last, at most 5 bytes. A chat
+ * message header takes 5 to 8 bytes instead of 9.
+ *
+ * Flags:
+ *   PRIORITY    call audio or signalling (types 4 and 6-10)
+ *   CHUNKED     the body is one piece of a message; the pieces follow each
+ *               other in frames of the same type, and the last one has the
+ *               flag cleared. Only the server sends chunked frames.
+ *   COMPRESSED  the body is compressed; only with the COMPRESSION capability
+ *
+ * Each direction of a connection carries two streams: realtime frames, with
+ * PRIORITY set, and everything else. Realtime frames overtake the others,
+ * so each stream numbers its own frames from 0 and the receiver checks the
+ * order within each.
+ *
+ * Handshake (type 18, TYPE_HELLO), in version 1 framing:
+ *   client -> server: [Max Version (1)] [Capabilities (4)]
+ *   server -> client: [Version (1)] [Capabilities (4)]  what both sides support
+ * The client sends the hello first and nothing else until the answer has
+ * arrived. After the hello each side sends in the agreed version. Clients
+ * that never send one stay on version 1.
+ *
+ * Capabilities:
+ *   COMPRESSION  text bodies of COMPRESS_THRESHOLD bytes or more may be sent
+ *                as [Original Length (varint)] [Raw Deflate data], when that
+ *                is smaller; version 2 only
+ *   HEARTBEAT    the client answers every ping (type 20, TYPE_PING) from the
+ *                server with a pong (type 21, TYPE_PONG) carrying the same
+ *                body, so the server may drop it when nothing has been
+ *                heard from it for a while; any version
+ */
+final class Protocol {
+    static final byte TYPE_HELLO = 18;
+    static final byte TYPE_PING = 20;
+    static final byte TYPE_PONG = 21;
+    static final int V1 = 1;
+    static final int V2 = 2;
+    static final int MAX_VERSION = V2;
+
+    static final int V1_HEADER_SIZE = 9;
+    static final int MAX_HEADER_SIZE = 2 + 3 * 5;
+
+    static final int FLAG_COMPRESSED = 0x01;
+    static final int FLAG_CHUNKED = 0x02;
+    static final int FLAG_PRIORITY = 0x04;
+
+    static final int CAP_COMPRESSION = 0x01;
+    static final int CAP_HEARTBEAT = 0x02;
+    static final int SUPPORTED_CAPABILITIES = CAP_COMPRESSION | CAP_HEARTBEAT;
+
+    // Smaller bodies rarely shrink enough to pay for the work
+    static final int COMPRESS_THRESHOLD = 256;
+
+    private static final byte TYPE_TEXT = 1;
+    private static final byte TYPE_VOICE_STREAM = 4;
+    private static final byte TYPE_CALL_REQUEST = 6;
+    private static final byte TYPE_GROUP_CALL_REQUEST = 10;
+
+    private Protocol() {
+    }
+
+    static boolean isRealtime(byte type) {
+        return type == TYPE_VOICE_STREAM || (type >= TYPE_CALL_REQUEST && type <= TYPE_GROUP_CALL_REQUEST);
+    }
+
+    /**
+     * Images, voice and file data are compressed already; only text is
+     * worth deflating.
+     */
+    static boolean isCompressible(byte type, int length) {
+        return type == TYPE_TEXT && length >= COMPRESS_THRESHOLD;
+    }
+
+    // Deflate state is large and costly to set up, so it is reused
+    private static final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private static final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Compresses a body for a COMPRESSED frame. Returns null when the result
+     * would not be smaller than the body.
+     */
+    static byte[] compress(byte[] data, int offset, int length) {
+        if (length < 8)
+            return null;
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+        try {
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            byte[] out = new byte[length];
+            ByteBuffer prefix = ByteBuffer.wrap(out);
+            putVarint(prefix, length);
+            int position = prefix.position();
+            int limit = length - 1; // Anything longer does not pay
+            while (!deflater.finished() && position < limit) {
+                position += deflater.deflate(out, position, limit - position);
+            }
+            return deflater.finished() ? Arrays.copyOf(out, position) : null;
+        } finally {
+            deflater.reset();
+            deflaters.add(deflater);
+        }
+    }
+
+    /**
+     * Restores a body compressed by compress(). Throws if it is malformed or
+     * would come to more than maxLength bytes.
+     */
+    static byte[] decompress(byte[] data, int offset, int length, int maxLength) throws IOException {
+        int end = offset + length;
+        int original = 0;
+        for (int shift = 0;; shift += 7) {
+            if (offset == end || shift > 28)
+                throw new IOException("Malformed compressed body");
+            byte b = data[offset++];
+            original |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                break;
+        }
+        if (original < 0 || original > maxLength)
+            throw new IOException("Compressed body of " + original + " bytes is too large");
+
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        try {
+            inflater.setInput(data, offset, end - offset);
+            byte[] out = new byte[original];
+            int position = 0;
+            while (position < original) {
+                int n = inflater.inflate(out, position, original - position);
+                if (n == 0 && (inflater.needsInput() || inflater.finished() || inflater.needsDictionary()))
+                    throw new IOException("Compressed body cut short");
+                position += n;
+            }
+            return out;
+        } catch (DataFormatException e) {
+            throw new IOException("Malformed compressed body: " + e.getMessage());
+        } finally {
+            inflater.reset();
+            inflaters.add(inflater);
+        }
+    }
+
+    static void putVarint(ByteBuffer dst, int value) {
+        while ((value & ~0x7F) != 0) {
+            dst.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        dst.put((byte) value);
+    }
+
+    /**
+     * Writes the headers of one direction of a connection, numbering each
+     * frame in its stream. One thread at a time.
+     */
+    static final class Encoder {
+        private int version = V1;
+        private final int[] seq = new int[2]; // Normal and realtime stream
+
+        int version() {
+            return version;
+        }
+
+        void setVersion(int version) {
+            this.version = version;
+        }
+
+        /**
+         * Puts a header into dst, which must have MAX_HEADER_SIZE bytes free.
+         * Realtime types get the PRIORITY flag.
+         */
+        void encode(ByteBuffer dst, byte type, int flags, int peer, int length) {
+            if (version == V1) {
+                dst.put(type).putInt(peer).putInt(length);
+                return;
+            }
+            if (isRealtime(type)) {
+                flags |= FLAG_PRIORITY;
+            }
+            dst.put(type).put((byte) flags);
+            putVarint(dst, peer);
+            putVarint(dst, seq[(flags & FLAG_PRIORITY) != 0 ? 1 : 0]++);
+            putVarint(dst, length);
+        }
+    }
+
+    /**
+     * Reads the headers of one direction of a connection a byte at a time,
+     * so it never consumes any of the body. One thread at a time.
+     */
+    static final class Decoder {
+        private int version = V1;
+        private int acceptedFlags;
+        private final int[] expectedSeq = new int[2];
+
+        // --- Last Header ---
+        byte type;
+        int flags;
+        int peer;
+        int seq;
+        int length;
+        private String error;
+
+        // --- Progress Through the Header ---
+        private int field; // Bytes so far in version 1, fields so far in version 2
+        private int value;
+        private int shift;
+
+        /**
+         * @param acceptedFlags flags the other side may set
+         */
+        Decoder(int acceptedFlags) {
+            this.acceptedFlags = acceptedFlags;
+        }
+
+        int version() {
+            return version;
+        }
+
+        /**
+         * Switches to another version. Only between headers.
+         */
+        void setVersion(int version) {
+            this.version = version;
+        }
+
+        /**
+         * Lets the other side set more flags, for capabilities agreed in
+         * the hello. Only between headers.
+         */
+        void accept(int flags) {
+            acceptedFlags |= flags;
+        }
+
+        /**
+         * Reads header bytes from src. Returns true once the header is
+         * complete; src is then positioned at the body.
+         */
+        boolean readHeader(ByteBuffer src) {
+            while (src.hasRemaining()) {
+                if (put(src.get()))
+                    return true;
+            }
+            return false;
+        }
+
+        /**
+         * Takes the next header byte. Returns true once the header is
+         * complete, and its fields can be read until the next call.
+         */
+        boolean put(byte b) {
+            if (version == V1) {
+                if (field == 0) {
+                    type = b;
+                    flags = 0;
+                    peer = 0;
+                    length = 0;
+                    error = null;
+                } else if (field <= 4) {
+                    peer = (peer << 8) | (b & 0xFF);
+                } else {
+                    length = (length << 8) | (b & 0xFF);
+                }
+                if (++field < V1_HEADER_SIZE)
+                    return false;
+                field = 0;
+                return true;
+            }
+
+            if (field == 0) {
+                type = b;
+                error = null;
+                field++;
+                return false;
+            }
+            if (field == 1) {
+                flags = b & 0xFF;
+                field++;
+                return false;
+            }
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+            if ((b & 0x80) != 0) {
+                if (shift < 35)
+                    return false;
+                error = "varint longer than 5 bytes";
+            } else if (field == 2) {
+                peer = value;
+            } else if (field == 3) {
+                seq = value;
+            } else {
+                length = value;
+            }
+            value = 0;
+            shift = 0;
+            if (error == null && ++field <= 4)
+                return false;
+            field = 0;
+            check();
+            return true;
+        }
+
+        private void check() {
+            if (error != null)
+                return;
+            if ((flags & ~acceptedFlags) != 0) {
+                error = "unexpected flags " + flags;
+                return;
+            }
+            int stream = (flags & FLAG_PRIORITY) != 0 ? 1 : 0;
+            if (seq != expectedSeq[stream]) {
+                error = "frame " + seq + " where " + expectedSeq[stream] + " was due";
+                return;
+            }
+            expectedSeq[stream]++;
+        }
+
+        /**
+         * Why the last header cannot be used, or null if it is fine.
+         * The connection is out of step after an error and has to be closed.
+         */
+        String error() {
+            return error;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+import javax.imageio.ImageIO;
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Image Thumbnail Cache
+ * Keeps the scaled-down images of the most recently shown image messages.
+ * Full-size images are never kept: an image is decoded once to make its
+ * thumbnail and then dropped. When a thumbnail has fallen out of the cache
+ * and its row scrolls back into view, it is rebuilt from the file on a
+ * media worker while the row shows a placeholder of the same size.
+ *
+ * EDT only, except scale(), which is meant for the workers.
+ */
+class ThumbnailCache {
+    static final int MAX_WIDTH = 250;
+    private static final int CAPACITY = 64; // About 16 MB at worst, 250x250 ARGB each
+
+    private final Map<ChatMessage, Icon> icons = new LinkedHashMap<ChatMessage, Icon>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ChatMessage, Icon> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+    private final Set<ChatMessage> loading = new HashSet<>();
+    private final Executor workers;
+    private final Runnable loaded; // Repaints the list
+
+    ThumbnailCache(Executor workers, Runnable loaded) {
+        this.workers = workers;
+        this.loaded = loaded;
+    }
+
+    /**
+     * Returns the thumbnail, or null while it is being loaded.
+     */
+    Icon get(ChatMessage message) {
+        Icon icon = icons.get(message);
+        if (icon == null && loading.add(message)) {
+            workers.execute(() -> {
+                Icon thumbnail = null;
+                try {
+                    BufferedImage img = ImageIO.read(message.file);
+                    if (img != null)
+                        thumbnail = scale(img);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                Icon result = thumbnail;
+                SwingUtilities.invokeLater(() -> {
+                    // An unreadable file stays in loading, so it is not retried on every paint
+                    if (result != null && loading.remove(message)) {
+                        put(message, result);
+                        loaded.run();
+                    }
+                });
+            });
+        }
+        return icon;
+    }
+
+    void put(ChatMessage message, Icon icon) {
+        icons.put(message, icon);
+    }
+
+    void remove(ChatMessage message) {
+        icons.remove(message);
+        loading.remove(message);
+    }
+
+    /**
+     * Scales an image down to bubble width. Runs on a media worker, so the
+     * EDT only has to paint the small result.
+     */
+    static Icon scale(BufferedImage img) {
+        int newHeight = Math.max(1, (img.getHeight() * MAX_WIDTH) / img.getWidth());
+        BufferedImage scaled = new BufferedImage(MAX_WIDTH, newHeight, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = scaled.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+        g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        g.drawImage(img, 0, 0, MAX_WIDTH, newHeight, null);
+        g.dispose();
+        return new ImageIcon(scaled);
+    }
+}
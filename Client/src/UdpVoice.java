@@ -0,0 +1,126 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+
+/**
+ * UDP Voice Path
+ * Client side of the server's UDP relay. The server hands out a session
+ * token when a call is accepted; this class registers with it and carries
+ * call audio once the server has answered. Until then, or if UDP is blocked,
+ * audio stays on the TCP connection.
+ *
+ * Outgoing: [Token (8)] [TargetID (4)] [Seq (4)] [Codec (1)] [Audio]
+ * Incoming: [SenderID (4)] [Seq (4)] [Codec (1)] [Audio]
+ */
+class UdpVoice {
+    static final int HEADER_SIZE = 16; // Outgoing header
+    private static final int REGISTER = -1;
+    private static final int REGISTER_ATTEMPTS = 5;
+
+    /**
+     * Receives relayed audio, called on the UDP reader thread.
+     */
+    interface Receiver {
+        void voice(int senderId, int seq, byte[] data, int offset, int length);
+    }
+
+    private final String host;
+    private final Receiver receiver;
+    private DatagramSocket socket;
+    private long token;
+    private volatile boolean ready; // Server answered our registration
+
+    UdpVoice(String host, Receiver receiver) {
+        this.host = host;
+        this.receiver = receiver;
+    }
+
+    /**
+     * Starts using the session from a TYPE_MEDIA_SESSION frame:
+     * [Token (8)] [UDP Port (2)]. Repeats of the current session are ignored.
+     */
+    synchronized void start(byte[] session) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(session);
+        long newToken = data.getLong();
+        int port = data.getShort() & 0xFFFF;
+        if (socket != null && newToken == token)
+            return;
+
+        close();
+        token = newToken;
+        socket = new DatagramSocket();
+        socket.connect(new InetSocketAddress(host, port));
+        DatagramSocket current = socket;
+        Thread reader = new Thread(() -> receive(current), "udp-voice");
+        reader.setDaemon(true);
+        reader.start();
+        Thread register = new Thread(() -> register(current), "udp-register");
+        register.setDaemon(true);
+        register.start();
+    }
+
+    boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Sends one voice packet. {@code packet} must have HEADER_SIZE bytes free
+     * in front of the payload, which this method fills in.
+     */
+    void send(byte[] packet, int targetId, int seq, int payloadLength) throws IOException {
+        DatagramSocket current;
+        synchronized (this) {
+            current = socket;
+            ByteBuffer.wrap(packet).putLong(token).putInt(targetId).putInt(seq);
+        }
+        if (current != null) {
+            current.send(new DatagramPacket(packet, HEADER_SIZE + payloadLength));
+        }
+    }
+
+    /**
+     * Drops the session, for when the TCP connection is lost. The server
+     * hands out a new one with the next call.
+     */
+    synchronized void close() {
+        ready = false;
+        if (socket != null) {
+            socket.close();
+            socket = null;
+        }
+    }
+
+    private void register(DatagramSocket current) {
+        byte[] packet = new byte[HEADER_SIZE];
+        try {
+            for (int i = 0; i < REGISTER_ATTEMPTS && !ready && !current.isClosed(); i++) {
+                synchronized (this) {
+                    ByteBuffer.wrap(packet).putLong(token).putInt(REGISTER).putInt(0);
+                }
+                current.send(new DatagramPacket(packet, packet.length));
+                Thread.sleep(1000);
+            }
+        } catch (IOException | InterruptedException e) {
+            // Socket closed, audio stays on TCP
+        }
+    }
+
+    private void receive(DatagramSocket current) {
+        byte[] buffer = new byte[2048];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        try {
+            while (true) {
+                packet.setLength(buffer.length);
+                current.receive(packet);
+                if (packet.getLength() == 0) {
+                    ready = true; // Registration answered
+                } else if (packet.getLength() >= 8) {
+                    ByteBuffer data = ByteBuffer.wrap(buffer);
+                    receiver.voice(data.getInt(), data.getInt(), buffer, 8, packet.getLength() - 8);
+                }
+            }
+        } catch (IOException e) {
+            // Closed
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/**
+ * Voice Codecs
+ * Call audio and voice notes are 16 kHz, 16-bit mono audio cut into 20 ms
+ * frames, each compressed on its own by one of these codecs. Every encoded
+ * payload names its codec in front, so a receiver can always tell how to
+ * decode it. Which codec a client sends with is agreed with the server
+ * right after connecting (TYPE_CODECS).
+ *
+ * An instance carries encoder state from one frame to the next, so every
+ * outgoing stream needs its own. Decoding only depends on the frame itself,
+ * and a lost frame never affects the ones after it.
+ *
+ * This file is the same in the client and the server.
+ */
+abstract class VoiceCodec {
+    static final int FRAME_SAMPLES = 320; // 20 ms at 16 kHz
+
+    // --- Codec IDs ---
+    static final byte PCM = 0; // 16-bit big-endian samples, 640 bytes per frame
+    static final byte IMA_ADPCM = 1; // 4 bits per sample, 163 bytes per frame
+
+    // Codecs this side can decode, preferred first
+    static final byte[] SUPPORTED = { IMA_ADPCM, PCM };
+
+    private static final VoiceCodec[] DECODERS = { new Pcm(), new ImaAdpcm() };
+
+    /**
+     * A new encoder, or null if the codec is unknown.
+     */
+    static VoiceCodec encoder(byte id) {
+        if (id == PCM)
+            return new Pcm();
+        if (id == IMA_ADPCM)
+            return new ImaAdpcm();
+        return null;
+    }
+
+    /**
+     * A shared instance for decoding, or null if the codec is unknown.
+     */
+    static VoiceCodec decoder(byte id) {
+        return id >= 0 && id < DECODERS.length ? DECODERS[id] : null;
+    }
+
+    abstract byte id();
+
+    /**
+     * Encoded size of a full frame.
+     */
+    abstract int frameBytes();
+
+    /**
+     * Encodes up to FRAME_SAMPLES samples into {@code out} and returns the
+     * number of bytes written, at most frameBytes().
+     */
+    abstract int encode(short[] pcm, int samples, byte[] out, int offset);
+
+    /**
+     * Decodes one encoded frame into {@code pcm} and returns the number of
+     * samples, at most {@code pcm.length}.
+     */
+    abstract int decode(byte[] in, int offset, int length, short[] pcm);
+
+    // --- Sample Conversion ---
+
+    static void toBytes(short[] pcm, int samples, byte[] out, int offset) {
+        for (int i = 0; i < samples; i++) {
+            out[offset + 2 * i] = (byte) (pcm[i] >> 8);
+            out[offset + 2 * i + 1] = (byte) pcm[i];
+        }
+    }
+
+    static void toSamples(byte[] in, int offset, int samples, short[] pcm) {
+        for (int i = 0; i < samples; i++) {
+            pcm[i] = (short) ((in[offset + 2 * i] << 8) | (in[offset + 2 * i + 1] & 0xFF));
+        }
+    }
+
+    /**
+     * Uncompressed audio, for clients that do not negotiate.
+     */
+    static final class Pcm extends VoiceCodec {
+        @Override
+        byte id() {
+            return PCM;
+        }
+
+        @Override
+        int frameBytes() {
+            return 2 * FRAME_SAMPLES;
+        }
+
+        @Override
+        int encode(short[] pcm, int samples, byte[] out, int offset) {
+            toBytes(pcm, samples, out, offset);
+            return 2 * samples;
+        }
+
+        @Override
+        int decode(byte[] in, int offset, int length, short[] pcm) {
+            int samples = Math.min(length / 2, pcm.length);
+            toSamples(in, offset, samples, pcm);
+            return samples;
+        }
+    }
+
+    /**
+     * IMA ADPCM: each sample is stored as a 4-bit step from a prediction,
+     * the step size adapting to the signal. Frames start with a 3-byte
+     * header holding the first sample and the step index, the remaining
+     * samples follow two per byte, high nibble first.
+     * [First Sample (2)] [Step Index (1)] [Nibbles]
+     */
+    static final class ImaAdpcm extends VoiceCodec {
+        private static final int HEADER = 3;
+
+        private static final int[] STEPS = {
+                7, 8, 9, 10, 11, 12, 13, 14, 16, 17, 19, 21, 23, 25, 28, 31, 34, 37, 41, 45,
+                50, 55, 60, 66, 73, 80, 88, 97, 107, 118, 130, 143, 157, 173, 190, 209, 230,
+                253, 279, 307, 337, 371, 408, 449, 494, 544, 598, 658, 724, 796, 876, 963,
+                1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066, 2272, 2499, 2749, 3024, 3327,
+                3660, 4026, 4428, 4871, 5358, 5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487,
+                12635, 13899, 15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767 };
+        private static final int[] INDEX_CHANGE = { -1, -1, -1, -1, 2, 4, 6, 8 };
+
+        private int index; // Step index carried into the next frame
+
+        @Override
+        byte id() {
+            return IMA_ADPCM;
+        }
+
+        @Override
+        int frameBytes() {
+            return HEADER + FRAME_SAMPLES / 2;
+        }
+
+        @Override
+        int encode(short[] pcm, int samples, byte[] out, int offset) {
+            if (samples == 0)
+                return 0;
+            int predictor = pcm[0];
+            out[offset] = (byte) (predictor >> 8);
+            out[offset + 1] = (byte) predictor;
+            out[offset + 2] = (byte) index;
+
+            int position = offset + HEADER;
+            for (int i = 1; i < samples; i++) {
+                int step = STEPS[index];
+                int diff = pcm[i] - predictor;
+                int nibble = 0;
+                if (diff < 0) {
+                    nibble = 8;
+                    diff = -diff;
+                }
+                // Same arithmetic as the decoder, so both track one predictor
+                int delta = step >> 3;
+                if (diff >= step) {
+                    nibble |= 4;
+                    diff -= step;
+                    delta += step;
+                }
+                step >>= 1;
+                if (diff >= step) {
+                    nibble |= 2;
+                    diff -= step;
+                    delta += step;
+                }
+                step >>= 1;
+                if (diff >= step) {
+                    nibble |= 1;
+                    delta += step;
+                }
+                predictor = clamp((nibble & 8) != 0 ? predictor - delta : predictor + delta);
+                index = Math.max(0, Math.min(STEPS.length - 1, index + INDEX_CHANGE[nibble & 7]));
+
+                if ((i & 1) == 1) {
+                    out[position] = (byte) (nibble << 4);
+                } else {
+                    out[position++] |= nibble;
+                }
+            }
+            if ((samples & 1) == 0) {
+                position++; // Last byte holds a single sample
+            }
+            return position - offset;
+        }
+
+        @Override
+        int decode(byte[] in, int offset, int length, short[] pcm) {
+            if (length < HEADER)
+                return 0;
+            int predictor = (short) ((in[offset] << 8) | (in[offset + 1] & 0xFF));
+            int stepIndex = Math.max(0, Math.min(STEPS.length - 1, in[offset + 2]));
+            int samples = Math.min(1 + 2 * (length - HEADER), pcm.length);
+            pcm[0] = (short) predictor;
+
+            for (int i = 1; i < samples; i++) {
+                int packed = in[offset + HEADER + (i - 1) / 2];
+                int nibble = (i & 1) == 1 ? (packed >> 4) & 0xF : packed & 0xF;
+                int step = STEPS[stepIndex];
+                int delta = step >> 3;
+                if ((nibble & 4) != 0)
+                    delta += step;
+                if ((nibble & 2) != 0)
+                    delta += step >> 1;
+                if ((nibble & 1) != 0)
+                    delta += step >> 2;
+                predictor = clamp((nibble & 8) != 0 ? predictor - delta : predictor + delta);
+                stepIndex = Math.max(0, Math.min(STEPS.length - 1, stepIndex + INDEX_CHANGE[nibble & 7]));
+                pcm[i] = (short) predictor;
+            }
+            return samples;
+        }
+
+        private static int clamp(int sample) {
+            return Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+        }
+    }
+}
@@ -0,0 +1,243 @@
+import bench.Relay;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Relay Benchmark Fixture
+ * The server side of bench.RelayBench: the frames, streams and in-memory
+ * clients each stage runs on, built from a fixed seed so runs on the same
+ * machine and JVM are comparable.
+ *
+ * It lives in the default package with the server, whose classes it uses
+ * directly; see bench.Relay.
+ */
+public final class RelayFixture implements Relay {
+    private static final byte TYPE_TEXT = 1;
+    private static final byte TYPE_IMAGE = 2;
+    private static final byte TYPE_VOICE_STREAM = 4;
+    private static final int SENDER = 7;
+    private static final int STREAM_BYTES = 256 * 1024; // Frames in the decode stream add up to about this much
+
+    private final byte type;
+    private final byte[] body;
+    private final int version;
+
+    // --- Decode ---
+    private final ByteBuffer stream;
+    private final ByteBuffer in;
+    private Protocol.Decoder decoder;
+
+    // --- Packet ---
+    private final Protocol.Encoder encoder = new Protocol.Encoder();
+    private final ByteBuffer header = ByteBuffer.allocate(Protocol.MAX_HEADER_SIZE);
+
+    // --- Fanout ---
+    private final Sink[] sinks;
+
+    public RelayFixture(String payload, int version, int clients) {
+        Random random = new Random(1);
+        switch (payload) {
+            case "text":
+                type = TYPE_TEXT;
+                body = chatText(random, 64);
+                break;
+            case "voice":
+                type = TYPE_VOICE_STREAM;
+                body = bytes(random, 163); // 20 ms of IMA-ADPCM
+                break;
+            case "image":
+                type = TYPE_IMAGE;
+                body = bytes(random, 64 * 1024);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown payload " + payload);
+        }
+        this.version = version;
+        encoder.setVersion(version);
+
+        int frames = Math.max(16, STREAM_BYTES / body.length);
+        stream = ByteBuffer.allocate(frames * (Protocol.MAX_HEADER_SIZE + body.length));
+        for (int i = 0; i < frames; i++) {
+            encoder.encode(stream, type, 0, 0, body.length);
+            stream.put(body);
+        }
+        stream.flip();
+        in = stream.duplicate();
+        decoder = newDecoder();
+
+        sinks = new Sink[clients];
+        for (int i = 0; i < clients; i++) {
+            sinks[i] = new Sink(i + 1);
+            Server.addClient(sinks[i]);
+        }
+    }
+
+    /**
+     * Reads a frame the way ClientHandler does: header byte by byte, then
+     * the body out of the read buffer into a pooled one. Starts the stream
+     * over at its end.
+     */
+    @Override
+    public long decode() {
+        if (!decoder.readHeader(in)) {
+            in.position(0);
+            decoder = newDecoder(); // Sequence numbers start over
+            decoder.readHeader(in);
+        }
+        BufferPool.PooledBuffer pooled = BufferPool.acquire(decoder.length);
+        ByteBuffer buffered = in.duplicate();
+        buffered.limit(buffered.position() + decoder.length);
+        pooled.buffer().put(buffered);
+        in.position(buffered.position());
+        pooled.buffer().flip();
+        long total = pooled.buffer().get(0) + decoder.type;
+        pooled.release();
+        return total;
+    }
+
+    @Override
+    public long packet() {
+        Frame frame = new Frame(type, SENDER, pooledBody());
+        long total;
+        if (version == Protocol.V1) {
+            total = frame.header().remaining();
+        } else {
+            header.clear();
+            encoder.encode(header, frame.type, 0, frame.senderId, frame.bodyLength());
+            total = header.position();
+        }
+        total += frame.body().remaining();
+        frame.release();
+        return total;
+    }
+
+    /**
+     * Broadcasts to the in-memory clients and drains every outbound queue
+     * through the connection's own batching and gathering write.
+     */
+    @Override
+    public long fanout() {
+        Frame frame = new Frame(type, SENDER, pooledBody());
+        Server.broadcast(frame, null);
+        frame.release();
+        long total = 0;
+        for (Sink client : sinks) {
+            total += client.drain();
+        }
+        return total;
+    }
+
+    @Override
+    public long callNotice(int userId) {
+        return SystemEvents.encode(SystemEvents.Kind.CALL_REQUEST, userId, userId + 1).length;
+    }
+
+    @Override
+    public void close() {
+        for (Sink client : sinks) {
+            Server.clients().remove(client);
+        }
+    }
+
+    private Protocol.Decoder newDecoder() {
+        Protocol.Decoder created = new Protocol.Decoder(Protocol.FLAG_PRIORITY);
+        created.setVersion(version);
+        return created;
+    }
+
+    private BufferPool.PooledBuffer pooledBody() {
+        BufferPool.PooledBuffer pooled = BufferPool.acquire(body.length);
+        pooled.buffer().put(body);
+        pooled.buffer().flip();
+        return pooled;
+    }
+
+    /**
+     * A connected client with no socket: its writer runs on the calling
+     * thread and writes into a channel that drops everything.
+     */
+    private static final class Sink extends Server.Connection {
+        private static final Discard DISCARD = new Discard();
+
+        Sink(int id) {
+            super(id);
+        }
+
+        long drain() {
+            long start = DISCARD.written;
+            Frame first;
+            try {
+                while ((first = outbound.poll()) != null) {
+                    fillBatch(first);
+                    while (!writeBatch(DISCARD)) {
+                        // The channel takes everything, one write does it
+                    }
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return DISCARD.written - start;
+        }
+
+        @Override
+        void onQueued() {
+        }
+
+        @Override
+        void disconnect() {
+        }
+    }
+
+    private static final class Discard implements GatheringByteChannel {
+        long written;
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            long n = 0;
+            for (int i = offset; i < offset + length; i++) {
+                n += srcs[i].remaining();
+                srcs[i].position(srcs[i].limit());
+            }
+            written += n;
+            return n;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            return (int) write(new ByteBuffer[] { src }, 0, 1);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static byte[] chatText(Random random, int length) {
+        String[] words = { "the", "call", "is", "at", "three", "see", "you", "there", "meeting", "moved", "to" };
+        StringBuilder text = new StringBuilder();
+        while (text.length() < length) {
+            text.append(words[random.nextInt(words.length)]).append(' ');
+        }
+        return text.substring(0, length).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] bytes(Random random, int length) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+}
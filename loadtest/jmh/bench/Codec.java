@@ -0,0 +1,37 @@
+package bench;
+
+/**
+ * One voice codec, as CodecBench drives it. Implemented by CodecFixture
+ * next to VoiceCodec in the default package; see Relay for why.
+ */
+public interface Codec {
+    /**
+     * Encodes the next 20 ms frame of the test signal.
+     */
+    long encode();
+
+    /**
+     * Decodes the next frame of the test signal, encoded beforehand.
+     */
+    long decode();
+
+    /**
+     * Encoded size of a full frame.
+     */
+    int frameBytes();
+
+    /**
+     * Signal-to-noise ratio of the whole test signal after a round trip
+     * through the codec, in dB.
+     */
+    double snr();
+
+    /**
+     * @param codec "Pcm" or "ImaAdpcm"
+     */
+    static Codec create(String codec) throws ReflectiveOperationException {
+        return (Codec) Class.forName("CodecFixture")
+                .getConstructor(String.class)
+                .newInstance(codec);
+    }
+}
@@ -0,0 +1,48 @@
+package bench;
+
+/**
+ * The server's relay hot path, as RelayBench drives it.
+ *
+ * JMH only runs benchmarks in a named package, and the server's classes
+ * are package-private in the default package, where no named package can
+ * reach them. RelayFixture implements this interface on the server's side
+ * and is created by name, once per trial, so nothing reflective is left
+ * in the measured calls.
+ */
+public interface Relay {
+    /**
+     * Reads the next frame of a prepared stream into a pooled buffer.
+     */
+    long decode();
+
+    /**
+     * Builds the frame the router forwards, and one recipient's header.
+     */
+    long packet();
+
+    /**
+     * Broadcasts one frame and drains every client's queue.
+     */
+    long fanout();
+
+    /**
+     * A call notice body from SystemEvents' template.
+     */
+    long callNotice(int userId);
+
+    /**
+     * Takes the fixture's clients out of the server's client registry.
+     */
+    void close();
+
+    /**
+     * @param payload "text", "voice" or "image"
+     * @param version protocol version of the decoded stream and headers
+     * @param clients in-memory clients broadcasts go to
+     */
+    static Relay create(String payload, int version, int clients) throws ReflectiveOperationException {
+        return (Relay) Class.forName("RelayFixture")
+                .getConstructor(String.class, int.class, int.class)
+                .newInstance(payload, version, clients);
+    }
+}
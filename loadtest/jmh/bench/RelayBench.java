@@ -0,0 +1,117 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Relay Benchmark
+ * Measures the server's relay hot path in process, with no sockets in the
+ * way, so the numbers depend on the code and the JVM rather than on the
+ * network. Each stage is timed per frame for text, voice and image bodies:
+ *
+ *   decode   header read and body copied into a pooled buffer, the way a
+ *            reader takes a frame off its socket (version 1 and 2 headers)
+ *   packet   forward frame built around a body, with the header a version
+ *            1 or 2 recipient gets
+ *   fanout   Server.broadcast to N in-memory clients, each of whose writers
+ *            then drains its queue into a channel that discards the bytes
+ *   notice   call notice body from SystemEvents' template, and built as a
+ *            String and encoded, as it used to be
+ *
+ * Run with -prof gc for the bytes allocated per frame
+ * (gc.alloc.rate.norm):
+ *   java -jar loadtest/target/benchmarks.jar RelayBench -prof gc
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RelayBench {
+
+    /**
+     * A stream of frames to decode, and a body to forward.
+     */
+    @State(Scope.Thread)
+    public static class Frames {
+        @Param({ "text", "voice", "image" })
+        public String payload;
+
+        @Param({ "1", "2" })
+        public int version;
+
+        Relay relay;
+
+        @Setup
+        public void setUp() throws ReflectiveOperationException {
+            relay = Relay.create(payload, version, 0);
+        }
+    }
+
+    /**
+     * In-memory clients registered with the server.
+     */
+    @State(Scope.Thread)
+    public static class Clients {
+        @Param({ "text", "voice", "image" })
+        public String payload;
+
+        @Param({ "10", "100" })
+        public int clients;
+
+        Relay relay;
+
+        @Setup
+        public void setUp() throws ReflectiveOperationException {
+            relay = Relay.create(payload, 1, clients);
+        }
+
+        @TearDown
+        public void tearDown() {
+            relay.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Notices {
+        Relay relay;
+        int user;
+
+        @Setup
+        public void setUp() throws ReflectiveOperationException {
+            relay = Relay.create("text", 1, 0);
+        }
+
+        int nextUser() {
+            return ++user & 0xFFFF;
+        }
+    }
+
+    @Benchmark
+    public long decode(Frames frames) {
+        return frames.relay.decode();
+    }
+
+    @Benchmark
+    public long packet(Frames frames) {
+        return frames.relay.packet();
+    }
+
+    @Benchmark
+    public long fanout(Clients clients) {
+        return clients.relay.fanout();
+    }
+
+    @Benchmark
+    public long noticeTemplate(Notices notices) {
+        return notices.relay.callNotice(notices.nextUser());
+    }
+
+    @Benchmark
+    public long noticeString(Notices notices) {
+        int id = notices.nextUser();
+        return ("📞 User " + id + " is calling User " + (id + 1)).getBytes(StandardCharsets.UTF_8).length;
+    }
+}
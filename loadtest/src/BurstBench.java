@@ -0,0 +1,294 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Chat Burst Benchmark
+ * Measures what the wire costs per message while many clients chat at
+ * once. Every client broadcasts short chat-like texts at a fixed rate and
+ * counts what it receives: messages, bytes and socket reads. Reads per
+ * message stand in for the TCP segments and syscalls each message costs,
+ * bytes per message for the bandwidth.
+ *
+ * Run it against the same server started with and without
+ * --coalesce-linger, and with and without --compress, to compare. --v2
+ * negotiates protocol version 2; --compress adds the compression
+ * capability (and implies --v2). With --room-size the clients are split
+ * into rooms of that many and send to their room instead of to everyone.
+ * Several ports, comma separated, spread the clients over the nodes of a
+ * cluster.
+ *
+ * Usage: java BurstBench [--host=127.0.0.1] [--port=8889] [--clients=20]
+ *                        [--rate=50] [--size=400] [--duration=10]
+ *                        [--v2] [--compress] [--room-size=N]
+ */
+public class BurstBench {
+    // --- Protocol Constants ---
+    private static final byte TYPE_TEXT = 1;
+    private static final byte TYPE_ROOM = 19;
+
+    // Marks benchmark messages so system messages are not counted
+    private static final byte[] MAGIC = { 'B', 'B' };
+    private static final String[] WORDS = { "the", "call", "is", "at", "three", "see", "you", "there", "sounds",
+            "good", "meeting", "moved", "to", "room", "four", "can", "someone", "send", "the", "slides", "thanks",
+            "for", "update", "I", "will", "be", "late", "by", "ten", "minutes", "lunch", "today", "ok" };
+
+    private static String host = "127.0.0.1";
+    private static int[] ports = { 8889 }; // Clients take turns
+    private static int clientCount = 20;
+    private static int rate = 50; // Messages per second per client
+    private static int size = 400; // Body size in bytes
+    private static int duration = 10; // Seconds
+    private static int version = Protocol.V1;
+    private static int capabilities = 0;
+    private static int roomSize = 0; // Clients per room, 0 = everyone in one broadcast
+
+    // --- Statistics, reset when the measurement starts ---
+    private static final LongAdder delivered = new LongAdder();
+    private static final LongAdder reads = new LongAdder(); // Socket reads that returned data
+    private static final LongAdder bytesRead = new LongAdder();
+    private static final LongAdder latencySum = new LongAdder();
+    private static final AtomicLong latencyMax = new AtomicLong();
+    private static final LongAdder sent = new LongAdder();
+
+    private static volatile boolean running = true;
+
+    public static void main(String[] args) throws Exception {
+        for (String arg : args) {
+            if (arg.startsWith("--host=")) {
+                host = arg.substring("--host=".length());
+            } else if (arg.startsWith("--port=")) {
+                ports = Arrays.stream(arg.substring("--port=".length()).split(",")).mapToInt(Integer::parseInt).toArray();
+            } else if (arg.startsWith("--clients=")) {
+                clientCount = Math.max(2, Integer.parseInt(arg.substring("--clients=".length())));
+            } else if (arg.startsWith("--rate=")) {
+                rate = Integer.parseInt(arg.substring("--rate=".length()));
+            } else if (arg.startsWith("--size=")) {
+                size = Math.max(MAGIC.length + 8, Integer.parseInt(arg.substring("--size=".length())));
+            } else if (arg.startsWith("--duration=")) {
+                duration = Integer.parseInt(arg.substring("--duration=".length()));
+            } else if (arg.equals("--v2")) {
+                version = Protocol.V2;
+            } else if (arg.equals("--compress")) {
+                version = Protocol.V2;
+                capabilities = Protocol.CAP_COMPRESSION;
+            } else if (arg.startsWith("--room-size=")) {
+                roomSize = Math.max(2, Integer.parseInt(arg.substring("--room-size=".length())));
+            }
+        }
+        System.out.println("Burst benchmark: " + clientCount + " clients, " + rate + " msg/s each, " + size
+                + " byte texts, protocol v" + version + (capabilities != 0 ? " with compression" : "")
+                + (roomSize > 0 ? ", rooms of " + roomSize : ""));
+
+        List<Peer> peers = new ArrayList<>();
+        for (int i = 0; i < clientCount; i++) {
+            Peer peer = new Peer(ports[i % ports.length], roomSize > 0 ? "bench-" + i / roomSize : null);
+            peers.add(peer);
+            Thread reader = new Thread(peer::readLoop);
+            reader.setDaemon(true);
+            reader.start();
+        }
+        for (Peer peer : peers) {
+            Thread sender = new Thread(peer::sendLoop);
+            sender.setDaemon(true);
+            sender.start();
+        }
+
+        Thread.sleep(1000); // Warm up, then measure from a clean slate
+        delivered.reset();
+        reads.reset();
+        bytesRead.reset();
+        latencySum.reset();
+        latencyMax.set(0);
+        sent.reset();
+        long start = System.nanoTime();
+        Thread.sleep(duration * 1000L);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        running = false;
+
+        long messages = delivered.sum();
+        System.out.println("--- Summary ---");
+        System.out.printf("Sent:            %.0f msg/s%n", sent.sum() / seconds);
+        System.out.printf("Delivered:       %.0f msg/s%n", messages / seconds);
+        System.out.printf("Reads per msg:   %.3f%n", messages == 0 ? 0 : reads.sum() / (double) messages);
+        System.out.printf("Bytes per msg:   %.1f%n", messages == 0 ? 0 : bytesRead.sum() / (double) messages);
+        System.out.printf("Latency:         avg %.2f ms, max %.2f ms%n",
+                messages == 0 ? 0 : latencySum.sum() / (double) messages / 1e6, latencyMax.get() / 1e6);
+        System.exit(0);
+    }
+
+    /**
+     * Chat-like text of the given size: words from a small vocabulary, the
+     * way real messages repeat themselves.
+     */
+    private static byte[] chatText(int length) {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < length) {
+            text.append(WORDS[ThreadLocalRandom.current().nextInt(WORDS.length)]).append(' ');
+        }
+        return text.substring(0, length).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * One client: a blocking channel read into one buffer, so every read
+     * that returns data is counted.
+     */
+    private static class Peer {
+        private final SocketChannel channel;
+        private final Protocol.Encoder encoder = new Protocol.Encoder();
+        private final Protocol.Decoder decoder = new Protocol.Decoder(
+                Protocol.FLAG_PRIORITY | Protocol.FLAG_CHUNKED | Protocol.FLAG_COMPRESSED);
+        private final ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+        private final ByteBuffer header = ByteBuffer.allocate(Protocol.MAX_HEADER_SIZE);
+        private int target; // Room ID, or 0 for everyone
+
+        Peer(int port, String room) throws IOException {
+            channel = SocketChannel.open(new InetSocketAddress(host, port));
+            channel.socket().setTcpNoDelay(true);
+            in.flip();
+            if (version > Protocol.V1) {
+                hello();
+            }
+            if (room != null) {
+                join(room);
+            }
+        }
+
+        /**
+         * Sends the hello and skips everything up to the answer.
+         */
+        private void hello() throws IOException {
+            ByteBuffer request = ByteBuffer.allocate(Protocol.V1_HEADER_SIZE + 5);
+            request.put(Protocol.TYPE_HELLO).putInt(0).putInt(5).put((byte) version).putInt(capabilities);
+            request.flip();
+            write(request);
+            while (true) {
+                byte[] body = readFrame();
+                if (decoder.type == Protocol.TYPE_HELLO && decoder.peer == 0) {
+                    encoder.setVersion(body[0]);
+                    decoder.setVersion(body[0]);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Joins the room and waits for its ID.
+         */
+        private void join(String room) throws IOException {
+            byte[] name = room.getBytes(StandardCharsets.UTF_8);
+            header.clear();
+            encoder.encode(header, TYPE_ROOM, 0, 0, name.length);
+            header.flip();
+            write(header, ByteBuffer.wrap(name));
+            while (target == 0) {
+                byte[] body = readFrame();
+                if (decoder.type == TYPE_ROOM && decoder.peer == 0 && body.length >= 4) {
+                    target = ByteBuffer.wrap(body).getInt();
+                    if (target == 0)
+                        throw new IOException("Room " + room + " was refused");
+                }
+            }
+        }
+
+        void sendLoop() {
+            long interval = 1_000_000_000L / Math.max(1, rate);
+            long next = System.nanoTime() + ThreadLocalRandom.current().nextLong(interval);
+            byte[] body = chatText(size);
+            System.arraycopy(MAGIC, 0, body, 0, MAGIC.length);
+            try {
+                while (running) {
+                    long wait = next - System.nanoTime();
+                    if (wait > 0)
+                        Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                    next += interval;
+
+                    ByteBuffer.wrap(body, MAGIC.length, 8).putLong(System.nanoTime());
+                    byte[] payload = body;
+                    int flags = 0;
+                    if ((capabilities & Protocol.CAP_COMPRESSION) != 0 && Protocol.isCompressible(TYPE_TEXT, body.length)) {
+                        byte[] compressed = Protocol.compress(body, 0, body.length);
+                        if (compressed != null) {
+                            payload = compressed;
+                            flags = Protocol.FLAG_COMPRESSED;
+                        }
+                    }
+                    header.clear();
+                    encoder.encode(header, TYPE_TEXT, flags, target, payload.length);
+                    header.flip();
+                    write(header, ByteBuffer.wrap(payload));
+                    sent.increment();
+                }
+            } catch (IOException | InterruptedException e) {
+                // Connection lost, the reader notices too
+            }
+        }
+
+        void readLoop() {
+            try {
+                while (running) {
+                    byte[] body = readFrame();
+                    if (body.length >= MAGIC.length + 8 && body[0] == MAGIC[0] && body[1] == MAGIC[1]) {
+                        long latency = System.nanoTime() - ByteBuffer.wrap(body, MAGIC.length, 8).getLong();
+                        delivered.increment();
+                        latencySum.add(latency);
+                        latencyMax.accumulateAndGet(latency, Math::max);
+                    }
+                }
+            } catch (IOException e) {
+                if (running)
+                    System.out.println("Connection lost: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Reads the next frame's body, inflated if it was compressed.
+         */
+        private byte[] readFrame() throws IOException {
+            while (!decoder.readHeader(in)) {
+                fill();
+            }
+            if (decoder.error() != null)
+                throw new IOException(decoder.error());
+            byte[] body = new byte[decoder.length];
+            int filled = 0;
+            while (filled < body.length) {
+                if (!in.hasRemaining()) {
+                    fill();
+                }
+                int n = Math.min(in.remaining(), body.length - filled);
+                in.get(body, filled, n);
+                filled += n;
+            }
+            if ((decoder.flags & Protocol.FLAG_COMPRESSED) != 0)
+                return Protocol.decompress(body, 0, body.length, 1024 * 1024);
+            return body;
+        }
+
+        private void fill() throws IOException {
+            in.clear();
+            int n = channel.read(in);
+            in.flip();
+            if (n < 0)
+                throw new EOFException();
+            reads.increment();
+            bytesRead.add(n);
+        }
+
+        private synchronized void write(ByteBuffer... buffers) throws IOException {
+            long remaining = 0;
+            for (ByteBuffer buffer : buffers) {
+                remaining += buffer.remaining();
+            }
+            while (remaining > 0) {
+                remaining -= channel.write(buffers);
+            }
+        }
+    }
+}
@@ -0,0 +1,647 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load Test
+ * Headless clients that connect to a running Server and replay a mix of
+ * chat traffic at a fixed rate, reporting how many connections the server
+ * sustains, how many messages per second it delivers and how long delivery
+ * takes.
+ *
+ * Each client picks its next action by weight from --mix: a text, an image
+ * or a voice note, a 1:1 call or a group call. A call sends a request,
+ * streams 20 ms voice frames for --call-seconds and hangs up; the client
+ * called accepts, as a user would, and a user on a call sends nothing else.
+ * Group call audio comes back mixed by the server, so it is counted but has
+ * no latency of its own. Every other body carries its send time, and
+ * delivery latency goes into a histogram per kind of traffic, reported as
+ * percentiles and, with --hgrm, written in HdrHistogram's percentile
+ * distribution format for plotting.
+ *
+ * With --churn a number of clients per second disconnect and are replaced
+ * by new ones, and connect times are recorded the same way. Messages to a
+ * client that has left are lost, as they would be.
+ *
+ * Usage: java LoadTest [--host=127.0.0.1] [--port=8889] [--clients=500]
+ *                      [--rate=10] [--size=64] [--duration=30] [--broadcast]
+ *                      [--mix=text:80,image:5,note:5,call:8,group:2]
+ *                      [--image-size=65536] [--note-size=16384]
+ *                      [--call-seconds=5] [--churn=N] [--hgrm=PREFIX]
+ */
+public class LoadTest {
+    // --- Protocol Constants ---
+    private static final byte TYPE_TEXT = 1;
+    private static final byte TYPE_IMAGE = 2;
+    private static final byte TYPE_AUDIO = 3;
+    private static final byte TYPE_VOICE_STREAM = 4;
+    private static final byte TYPE_CALL_REQUEST = 6;
+    private static final byte TYPE_CALL_ACCEPT = 7;
+    private static final byte TYPE_CALL_END = 9;
+    private static final byte TYPE_GROUP_CALL_REQUEST = 10;
+    private static final int VOICE_FRAME_BYTES = 640; // 20 ms of 16 kHz PCM
+    private static final long VOICE_FRAME_NANOS = 20_000_000L;
+
+    // Marks load test messages so system messages are not counted
+    private static final byte[] MAGIC = { 'L', 'T' };
+
+    /**
+     * What a client can do next, and what its deliveries are counted as.
+     */
+    private enum Kind {
+        TEXT, IMAGE, NOTE, CALL, GROUP, CONNECT;
+
+        final LongAdder sent = new LongAdder();
+        final LongAdder delivered = new LongAdder();
+        final Histogram latency = new Histogram();
+
+        String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private static String host = "127.0.0.1";
+    private static int port = 8889;
+    private static int clientCount = 500;
+    private static int rate = 10; // Actions per second per client
+    private static int size = 64; // Text body size in bytes
+    private static int imageSize = 64 * 1024;
+    private static int noteSize = 16 * 1024;
+    private static int callSeconds = 5;
+    private static int duration = 30; // Seconds
+    private static boolean broadcast = false;
+    private static int[] weights = new int[Kind.values().length]; // Per kind, out of their sum
+    private static int churn = 0; // Reconnects per second
+    private static String hgrmPrefix;
+
+    // --- Statistics ---
+    private static final AtomicInteger connected = new AtomicInteger();
+    private static final AtomicInteger failed = new AtomicInteger();
+    private static final AtomicInteger lost = new AtomicInteger(); // Dropped by the server side
+    private static final AtomicInteger reconnects = new AtomicInteger();
+
+    private static volatile boolean running = true;
+    private static volatile int firstId = -1;
+    private static volatile int lastId = -1;
+    private static ExecutorService threads;
+
+    public static void main(String[] args) throws Exception {
+        weights[Kind.TEXT.ordinal()] = 1;
+        for (String arg : args) {
+            if (arg.startsWith("--host=")) {
+                host = arg.substring("--host=".length());
+            } else if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring("--port=".length()));
+            } else if (arg.startsWith("--clients=")) {
+                clientCount = Integer.parseInt(arg.substring("--clients=".length()));
+            } else if (arg.startsWith("--rate=")) {
+                rate = Integer.parseInt(arg.substring("--rate=".length()));
+            } else if (arg.startsWith("--size=")) {
+                size = Math.max(MAGIC.length + 8, Integer.parseInt(arg.substring("--size=".length())));
+            } else if (arg.startsWith("--image-size=")) {
+                imageSize = Math.max(MAGIC.length + 8, Integer.parseInt(arg.substring("--image-size=".length())));
+            } else if (arg.startsWith("--note-size=")) {
+                noteSize = Math.max(MAGIC.length + 8, Integer.parseInt(arg.substring("--note-size=".length())));
+            } else if (arg.startsWith("--call-seconds=")) {
+                callSeconds = Integer.parseInt(arg.substring("--call-seconds=".length()));
+            } else if (arg.startsWith("--duration=")) {
+                duration = Integer.parseInt(arg.substring("--duration=".length()));
+            } else if (arg.equals("--broadcast")) {
+                broadcast = true;
+            } else if (arg.startsWith("--mix=")) {
+                parseMix(arg.substring("--mix=".length()));
+            } else if (arg.startsWith("--churn=")) {
+                churn = Integer.parseInt(arg.substring("--churn=".length()));
+            } else if (arg.startsWith("--hgrm=")) {
+                hgrmPrefix = arg.substring("--hgrm=".length());
+            }
+        }
+
+        threads = newVirtualThreadExecutor();
+        String threadKind = threads != null ? "virtual" : "platform";
+        if (threads == null) {
+            threads = Executors.newCachedThreadPool();
+        }
+        System.out.println("Load test: " + clientCount + " clients, " + rate + " actions/s each (" + mixString()
+                + "), " + size + " byte texts, " + (broadcast ? "broadcast" : "direct") + ", " + threadKind
+                + " threads" + (churn > 0 ? ", " + churn + " reconnects/s" : ""));
+
+        // --- Connect ---
+        // Clients connect one after another, so the server hands out
+        // consecutive IDs and only the first and last need to be discovered.
+        List<SimClient> clients = new ArrayList<>();
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < clientCount; i++) {
+            try {
+                SimClient client = new SimClient();
+                clients.add(client);
+                threads.execute(client::readLoop);
+            } catch (IOException e) {
+                failed.incrementAndGet();
+            }
+        }
+        long connectMillis = (System.nanoTime() - connectStart) / 1_000_000;
+        System.out.println("Connected " + connected.get() + " clients in " + connectMillis + " ms (" + failed.get()
+                + " failed)");
+        if (clients.size() < 2) {
+            System.out.println("Need at least two connected clients");
+            System.exit(1);
+        }
+
+        // Calls need someone to call even when texts are broadcast
+        if (!broadcast || weights[Kind.CALL.ordinal()] > 0) {
+            clients.get(0).announce();
+            clients.get(clients.size() - 1).announce();
+            long deadline = System.currentTimeMillis() + 5000;
+            while ((firstId < 0 || lastId < 0) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            if (firstId < 0 || lastId < 0) {
+                System.out.println("Could not discover client IDs");
+                System.exit(1);
+            }
+        }
+
+        // --- Run ---
+        Kind.CONNECT.latency.reset(); // Churn only from here on
+        for (SimClient client : clients) {
+            threads.execute(client::sendLoop);
+        }
+        if (churn > 0) {
+            Thread churner = new Thread(() -> churnLoop(clients));
+            churner.setDaemon(true);
+            churner.start();
+        }
+
+        long start = System.nanoTime();
+        long lastSent = 0, lastDelivered = 0;
+        for (int second = 1; second <= duration; second++) {
+            Thread.sleep(1000);
+            long s = total(true), d = total(false);
+            System.out.printf("[%3ds] connected=%d sent/s=%d delivered/s=%d p99 latency=%.2f ms%s%n", second,
+                    connected.get(), s - lastSent, d - lastDelivered, Kind.TEXT.latency.percentile(99) / 1e3,
+                    churn > 0 ? " reconnects=" + reconnects.get() : "");
+            lastSent = s;
+            lastDelivered = d;
+        }
+        running = false;
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.println("--- Summary ---");
+        System.out.printf("Connections sustained: %d of %d (%d lost)%n", connected.get(), clientCount, lost.get());
+        if (churn > 0) {
+            System.out.printf("Churn:     %d reconnects, %d failed%n", reconnects.get(), failed.get());
+        }
+        System.out.printf("%-8s %10s %12s %9s %9s %9s %9s%n",
+                "kind", "sent/s", "delivered/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (Kind kind : Kind.values()) {
+            Histogram latency = kind.latency;
+            if (kind.sent.sum() == 0 && kind.delivered.sum() == 0 && latency.count() == 0)
+                continue;
+            if (latency.count() == 0) {
+                System.out.printf("%-8s %10.0f %12.0f %9s %9s %9s %9s%n", kind.label(),
+                        kind.sent.sum() / seconds, kind.delivered.sum() / seconds, "-", "-", "-", "-");
+            } else {
+                System.out.printf("%-8s %10.0f %12.0f %9.2f %9.2f %9.2f %9.2f%n", kind.label(),
+                        kind.sent.sum() / seconds, kind.delivered.sum() / seconds, latency.percentile(50) / 1e3,
+                        latency.percentile(99) / 1e3, latency.percentile(99.9) / 1e3, latency.max() / 1e3);
+            }
+            if (hgrmPrefix != null && latency.count() > 0) {
+                try (PrintStream out = new PrintStream(new FileOutputStream(hgrmPrefix + "-" + kind.label() + ".hgrm"))) {
+                    latency.writePercentiles(out, 1000.0);
+                }
+            }
+        }
+
+        synchronized (clients) {
+            for (SimClient client : clients) {
+                client.close();
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Reads weights like "text:80,image:5,call:15"; kinds left out get none.
+     */
+    private static void parseMix(String mix) {
+        Arrays.fill(weights, 0);
+        for (String part : mix.split(",")) {
+            String[] entry = part.split(":");
+            Kind kind = Kind.valueOf(entry[0].trim().toUpperCase(Locale.ROOT));
+            if (kind == Kind.CONNECT)
+                throw new IllegalArgumentException("Not a kind of traffic: " + entry[0]);
+            weights[kind.ordinal()] = entry.length > 1 ? Integer.parseInt(entry[1].trim()) : 1;
+        }
+    }
+
+    private static String mixString() {
+        StringBuilder mix = new StringBuilder();
+        for (Kind kind : Kind.values()) {
+            if (weights[kind.ordinal()] > 0) {
+                mix.append(mix.length() > 0 ? "," : "").append(kind.label()).append(':').append(weights[kind.ordinal()]);
+            }
+        }
+        return mix.toString();
+    }
+
+    private static Kind nextKind() {
+        int sum = 0;
+        for (int weight : weights) {
+            sum += weight;
+        }
+        int pick = ThreadLocalRandom.current().nextInt(sum);
+        for (Kind kind : Kind.values()) {
+            pick -= weights[kind.ordinal()];
+            if (pick < 0)
+                return kind;
+        }
+        return Kind.TEXT;
+    }
+
+    private static long total(boolean sent) {
+        long total = 0;
+        for (Kind kind : Kind.values()) {
+            total += sent ? kind.sent.sum() : kind.delivered.sum();
+        }
+        return total;
+    }
+
+    /**
+     * Replaces a random client with a new connection, churn times a second.
+     */
+    private static void churnLoop(List<SimClient> clients) {
+        long interval = 1_000_000_000L / churn;
+        long next = System.nanoTime();
+        try {
+            while (running) {
+                next += interval;
+                long wait = next - System.nanoTime();
+                if (wait > 0)
+                    Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                int index = ThreadLocalRandom.current().nextInt(clients.size());
+                SimClient old;
+                synchronized (clients) {
+                    old = clients.get(index);
+                }
+                old.close();
+                try {
+                    SimClient client = new SimClient();
+                    synchronized (clients) {
+                        clients.set(index, client);
+                    }
+                    threads.execute(client::readLoop);
+                    threads.execute(client::sendLoop);
+                    reconnects.incrementAndGet();
+                } catch (IOException e) {
+                    failed.incrementAndGet();
+                }
+            }
+        } catch (InterruptedException e) {
+            // Test is over
+        }
+    }
+
+    /**
+     * Same reflective lookup as Server: virtual threads when the JDK has them.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * One simulated user speaking the chat protocol.
+     */
+    private static class SimClient {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final OutputStream out;
+        private final boolean first = connected.get() == 0;
+        private volatile boolean closed; // Closed on purpose, not lost
+
+        SimClient() throws IOException {
+            long start = System.nanoTime();
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = socket.getOutputStream();
+            Kind.CONNECT.latency.record(System.nanoTime() - start);
+            connected.incrementAndGet();
+        }
+
+        void announce() throws IOException {
+            send(TYPE_TEXT, 0, new byte[] { 'H', first ? (byte) 'F' : (byte) 'L' });
+        }
+
+        void readLoop() {
+            try {
+                while (true) {
+                    byte type = in.readByte();
+                    int senderId = in.readInt();
+                    int length = in.readInt();
+                    byte[] body = new byte[length];
+                    in.readFully(body);
+
+                    if (type == TYPE_TEXT && length == 2 && body[0] == 'H') {
+                        if (body[1] == 'F')
+                            firstId = senderId;
+                        else
+                            lastId = senderId;
+                    } else if (type == TYPE_CALL_REQUEST && senderId > 0) {
+                        send(TYPE_CALL_ACCEPT, senderId, new byte[0]);
+                    } else if (type == TYPE_VOICE_STREAM && senderId == 0) {
+                        Kind.GROUP.delivered.increment(); // Mixed, the senders' stamps are gone
+                    } else if (type == TYPE_VOICE_STREAM) {
+                        delivered(Kind.CALL, body, 5); // After [Seq (4)] [Codec (1)]
+                    } else if (type == TYPE_TEXT || type == TYPE_IMAGE || type == TYPE_AUDIO) {
+                        delivered(type == TYPE_TEXT ? Kind.TEXT : type == TYPE_IMAGE ? Kind.IMAGE : Kind.NOTE, body, 0);
+                    }
+                }
+            } catch (IOException e) {
+                connected.decrementAndGet();
+                if (running && !closed)
+                    lost.incrementAndGet();
+            }
+        }
+
+        private void delivered(Kind kind, byte[] body, int offset) {
+            if (body.length >= offset + MAGIC.length + 8 && body[offset] == MAGIC[0] && body[offset + 1] == MAGIC[1]) {
+                kind.delivered.increment();
+                kind.latency.record(System.nanoTime() - readLong(body, offset + MAGIC.length));
+            }
+        }
+
+        void sendLoop() {
+            long interval = 1_000_000_000L / Math.max(1, rate);
+            long next = System.nanoTime() + ThreadLocalRandom.current().nextLong(interval);
+            byte[] text = stamped(size);
+            byte[] image = weights[Kind.IMAGE.ordinal()] > 0 ? stamped(imageSize) : null;
+            byte[] note = weights[Kind.NOTE.ordinal()] > 0 ? stamped(noteSize) : null;
+            try {
+                while (running && !closed) {
+                    long wait = next - System.nanoTime();
+                    if (wait > 0)
+                        Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                    next += interval;
+
+                    Kind kind = nextKind();
+                    switch (kind) {
+                        case IMAGE:
+                            sendStamped(TYPE_IMAGE, image, Kind.IMAGE);
+                            break;
+                        case NOTE:
+                            sendStamped(TYPE_AUDIO, note, Kind.NOTE);
+                            break;
+                        case CALL:
+                            call(randomTarget());
+                            next = Math.max(next, System.nanoTime()); // No catching up on what the call took
+                            break;
+                        case GROUP:
+                            call(0);
+                            next = Math.max(next, System.nanoTime());
+                            break;
+                        default:
+                            sendStamped(TYPE_TEXT, text, Kind.TEXT);
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                // Connection lost, reader accounts for it
+            }
+        }
+
+        private int randomTarget() {
+            return ThreadLocalRandom.current().nextInt(firstId, lastId + 1);
+        }
+
+        private void sendStamped(byte type, byte[] body, Kind kind) throws IOException {
+            writeLong(body, MAGIC.length, System.nanoTime());
+            send(type, broadcast ? 0 : randomTarget(), body);
+            kind.sent.increment();
+        }
+
+        /**
+         * Rings the target, or starts a group call with target 0, streams
+         * voice for callSeconds and hangs up.
+         */
+        private void call(int targetId) throws IOException, InterruptedException {
+            Kind kind = targetId == 0 ? Kind.GROUP : Kind.CALL;
+            send(targetId == 0 ? TYPE_GROUP_CALL_REQUEST : TYPE_CALL_REQUEST, targetId, new byte[0]);
+            // [Seq (4)] [Codec (1), PCM] [Audio], the stamp at the start of the audio
+            byte[] frame = new byte[5 + VOICE_FRAME_BYTES];
+            frame[5] = MAGIC[0];
+            frame[6] = MAGIC[1];
+            long start = System.nanoTime();
+            long frames = callSeconds * 1_000_000_000L / VOICE_FRAME_NANOS;
+            try {
+                for (int seq = 0; seq < frames && running && !closed; seq++) {
+                    long wait = start + seq * VOICE_FRAME_NANOS - System.nanoTime();
+                    if (wait > 0)
+                        Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                    writeInt(frame, 0, seq);
+                    writeLong(frame, 5 + MAGIC.length, System.nanoTime());
+                    send(TYPE_VOICE_STREAM, targetId, frame);
+                    kind.sent.increment();
+                }
+            } finally {
+                if (!closed) {
+                    send(TYPE_CALL_END, targetId, new byte[0]);
+                }
+            }
+        }
+
+        private synchronized void send(byte type, int targetId, byte[] body) throws IOException {
+            byte[] packet = new byte[9 + body.length];
+            packet[0] = type;
+            writeInt(packet, 1, targetId);
+            writeInt(packet, 5, body.length);
+            System.arraycopy(body, 0, packet, 9, body.length);
+            out.write(packet);
+        }
+
+        void close() {
+            closed = true;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    private static byte[] stamped(int length) {
+        byte[] body = new byte[length];
+        System.arraycopy(MAGIC, 0, body, 0, MAGIC.length);
+        return body;
+    }
+
+    /**
+     * Latency histogram in the manner of HdrHistogram: buckets widen as the
+     * values grow, so every value is kept to within 1% from a microsecond up
+     * to days in a few kilobytes. Values are recorded in microseconds, from
+     * any number of threads at once.
+     */
+    private static final class Histogram {
+        private static final int SUB_BITS = 7;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS; // Exact below this, then 64 per power of two
+        private static final int HALF = SUB_BUCKETS / 2;
+        private static final long MAX_VALUE = (1L << 40) - 1;
+
+        private final AtomicLongArray counts = new AtomicLongArray(SUB_BUCKETS + (40 - SUB_BITS + 1) * HALF);
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            long micros = Math.min(MAX_VALUE, Math.max(0, nanos / 1000));
+            counts.incrementAndGet(index(micros));
+            max.accumulateAndGet(micros, Math::max);
+        }
+
+        void reset() {
+            for (int i = 0; i < counts.length(); i++) {
+                counts.set(i, 0);
+            }
+            max.set(0);
+        }
+
+        long count() {
+            long count = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                count += counts.get(i);
+            }
+            return count;
+        }
+
+        /**
+         * Largest value recorded, in microseconds.
+         */
+        long max() {
+            return max.get();
+        }
+
+        /**
+         * The value at or below which the given percentage of values fall,
+         * in microseconds.
+         */
+        long percentile(double percent) {
+            long[] snapshot = snapshot();
+            long total = 0;
+            for (long count : snapshot) {
+                total += count;
+            }
+            return total == 0 ? 0 : Math.min(max(), valueAt(snapshot, Math.max(1, (long) Math.ceil(percent / 100 * total))));
+        }
+
+        /**
+         * Writes the percentile distribution the way HdrHistogram's
+         * outputPercentileDistribution does, with five ticks per halving of
+         * the distance to 100%, so its plotting tools read it.
+         *
+         * @param scale microseconds per unit written, 1000 for milliseconds
+         */
+        void writePercentiles(PrintStream out, double scale) {
+            long[] snapshot = snapshot();
+            long total = 0;
+            double sum = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                total += snapshot[i];
+                sum += (double) snapshot[i] * highest(i);
+            }
+            double mean = total == 0 ? 0 : sum / total;
+            double squares = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                squares += snapshot[i] * Math.pow(highest(i) - mean, 2);
+            }
+
+            out.format(Locale.US, "%12s %14s %10s %14s%n%n", "Value", "Percentile", "TotalCount", "1/(1-Percentile)");
+            double percent = 0;
+            while (total > 0) {
+                long rank = Math.max(1, (long) Math.ceil(percent / 100 * total));
+                long value = valueAt(snapshot, rank);
+                long below = countAtOrBelow(snapshot, value);
+                if (below >= total) {
+                    out.format(Locale.US, "%12.3f %2.12f %10d%n", Math.min(value, max()) / scale, 1.0, total);
+                    break;
+                }
+                out.format(Locale.US, "%12.3f %2.12f %10d %14.2f%n", value / scale, percent / 100, below,
+                        1 / (1 - percent / 100));
+                long halfDistance = 1L << ((int) (Math.log(100 / (100 - percent)) / Math.log(2)) + 1);
+                percent += 100.0 / (5 * halfDistance);
+            }
+            out.format(Locale.US, "#[Mean    = %12.3f, StdDeviation   = %12.3f]%n", mean / scale,
+                    total == 0 ? 0 : Math.sqrt(squares / total) / scale);
+            out.format(Locale.US, "#[Max     = %12.3f, Total count    = %12d]%n", max() / scale, total);
+            out.format(Locale.US, "#[Buckets = %12d, SubBuckets     = %12d]%n", counts.length() / HALF, SUB_BUCKETS);
+        }
+
+        private long[] snapshot() {
+            long[] snapshot = new long[counts.length()];
+            for (int i = 0; i < snapshot.length; i++) {
+                snapshot[i] = counts.get(i);
+            }
+            return snapshot;
+        }
+
+        private static long valueAt(long[] snapshot, long rank) {
+            long seen = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                seen += snapshot[i];
+                if (seen >= rank)
+                    return highest(i);
+            }
+            return highest(snapshot.length - 1);
+        }
+
+        private static long countAtOrBelow(long[] snapshot, long value) {
+            long count = 0;
+            for (int i = 0; i <= index(value); i++) {
+                count += snapshot[i];
+            }
+            return count;
+        }
+
+        private static int index(long value) {
+            if (value < SUB_BUCKETS)
+                return (int) value;
+            int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+            return SUB_BUCKETS + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+        }
+
+        /**
+         * Largest value that falls in the bucket.
+         */
+        private static long highest(int index) {
+            if (index < SUB_BUCKETS)
+                return index;
+            int shift = (index - SUB_BUCKETS) / HALF + 1;
+            long sub = (index - SUB_BUCKETS) % HALF + HALF;
+            return ((sub + 1) << shift) - 1;
+        }
+    }
+
+    private static void writeInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    private static void writeLong(byte[] b, int off, long v) {
+        writeInt(b, off, (int) (v >>> 32));
+        writeInt(b, off + 4, (int) v);
+    }
+
+    private static long readLong(byte[] b, int off) {
+        long v = 0;
+        for (int i = 0; i < 8; i++)
+            v = (v << 8) | (b[off + i] & 0xFF);
+        return v;
+    }
+}
@@ -0,0 +1,233 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Offline Mailbox Test
+ * Checks that a user who is away gets every direct message on its next
+ * login, in order, when there are far more of them than fit in memory.
+ *
+ * A recipient logs in under a fresh name, keeps its token and disconnects.
+ * A sender then sends it --messages numbered texts of --size bytes, and
+ * sends one more to itself as a marker: once that comes back the server
+ * has stored everything before it. The recipient logs in again with its
+ * token and reads until every message has arrived or the server has gone
+ * quiet for --timeout seconds. Each message must arrive exactly once, in
+ * the order sent. Reads are counted on a raw socket, as in BurstBench, to
+ * show how the messages arrive in batches.
+ *
+ * The mailbox is only used for messages the message log does not have, so
+ * start the server without --log-dir, and with a small --mailbox-memory so
+ * the mailbox spills to disk:
+ *   java Server --mailbox-memory=1048576
+ *
+ * Usage: java MailboxTest [--host=127.0.0.1] [--port=8889] [--messages=5000]
+ *                         [--size=1000] [--timeout=10]
+ * Exits with status 1 if a message is missing, repeated or out of order.
+ */
+public class MailboxTest {
+    // --- Protocol Constants ---
+    private static final byte TYPE_TEXT = 1;
+    private static final byte TYPE_LOGIN = 17;
+    private static final int TOKEN_LENGTH = 16;
+
+    // Marks test messages so system messages are not counted
+    private static final byte[] MAGIC = { 'M', 'B' };
+
+    private static String host = "127.0.0.1";
+    private static int port = 8889;
+    private static int messages = 5000;
+    private static int size = 1000; // Body size in bytes
+    private static int timeout = 10; // Seconds without a message before giving up
+
+    public static void main(String[] args) throws Exception {
+        for (String arg : args) {
+            if (arg.startsWith("--host=")) {
+                host = arg.substring("--host=".length());
+            } else if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring("--port=".length()));
+            } else if (arg.startsWith("--messages=")) {
+                messages = Integer.parseInt(arg.substring("--messages=".length()));
+            } else if (arg.startsWith("--size=")) {
+                size = Math.max(MAGIC.length + 4, Integer.parseInt(arg.substring("--size=".length())));
+            } else if (arg.startsWith("--timeout=")) {
+                timeout = Integer.parseInt(arg.substring("--timeout=".length()));
+            }
+        }
+        String run = Integer.toHexString(ThreadLocalRandom.current().nextInt());
+        System.out.println("Mailbox test: " + messages + " messages of " + size + " bytes ("
+                + (long) messages * size / 1024 + " KB) to user mb-" + run);
+
+        // --- Register the Recipient ---
+        Peer recipient = new Peer();
+        byte[] answer = recipient.login("mb-" + run, null);
+        if (answer.length != 4 + TOKEN_LENGTH) {
+            fail("Name mb-" + run + " was refused");
+        }
+        int recipientId = ByteBuffer.wrap(answer).getInt();
+        byte[] token = Arrays.copyOfRange(answer, 4, answer.length);
+        recipient.close();
+
+        // --- Fill the Mailbox ---
+        // The sender logs in too, to learn the ID its marker comes back to
+        Peer sender = new Peer();
+        answer = sender.login("mb-" + run + "-sender", null);
+        if (answer.length < 4) {
+            fail("Sender name was refused");
+        }
+        int senderId = ByteBuffer.wrap(answer).getInt();
+        byte[] body = new byte[size];
+        ThreadLocalRandom.current().nextBytes(body);
+        System.arraycopy(MAGIC, 0, body, 0, MAGIC.length);
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            ByteBuffer.wrap(body, MAGIC.length, 4).putInt(i);
+            sender.send(TYPE_TEXT, recipientId, body);
+        }
+        ByteBuffer.wrap(body, MAGIC.length, 4).putInt(-1);
+        sender.send(TYPE_TEXT, senderId, body);
+        while (true) {
+            byte[] frame = sender.read();
+            if (frame == null)
+                fail("Server went quiet before the marker came back");
+            if (sender.type == TYPE_TEXT && isTest(frame) && sequence(frame) == -1)
+                break;
+        }
+        System.out.printf("Stored in %.0f ms%n", (System.nanoTime() - start) / 1e6);
+        sender.close();
+
+        // --- Log In and Collect ---
+        recipient = new Peer();
+        answer = recipient.login("mb-" + run, token);
+        if (answer.length != 4 || ByteBuffer.wrap(answer).getInt() != recipientId) {
+            fail("Login with the token was refused");
+        }
+        start = System.nanoTime();
+        long readsAtLogin = recipient.reads;
+        int next = 0;
+        int wrong = 0;
+        while (next < messages) {
+            byte[] frame = recipient.read();
+            if (frame == null)
+                break;
+            if (recipient.type != TYPE_TEXT || recipient.senderId != senderId || !isTest(frame))
+                continue;
+            int received = sequence(frame);
+            if (received != next) {
+                if (wrong++ < 10) {
+                    System.out.println("Expected message " + next + ", got " + received);
+                }
+                if (received < next)
+                    continue; // Repeated
+            }
+            next = received + 1;
+        }
+        double millis = (System.nanoTime() - start) / 1e6;
+        long reads = recipient.reads - readsAtLogin;
+        recipient.close();
+
+        System.out.printf("Delivered %d of %d in %.0f ms, %d socket reads (%.1f messages per read)%n",
+                Math.min(next, messages), messages, millis, reads, (double) next / Math.max(1, reads));
+        if (next < messages || wrong > 0) {
+            fail((messages - next) + " missing, " + wrong + " out of order or repeated");
+        }
+        System.out.println("OK: every message arrived once, in order");
+    }
+
+    private static boolean isTest(byte[] body) {
+        return body.length >= MAGIC.length + 4 && body[0] == MAGIC[0] && body[1] == MAGIC[1];
+    }
+
+    private static int sequence(byte[] body) {
+        return ByteBuffer.wrap(body, MAGIC.length, 4).getInt();
+    }
+
+    private static void fail(String reason) {
+        System.out.println("FAILED: " + reason);
+        System.exit(1);
+    }
+
+    /**
+     * One raw protocol connection, counting the socket reads that return
+     * data.
+     */
+    private static class Peer {
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+        long reads;
+        byte type; // Of the frame read last
+        int senderId;
+
+        Peer() throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(timeout * 1000);
+            InputStream raw = socket.getInputStream();
+            InputStream counting = new FilterInputStream(raw) {
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0) {
+                        reads++;
+                    }
+                    return n;
+                }
+            };
+            in = new DataInputStream(new BufferedInputStream(counting, 64 * 1024));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+        }
+
+        void send(byte type, int targetId, byte[] body) throws IOException {
+            out.writeByte(type);
+            out.writeInt(targetId);
+            out.writeInt(body.length);
+            out.write(body);
+        }
+
+        /**
+         * Logs in, with the token unless it is null, and returns the answer.
+         */
+        byte[] login(String name, byte[] token) throws IOException {
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            request.write(name.getBytes(StandardCharsets.UTF_8));
+            if (token != null) {
+                request.write(0);
+                request.write(token);
+            }
+            send(TYPE_LOGIN, 0, request.toByteArray());
+            while (true) {
+                byte[] body = read();
+                if (body == null)
+                    fail("No answer to the login");
+                if (type == TYPE_LOGIN)
+                    return body;
+            }
+        }
+
+        /**
+         * Reads the next frame and returns its body, or null if nothing came
+         * within the timeout.
+         */
+        byte[] read() throws IOException {
+            out.flush();
+            try {
+                type = in.readByte();
+                senderId = in.readInt();
+                byte[] body = new byte[in.readInt()];
+                in.readFully(body);
+                return body;
+            } catch (SocketTimeoutException e) {
+                return null;
+            }
+        }
+
+        void close() throws IOException {
+            out.flush();
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,280 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Voice Latency Benchmark
+ * Measures how long call audio takes to cross the server while a large
+ * upload is going to the same client. A caller streams voice frames to a
+ * listener, first on its own and then while an uploader sends bulk data to
+ * the listener, and the delay of each voice frame is reported per phase.
+ *
+ * Bulk is sent either as 32 KB file chunks paced by acks, the way the
+ * client's FileTransfers does it, or as whole image frames one at a time.
+ * --link-rate throttles the listener to emulate a client on a slow link,
+ * where frames actually queue up at the server.
+ *
+ * Usage: java VoiceLatency [--host=127.0.0.1] [--port=8889] [--duration=10]
+ *                          [--interval=20] [--voice-size=640]
+ *                          [--bulk=chunks|image] [--bulk-size=BYTES]
+ *                          [--link-rate=KB_PER_SECOND]
+ */
+public class VoiceLatency {
+    // --- Protocol Constants ---
+    private static final byte TYPE_TEXT = 1;
+    private static final byte TYPE_IMAGE = 2;
+    private static final byte TYPE_VOICE_STREAM = 4;
+    private static final byte TYPE_FILE_CHUNK = 12;
+    private static final byte TYPE_FILE_ACK = 13;
+
+    private static final int CHUNK_WINDOW = 32; // Chunks ahead of the listener, as in FileTransfers
+    private static final int ACK_EVERY = 8;
+
+    private static String host = "127.0.0.1";
+    private static int port = 8889;
+    private static int duration = 10; // Seconds per phase
+    private static int interval = 20; // ms between voice frames
+    private static int voiceSize = 640; // 20 ms of 16 kHz 16-bit mono
+    private static boolean imageBulk = false;
+    private static int bulkSize = -1;
+    private static int linkRate = 0; // KB/s the listener reads at, 0 = unlimited
+
+    // --- State ---
+    private static volatile List<Long> latencies = new ArrayList<>(); // Current phase, in microseconds
+    private static final AtomicLong bulkReceived = new AtomicLong();
+    private static final AtomicLong acked = new AtomicLong(); // Bulk frames the listener has confirmed
+    private static volatile boolean uploading;
+
+    public static void main(String[] args) throws Exception {
+        for (String arg : args) {
+            if (arg.startsWith("--host=")) {
+                host = arg.substring("--host=".length());
+            } else if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring("--port=".length()));
+            } else if (arg.startsWith("--duration=")) {
+                duration = Integer.parseInt(arg.substring("--duration=".length()));
+            } else if (arg.startsWith("--interval=")) {
+                interval = Integer.parseInt(arg.substring("--interval=".length()));
+            } else if (arg.startsWith("--voice-size=")) {
+                voiceSize = Math.max(8, Integer.parseInt(arg.substring("--voice-size=".length())));
+            } else if (arg.startsWith("--bulk=")) {
+                imageBulk = arg.substring("--bulk=".length()).equals("image");
+            } else if (arg.startsWith("--bulk-size=")) {
+                bulkSize = Integer.parseInt(arg.substring("--bulk-size=".length()));
+            } else if (arg.startsWith("--link-rate=")) {
+                linkRate = Integer.parseInt(arg.substring("--link-rate=".length()));
+            }
+        }
+        if (bulkSize < 0) {
+            bulkSize = imageBulk ? 8 * 1024 * 1024 : 32 * 1024;
+        }
+        System.out.println("Voice latency: " + voiceSize + " byte frames every " + interval + " ms, bulk "
+                + (imageBulk ? "images" : "file chunks") + " of " + bulkSize + " bytes, " + duration + " s per phase"
+                + (linkRate > 0 ? ", listener link " + linkRate + " KB/s" : ""));
+
+        // --- Connect ---
+        // The listener announces itself so the others learn its ID
+        Peer listener = new Peer(linkRate > 0);
+        Peer caller = new Peer(false);
+        Peer uploader = new Peer(false);
+        listener.send(TYPE_TEXT, 0, "VL-HELLO".getBytes("UTF-8"), 0, 8);
+        int listenerId = caller.awaitHello();
+        uploader.awaitHello();
+
+        Thread listen = new Thread(() -> listen(listener));
+        listen.setDaemon(true);
+        listen.start();
+        Thread acks = new Thread(() -> readAcks(uploader));
+        acks.setDaemon(true);
+        acks.start();
+
+        // --- Phase 1: Voice Only ---
+        report("idle", runVoice(caller, listenerId));
+
+        // --- Phase 2: Voice During Upload ---
+        uploading = true;
+        Thread upload = new Thread(() -> upload(uploader, listenerId));
+        upload.setDaemon(true);
+        upload.start();
+        Thread.sleep(500); // Let the upload reach full speed
+        long bulkStart = bulkReceived.get();
+        long start = System.nanoTime();
+        List<Long> busy = runVoice(caller, listenerId);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        uploading = false;
+        report("upload", busy);
+        System.out.printf("Bulk throughput during upload: %.1f MB/s%n",
+                (bulkReceived.get() - bulkStart) / seconds / (1024 * 1024));
+        System.exit(0);
+    }
+
+    /**
+     * Sends voice frames for one phase and returns the latencies measured.
+     */
+    private static List<Long> runVoice(Peer caller, int listenerId) throws Exception {
+        latencies = Collections.synchronizedList(new ArrayList<>());
+        byte[] frame = new byte[voiceSize];
+        long end = System.currentTimeMillis() + duration * 1000L;
+        long next = System.nanoTime();
+        while (System.currentTimeMillis() < end) {
+            ByteBuffer.wrap(frame).putLong(System.nanoTime());
+            caller.send(TYPE_VOICE_STREAM, listenerId, frame, 0, frame.length);
+            next += interval * 1_000_000L;
+            long sleep = next - System.nanoTime();
+            if (sleep > 0) {
+                Thread.sleep(sleep / 1_000_000, (int) (sleep % 1_000_000));
+            }
+        }
+        Thread.sleep(200); // Stragglers
+        List<Long> result = latencies;
+        synchronized (result) {
+            return new ArrayList<>(result);
+        }
+    }
+
+    /**
+     * Reads everything sent to the listener, timing voice frames and acking bulk.
+     */
+    private static void listen(Peer listener) {
+        try {
+            long frames = 0;
+            long linkFree = 0; // When the emulated link has finished the last frame
+            while (true) {
+                byte type = listener.in.readByte();
+                int senderId = listener.in.readInt();
+                int length = listener.in.readInt();
+                byte[] body = new byte[length];
+                listener.in.readFully(body);
+                if (linkRate > 0) {
+                    // Hold reads back to the link rate, 1 KB/s being 1 byte per ms
+                    linkFree = Math.max(linkFree, System.nanoTime()) + (9 + length) * 1_000_000L / linkRate;
+                    long wait = linkFree - System.nanoTime();
+                    if (wait > 0) {
+                        Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                    }
+                }
+                if (type == TYPE_VOICE_STREAM) {
+                    long sentAt = ByteBuffer.wrap(body).getLong();
+                    latencies.add((System.nanoTime() - sentAt) / 1000);
+                } else if (type == TYPE_FILE_CHUNK || type == TYPE_IMAGE) {
+                    bulkReceived.addAndGet(length);
+                    frames++;
+                    if (type == TYPE_IMAGE || frames % ACK_EVERY == 0) {
+                        byte[] ack = new byte[8];
+                        ByteBuffer.wrap(ack).putLong(frames);
+                        listener.send(TYPE_FILE_ACK, senderId, ack, 0, ack.length);
+                    }
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            System.out.println("Listener disconnected: " + e);
+        }
+    }
+
+    private static void readAcks(Peer uploader) {
+        try {
+            while (true) {
+                byte type = uploader.in.readByte();
+                uploader.in.readInt();
+                byte[] body = new byte[uploader.in.readInt()];
+                uploader.in.readFully(body);
+                if (type == TYPE_FILE_ACK) {
+                    synchronized (acked) {
+                        acked.set(ByteBuffer.wrap(body).getLong());
+                        acked.notifyAll();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // Benchmark finished
+        }
+    }
+
+    /**
+     * Sends bulk frames to the listener while the upload phase runs, never
+     * more than the window ahead of what the listener has acknowledged.
+     */
+    private static void upload(Peer uploader, int listenerId) {
+        byte[] body = new byte[bulkSize];
+        new Random(1).nextBytes(body);
+        int window = imageBulk ? 1 : CHUNK_WINDOW;
+        long sent = 0;
+        try {
+            while (uploading) {
+                synchronized (acked) {
+                    while (sent - acked.get() >= window && uploading) {
+                        acked.wait(100);
+                    }
+                }
+                uploader.send(imageBulk ? TYPE_IMAGE : TYPE_FILE_CHUNK, listenerId, body, 0, body.length);
+                sent++;
+            }
+        } catch (IOException | InterruptedException e) {
+            System.out.println("Upload stopped: " + e);
+        }
+    }
+
+    private static void report(String phase, List<Long> micros) {
+        if (micros.isEmpty()) {
+            System.out.println(phase + ": no voice frames delivered");
+            return;
+        }
+        Collections.sort(micros);
+        System.out.printf("%-7s voice frames=%d  p50=%.2f ms  p99=%.2f ms  p99.9=%.2f ms  max=%.2f ms%n",
+                phase + ":", micros.size(), percentile(micros, 50), percentile(micros, 99),
+                percentile(micros, 99.9), micros.get(micros.size() - 1) / 1000.0);
+    }
+
+    private static double percentile(List<Long> sorted, double p) {
+        int index = (int) Math.ceil(p / 100 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, index))) / 1000.0;
+    }
+
+    /**
+     * One raw protocol connection.
+     */
+    private static class Peer {
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+
+        /**
+         * @param slowLink small receive buffer, so a throttled reader pushes
+         *                 back on the server instead of the kernel
+         */
+        Peer(boolean slowLink) throws IOException {
+            socket = new Socket();
+            if (slowLink) {
+                socket.setReceiveBufferSize(64 * 1024);
+            }
+            socket.connect(new InetSocketAddress(host, port));
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        synchronized void send(byte type, int targetId, byte[] body, int offset, int length) throws IOException {
+            out.writeByte(type);
+            out.writeInt(targetId);
+            out.writeInt(length);
+            out.write(body, offset, length);
+            out.flush();
+        }
+
+        /**
+         * Reads until the listener's announcement and returns its ID.
+         */
+        int awaitHello() throws IOException {
+            while (true) {
+                byte type = in.readByte();
+                int senderId = in.readInt();
+                byte[] body = new byte[in.readInt()];
+                in.readFully(body);
+                if (type == TYPE_TEXT && senderId != 0 && new String(body, "UTF-8").equals("VL-HELLO"))
+                    return senderId;
+            }
+        }
+    }
+}
@@ -0,0 +1,262 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Group Call Mixer
+ * Group call audio (voice sent to target 0) is not forwarded to everyone.
+ * Each participant's 20 ms frames are queued here instead, and every 20 ms
+ * the mixer adds up one frame from each participant and sends every
+ * participant the sum minus their own voice. A client therefore receives a
+ * single stream however many people are talking, instead of one per
+ * speaker.
+ *
+ * A client joins the mix with its first group audio frame. It leaves when it
+ * ends the call, disconnects or has sent nothing for a second. Input frames
+ * are decoded with whatever codec they name. Mixed frames are encoded with
+ * the listener's negotiated codec and come from sender ID 0 with the usual
+ * [Seq (4)] [Codec (1)] [Audio] body, over UDP when the listener has
+ * registered with the relay.
+ *
+ * The mixer thread works on preallocated arrays only; outgoing bodies come
+ * from the BufferPool.
+ */
+final class AudioMixer implements Runnable {
+    static final int FRAME_SAMPLES = VoiceCodec.FRAME_SAMPLES; // 20 ms of 16 kHz, 16-bit mono
+    private static final long FRAME_NANOS = 20_000_000L;
+    private static final byte TYPE_VOICE_STREAM = 4;
+    private static final int IDLE_FRAMES = 50; // Silent ticks before a participant leaves
+    private static final int MAX_LAG_FRAMES = 5; // Ticks the mixer may fall behind before resyncing
+
+    // --- Metrics ---
+    static final LongAdder mixedFrames = new LongAdder(); // Frames sent to listeners
+    static final LongAdder skippedFrames = new LongAdder(); // Input dropped to keep up with a sender's clock
+
+    private final UdpRelay udpRelay; // null without --udp-port
+    // Replaced on join and leave, so the mixer can walk it without locking
+    private volatile Participant[] participants = new Participant[0];
+
+    // --- Mixer Thread Only ---
+    private final int[] sum = new int[FRAME_SAMPLES];
+    private final short[] mixed = new short[FRAME_SAMPLES];
+    private final byte[] encoded = new byte[2 * FRAME_SAMPLES];
+    // [SenderID (4)] [Seq (4)] [Codec (1)] [Audio], the UDP datagram; the TCP body starts at Seq
+    private final ByteBuffer packet = ByteBuffer.allocateDirect(9 + 2 * FRAME_SAMPLES);
+    private int seq;
+
+    /**
+     * One participant's incoming frames, put back in order by sequence
+     * number. Written by the connection's reader, read by the mixer.
+     */
+    static final class Participant {
+        private static final int SLOTS = 8; // 160 ms
+        private static final int MAX_QUEUED = 4; // Frames held before the oldest is skipped
+
+        final Server.Connection connection;
+        private final short[][] frames = new short[SLOTS][FRAME_SAMPLES];
+        private final boolean[] present = new boolean[SLOTS];
+        private final byte[] input = new byte[2 * FRAME_SAMPLES]; // Encoded frame being decoded
+        private boolean started;
+        private int playSeq; // Next frame to mix
+        private int highestSeq; // Newest frame received
+
+        // Mixer thread only
+        private final short[] current = new short[FRAME_SAMPLES];
+        private boolean speaking; // Contributed to the current tick
+        private int idle; // Ticks without a frame
+        private VoiceCodec encoder; // For the mix this participant hears
+
+        Participant(Server.Connection connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * Decodes and stores the frame at data[offset, offset + length),
+         * [Codec (1)] [Audio].
+         */
+        synchronized void put(int frameSeq, ByteBuffer data, int offset, int length) {
+            VoiceCodec codec = length > 0 ? VoiceCodec.decoder(data.get(offset)) : null;
+            if (codec == null || length - 1 > input.length)
+                return;
+
+            if (!started || frameSeq - playSeq >= SLOTS || frameSeq - playSeq < -SLOTS) {
+                Arrays.fill(present, false); // First frame, or the sender started over
+                started = true;
+                playSeq = frameSeq;
+                highestSeq = frameSeq - 1;
+            }
+            if (frameSeq - playSeq < 0)
+                return; // Already mixed without it
+
+            for (int i = 1; i < length; i++) {
+                input[i - 1] = data.get(offset + i);
+            }
+            int slot = Math.floorMod(frameSeq, SLOTS);
+            short[] frame = frames[slot];
+            int samples = codec.decode(input, 0, length - 1, frame);
+            Arrays.fill(frame, samples, FRAME_SAMPLES, (short) 0);
+            present[slot] = true;
+            if (frameSeq - highestSeq > 0)
+                highestSeq = frameSeq;
+        }
+
+        /**
+         * Copies the next frame into {@code out}. Returns false for a gap or
+         * when nothing has arrived yet; in the latter case the mixer waits
+         * for the sender rather than running ahead of it.
+         */
+        synchronized boolean take(short[] out) {
+            if (!started || highestSeq - playSeq < 0)
+                return false;
+            while (highestSeq - playSeq >= MAX_QUEUED) {
+                // The sender's clock runs faster than ours
+                present[Math.floorMod(playSeq++, SLOTS)] = false;
+                skippedFrames.increment();
+            }
+            int slot = Math.floorMod(playSeq++, SLOTS);
+            if (!present[slot])
+                return false;
+            present[slot] = false;
+            System.arraycopy(frames[slot], 0, out, 0, FRAME_SAMPLES);
+            return true;
+        }
+    }
+
+    AudioMixer(UdpRelay udpRelay) {
+        this.udpRelay = udpRelay;
+    }
+
+    /**
+     * Queues a group audio frame, [Seq (4)] [Codec (1)] [Audio] between the
+     * payload's position and limit. Called from reader threads.
+     */
+    void offer(Server.Connection sender, ByteBuffer payload) {
+        if (payload.remaining() < 4)
+            return;
+        Participant participant = sender.mixerInput;
+        if (participant == null) {
+            participant = join(sender);
+        }
+        int start = payload.position();
+        participant.put(payload.getInt(start), payload, start + 4, payload.remaining() - 4);
+    }
+
+    private synchronized Participant join(Server.Connection connection) {
+        if (connection.mixerInput != null)
+            return connection.mixerInput;
+        Participant participant = new Participant(connection);
+        Participant[] group = Arrays.copyOf(participants, participants.length + 1);
+        group[group.length - 1] = participant;
+        participants = group;
+        connection.mixerInput = participant;
+        notifyAll();
+        return participant;
+    }
+
+    /**
+     * Takes the client out of the mix, if it is in it.
+     */
+    synchronized void leave(Server.Connection connection) {
+        Participant participant = connection.mixerInput;
+        if (participant == null)
+            return;
+        connection.mixerInput = null;
+        Participant[] group = new Participant[participants.length - 1];
+        int i = 0;
+        for (Participant p : participants) {
+            if (p != participant) {
+                group[i++] = p;
+            }
+        }
+        participants = group;
+    }
+
+    @Override
+    public void run() {
+        long deadline = System.nanoTime();
+        while (true) {
+            Participant[] group = participants;
+            if (group.length == 0) {
+                awaitParticipants();
+                deadline = System.nanoTime();
+                continue;
+            }
+
+            mix(group);
+
+            deadline += FRAME_NANOS;
+            long wait = deadline - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            } else if (wait < -MAX_LAG_FRAMES * FRAME_NANOS) {
+                deadline = System.nanoTime(); // Stalled, skip ahead instead of bursting
+            }
+        }
+    }
+
+    private synchronized void awaitParticipants() {
+        while (participants.length == 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * One 20 ms tick: sums everyone's frame, then sends each participant
+     * the sum without their own contribution.
+     */
+    private void mix(Participant[] group) {
+        Arrays.fill(sum, 0);
+        int speakers = 0;
+        for (Participant p : group) {
+            p.speaking = p.take(p.current);
+            if (p.speaking) {
+                speakers++;
+                p.idle = 0;
+                for (int i = 0; i < FRAME_SAMPLES; i++) {
+                    sum[i] += p.current[i];
+                }
+            } else if (++p.idle >= IDLE_FRAMES) {
+                leave(p.connection);
+            }
+        }
+        if (speakers == 0)
+            return;
+
+        seq++;
+        for (Participant p : group) {
+            if (speakers == (p.speaking ? 1 : 0))
+                continue; // Nobody else to hear
+            for (int i = 0; i < FRAME_SAMPLES; i++) {
+                int sample = p.speaking ? sum[i] - p.current[i] : sum[i];
+                mixed[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+            }
+            if (p.encoder == null || p.encoder.id() != p.connection.codec) {
+                p.encoder = VoiceCodec.encoder(p.connection.codec);
+            }
+            int length = p.encoder.encode(mixed, FRAME_SAMPLES, encoded, 0);
+
+            packet.clear();
+            packet.putInt(0).putInt(seq).put(p.encoder.id()).put(encoded, 0, length);
+            packet.flip();
+            send(p.connection);
+        }
+    }
+
+    private void send(Server.Connection listener) {
+        mixedFrames.increment();
+        if (udpRelay != null && udpRelay.sendDatagram(listener, packet))
+            return;
+
+        packet.position(4); // TCP body starts at Seq
+        BufferPool.PooledBuffer body = BufferPool.acquire(packet.remaining());
+        body.buffer().put(packet).flip();
+        Frame frame = new Frame(TYPE_VOICE_STREAM, 0, body);
+        listener.sendMessage(frame);
+        frame.release();
+    }
+}
@@ -0,0 +1,140 @@
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Size-classed pool of direct buffers for inbound frame bodies.
+ * Sizes are rounded up to a power of two between 256 bytes and 1 MB. Larger
+ * bodies get a plain heap buffer that the GC reclaims. Buffers are reference
+ * counted: the router holds one reference while it fans a frame out, every
+ * outbound queue holds one until the frame has been written, and the buffer
+ * goes back to its free list when the last one is released.
+ */
+final class BufferPool {
+    private static final int MIN_CLASS_SHIFT = 8; // 256 bytes
+    private static final int MAX_CLASS_SHIFT = 20; // 1 MB
+    // Free buffers kept per size class, so the pool never holds more than
+    // about 4 MB per class once traffic calms down
+    private static final int CACHE_BYTES_PER_CLASS = 4 * 1024 * 1024;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final Queue<PooledBuffer>[] freeLists = new Queue[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+    private static final AtomicInteger[] freeCounts = new AtomicInteger[freeLists.length];
+
+    static {
+        for (int i = 0; i < freeLists.length; i++) {
+            freeLists[i] = new ConcurrentLinkedQueue<>();
+            freeCounts[i] = new AtomicInteger();
+        }
+    }
+
+    // --- Metrics ---
+    static final LongAdder acquires = new LongAdder();
+    static final LongAdder hits = new LongAdder(); // Served from a free list
+    static final LongAdder unpooled = new LongAdder(); // Too large for any class
+    static final LongAdder outstanding = new LongAdder(); // Acquired but not yet released
+
+    private BufferPool() {
+    }
+
+    /**
+     * Returns a buffer with position 0 and limit {@code size}, holding one
+     * reference for the caller.
+     */
+    static PooledBuffer acquire(int size) {
+        acquires.increment();
+        outstanding.increment();
+
+        int shift = Math.max(MIN_CLASS_SHIFT, 32 - Integer.numberOfLeadingZeros(size - 1));
+        if (size == 0 || shift > MAX_CLASS_SHIFT) {
+            unpooled.increment();
+            return new PooledBuffer(ByteBuffer.allocate(size), -1);
+        }
+
+        int sizeClass = shift - MIN_CLASS_SHIFT;
+        PooledBuffer pooled = freeLists[sizeClass].poll();
+        if (pooled != null) {
+            freeCounts[sizeClass].decrementAndGet();
+            hits.increment();
+        } else {
+            pooled = new PooledBuffer(ByteBuffer.allocateDirect(1 << shift), sizeClass);
+        }
+        pooled.reset(size);
+        return pooled;
+    }
+
+    /**
+     * Wraps an existing array without pooling it, for server-generated frames.
+     */
+    static PooledBuffer wrap(byte[] data) {
+        acquires.increment();
+        outstanding.increment();
+        unpooled.increment();
+        return new PooledBuffer(ByteBuffer.wrap(data), -1);
+    }
+
+    private static void recycle(PooledBuffer pooled) {
+        outstanding.decrement();
+        int sizeClass = pooled.sizeClass;
+        if (sizeClass < 0)
+            return;
+        int maxFree = Math.max(4, CACHE_BYTES_PER_CLASS >> (sizeClass + MIN_CLASS_SHIFT));
+        if (freeCounts[sizeClass].incrementAndGet() <= maxFree) {
+            freeLists[sizeClass].add(pooled);
+        } else {
+            freeCounts[sizeClass].decrementAndGet(); // Let the GC have it
+        }
+    }
+
+    /**
+     * Percentage of pooled-size acquisitions served without allocating.
+     */
+    static double hitRate() {
+        long pooledAcquires = acquires.sum() - unpooled.sum();
+        return pooledAcquires == 0 ? 0 : 100.0 * hits.sum() / pooledAcquires;
+    }
+
+    /**
+     * A reference-counted buffer from the pool.
+     */
+    static final class PooledBuffer {
+        private final ByteBuffer storage;
+        private final int sizeClass; // -1 when not pooled
+        private final AtomicInteger refCount = new AtomicInteger(1);
+        private ByteBuffer buffer;
+
+        private PooledBuffer(ByteBuffer storage, int sizeClass) {
+            this.storage = storage;
+            this.sizeClass = sizeClass;
+            this.buffer = storage;
+        }
+
+        private void reset(int size) {
+            refCount.set(1);
+            buffer = storage.duplicate();
+            buffer.clear().limit(size);
+        }
+
+        /**
+         * The usable region: position 0 up to the requested size.
+         */
+        ByteBuffer buffer() {
+            return buffer;
+        }
+
+        void retain() {
+            refCount.incrementAndGet();
+        }
+
+        void release() {
+            int count = refCount.decrementAndGet();
+            if (count == 0) {
+                recycle(this);
+            } else if (count < 0) {
+                throw new IllegalStateException("Buffer released more times than it was retained");
+            }
+        }
+    }
+}
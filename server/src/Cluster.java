@@ -0,0 +1,491 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Cluster
+ * Lets several servers share one chat (--node-id, --cluster-port, --peer).
+ * Each node serves its own clients as before and passes on what they send
+ * to clients of other nodes, over persistent links between the nodes.
+ *
+ * Every node listens on its cluster port and dials every peer. A node sends
+ * only on the links it dialled and receives only on the ones it accepted,
+ * so each pair of nodes has one link per direction. A broadcast crosses
+ * each link once, and the receiving node only hands it to its own clients;
+ * nodes never pass on what came from another node, so all nodes need to
+ * list each other as peers. A direct message goes once, to the one node
+ * the target is on.
+ *
+ * Client IDs are partitioned: node N hands out only IDs that leave N when
+ * divided by MAX_NODES, so two nodes never give out the same ID. Which node
+ * a client is on comes from the presence table, which every node keeps of
+ * the other nodes' clients. A direct message to a client that is on no
+ * node goes to the node that handed out its ID, if it is a message that
+ * can wait in a mailbox there.
+ *
+ * Each link carries records, the client frame with the target in front:
+ *   [TargetID (4)] [Type (1)] [SenderID (4)] [Length (4)] [Body]
+ * after each side has sent its [NodeID (4)]. Type 0 records are presence
+ * updates from the sending node, [State (1)] [ClientIDs (4 each)]: a
+ * snapshot of its clients first, then clients coming online or going
+ * offline. Links queue like clients, with call audio and signalling ahead
+ * of everything else; while a link is down, what would go over it is
+ * dropped, and it is dialled again every RECONNECT_MILLIS.
+ *
+ * A node only takes links from the addresses its peers resolve to. Any
+ * other connection to the cluster port is closed before the handshake, as
+ * what comes over a link is trusted like the node's own clients.
+ *
+ * Rooms, group call mixing and relayed large bodies stay within a node.
+ */
+final class Cluster {
+    static final int MAX_NODES = 64;
+    private static final byte TYPE_PRESENCE = 0;
+    private static final byte SNAPSHOT = 0, ONLINE = 1, OFFLINE = 2;
+    private static final int RECORD_HEADER_SIZE = 4 + Frame.HEADER_SIZE;
+    private static final int MAX_BODY = 64 * 1024 * 1024;
+    private static final long RECONNECT_MILLIS = 1000;
+    private static final long ACCEPT_RETRY_NANOS = 100_000_000L;
+    private static final long LINK_QUEUE_LIMIT = 64 * 1024 * 1024;
+    private static final long LINK_VOICE_LIMIT = 1024 * 1024;
+
+    // --- Metrics ---
+    static final LongAdder forwarded = new LongAdder(); // Records queued for other nodes
+    static final LongAdder received = new LongAdder(); // Records from other nodes
+
+    private final int nodeId;
+    private final int port;
+    private final List<InetSocketAddress> peers;
+    // Link this node sends to each node on, null while down
+    private final AtomicReferenceArray<Link> outgoing = new AtomicReferenceArray<>(MAX_NODES);
+    // Link each node sends to this node on; only the current one may clear
+    // the node's presence when it closes
+    private final Object[] incoming = new Object[MAX_NODES];
+    // Clients of other nodes (client ID -> node ID)
+    private final Map<Integer, Integer> presence = new ConcurrentHashMap<>();
+
+    Cluster(int nodeId, int port, List<InetSocketAddress> peers) {
+        this.nodeId = nodeId;
+        this.port = port;
+        this.peers = peers;
+    }
+
+    /**
+     * Opens the cluster port and starts dialling the peers.
+     */
+    void start() throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        Thread acceptor = new Thread(() -> accept(server), "cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (InetSocketAddress peer : peers) {
+            Thread dialler = new Thread(new Link(peer), "cluster-link-" + peer);
+            dialler.setDaemon(true);
+            dialler.start();
+        }
+    }
+
+    /**
+     * The node that hands out a client ID.
+     */
+    static int homeNode(int clientId) {
+        return Math.floorMod(clientId, MAX_NODES);
+    }
+
+    int nodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Clients connected to other nodes.
+     */
+    int remoteClients() {
+        return presence.size();
+    }
+
+    int linksUp() {
+        int up = 0;
+        for (int node = 0; node < MAX_NODES; node++) {
+            if (outgoing.get(node) != null) {
+                up++;
+            }
+        }
+        return up;
+    }
+
+    /**
+     * Tells the other nodes a client of this node has come online. Call
+     * after it is in the client registry, so no snapshot can miss it.
+     */
+    void online(int clientId) {
+        sendPresence(ONLINE, clientId);
+    }
+
+    /**
+     * Tells the other nodes a client of this node has gone. Call after it
+     * has left the client registry.
+     */
+    void offline(int clientId) {
+        sendPresence(OFFLINE, clientId);
+    }
+
+    private void sendPresence(byte state, int clientId) {
+        byte[] body = new byte[5];
+        ByteBuffer.wrap(body).put(state).putInt(clientId);
+        Frame frame = new Frame(TYPE_PRESENCE, nodeId, BufferPool.wrap(body));
+        for (int node = 0; node < MAX_NODES; node++) {
+            Link link = outgoing.get(node);
+            if (link != null) {
+                link.offer(frame);
+            }
+        }
+        frame.release();
+    }
+
+    /**
+     * Sends a frame every client of this node gets to every other node.
+     */
+    void broadcast(Frame frame) {
+        Forward forward = new Forward(frame, 0);
+        for (int node = 0; node < MAX_NODES; node++) {
+            Link link = outgoing.get(node);
+            if (link != null && link.offer(forward)) {
+                forwarded.increment();
+            }
+        }
+    }
+
+    /**
+     * Sends a direct message for a client that is not on this node to the
+     * node it is on. Returns false if no other node takes it, leaving it
+     * to this node.
+     */
+    boolean forward(Frame frame, int targetId) {
+        Integer node = presence.get(targetId);
+        if (node == null) {
+            if (!Mailbox.accepts(frame.type))
+                return false;
+            node = homeNode(targetId); // To wait in its mailbox there
+        }
+        Link link = node != nodeId ? outgoing.get(node) : null;
+        if (link == null)
+            return false;
+        if (link.offer(new Forward(frame, targetId))) {
+            forwarded.increment();
+        }
+        return true;
+    }
+
+    private void accept(ServerSocketChannel server) {
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = server.accept();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                EventLog.error(EventLog.Type.ACCEPT_FAILED, 0, e);
+                LockSupport.parkNanos(ACCEPT_RETRY_NANOS); // Out of file descriptors, say
+                continue;
+            }
+            SocketAddress remote = channel.socket().getRemoteSocketAddress();
+            if (!isPeer(channel.socket().getInetAddress())) {
+                EventLog.event(EventLog.Type.CLUSTER_LINK_REFUSED, 0, remote + " is not a peer");
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    EventLog.error(EventLog.Type.CLOSE_FAILED, 0, e);
+                }
+                continue;
+            }
+            Thread reader = new Thread(() -> receive(channel), "cluster-in-" + remote);
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+
+    /**
+     * True if the address is one a peer's host name resolves to. Names are
+     * looked up again on every link, so a peer that has moved is still
+     * let in.
+     */
+    private boolean isPeer(InetAddress address) {
+        for (InetSocketAddress peer : peers) {
+            if (address.equals(peer.getAddress()))
+                return true;
+            try {
+                for (InetAddress resolved : InetAddress.getAllByName(peer.getHostString())) {
+                    if (address.equals(resolved))
+                        return true;
+                }
+            } catch (UnknownHostException e) {
+                // Not resolvable right now, try the next peer
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads the records a node sends on a link it dialled, until the link
+     * drops.
+     */
+    private void receive(SocketChannel channel) {
+        int node = -1;
+        Object self = new Object();
+        try (SocketChannel link = channel;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(link.socket().getInputStream(), 64 * 1024))) {
+            link.socket().setTcpNoDelay(true);
+            write(link, ByteBuffer.allocate(4).putInt(0, nodeId));
+            ReadableByteChannel source = Channels.newChannel(in); // Bodies go into pooled direct buffers
+            node = in.readInt();
+            if (node < 0 || node >= MAX_NODES || node == nodeId) {
+                EventLog.event(EventLog.Type.CLUSTER_LINK_REFUSED, 0, link.socket().getRemoteSocketAddress() + " sent node " + node);
+                return;
+            }
+            synchronized (incoming) {
+                incoming[node] = self;
+            }
+            EventLog.event(EventLog.Type.CLUSTER_LINK, 0, "from node " + node);
+            while (true) {
+                int targetId = in.readInt();
+                byte type = in.readByte();
+                int senderId = in.readInt();
+                int length = in.readInt();
+                if (length < 0 || length > MAX_BODY)
+                    throw new IOException("Bad record length " + length);
+                BufferPool.PooledBuffer body = BufferPool.acquire(length);
+                ByteBuffer buffer = body.buffer();
+                try {
+                    while (buffer.hasRemaining()) {
+                        if (source.read(buffer) < 0)
+                            throw new EOFException();
+                    }
+                } catch (IOException e) {
+                    body.release();
+                    throw e;
+                }
+                buffer.flip();
+                received.increment();
+                if (type == TYPE_PRESENCE) {
+                    updatePresence(node, buffer);
+                    body.release();
+                } else {
+                    Server.routeFromNode(type, senderId, targetId, body);
+                }
+            }
+        } catch (EOFException e) {
+            // Link closed
+        } catch (IOException e) {
+            EventLog.log(EventLog.Type.CLUSTER_LINK_LOST, 0, 0, "from node " + node, e);
+        } finally {
+            if (node >= 0 && node < MAX_NODES) {
+                synchronized (incoming) {
+                    if (incoming[node] == self) {
+                        incoming[node] = null;
+                        forget(node);
+                    }
+                }
+            }
+        }
+    }
+
+    private void updatePresence(int node, ByteBuffer update) {
+        if (!update.hasRemaining())
+            return;
+        byte state = update.get();
+        if (state == SNAPSHOT) {
+            forget(node);
+        }
+        while (update.remaining() >= 4) {
+            int clientId = update.getInt();
+            if (state == OFFLINE) {
+                presence.remove(clientId, node);
+            } else {
+                presence.put(clientId, node);
+            }
+        }
+    }
+
+    /**
+     * Drops a node's clients from the presence table.
+     */
+    private void forget(int node) {
+        presence.values().removeIf(n -> n == node);
+    }
+
+    private static void write(SocketChannel channel, ByteBuffer... buffers) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+    }
+
+    /**
+     * Queue entry for a direct message or broadcast going to another node,
+     * sharing the frame's body.
+     */
+    private static final class Forward extends Frame {
+        final int targetId;
+        private final Frame frame;
+
+        Forward(Frame frame, int targetId) {
+            super(frame.type, frame.senderId, frame.bodyLength());
+            this.frame = frame;
+            this.targetId = targetId;
+        }
+
+        @Override
+        int length() {
+            return frame.length();
+        }
+
+        @Override
+        int bodyLength() {
+            return frame.bodyLength();
+        }
+
+        @Override
+        ByteBuffer body() {
+            return frame.body();
+        }
+
+        @Override
+        void retain() {
+            frame.retain();
+        }
+
+        @Override
+        void release() {
+            frame.release();
+        }
+    }
+
+    /**
+     * The link this node sends to one peer on: dials it, sends it the
+     * presence snapshot and then whatever is queued, and dials again when
+     * the link drops.
+     */
+    private final class Link implements Runnable {
+        private final InetSocketAddress address;
+        private volatile OutboundQueue queue; // Null while down
+
+        Link(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        boolean offer(Frame frame) {
+            OutboundQueue current = queue;
+            return current != null && current.offer(frame) == OutboundQueue.Result.QUEUED;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                int node = -1;
+                try (SocketChannel channel = SocketChannel.open(address)) {
+                    channel.socket().setTcpNoDelay(true);
+                    write(channel, ByteBuffer.allocate(4).putInt(0, nodeId));
+                    ByteBuffer answer = ByteBuffer.allocate(4);
+                    while (answer.hasRemaining()) {
+                        if (channel.read(answer) < 0)
+                            throw new EOFException();
+                    }
+                    node = answer.getInt(0);
+                    if (node < 0 || node >= MAX_NODES || node == nodeId) {
+                        EventLog.event(EventLog.Type.CLUSTER_LINK_REFUSED, 0, "peer " + address + " is node " + node);
+                        return;
+                    }
+                    send(channel, node);
+                } catch (IOException e) {
+                    if (node >= 0)
+                        EventLog.log(EventLog.Type.CLUSTER_LINK_LOST, 0, 0, "to node " + node, e);
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    OutboundQueue closed = queue;
+                    queue = null;
+                    if (closed != null) {
+                        closed.close();
+                    }
+                    if (node >= 0 && node < MAX_NODES) {
+                        outgoing.compareAndSet(node, this, null);
+                    }
+                }
+                try {
+                    Thread.sleep(RECONNECT_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private void send(SocketChannel channel, int node) throws IOException, InterruptedException {
+            // Updates queued from here on may repeat what the snapshot
+            // says, which changes nothing
+            OutboundQueue current = new OutboundQueue(LINK_QUEUE_LIMIT, LINK_VOICE_LIMIT, false);
+            queue = current;
+            outgoing.set(node, this);
+            ByteBuffer snapshot = ByteBuffer.allocate(1 + 4 * Server.clients().size() + 4 * 64);
+            snapshot.put(SNAPSHOT);
+            for (Server.Connection client : Server.clients()) {
+                if (snapshot.remaining() < 4) {
+                    ByteBuffer larger = ByteBuffer.allocate(snapshot.capacity() * 2);
+                    snapshot.flip();
+                    snapshot = larger.put(snapshot);
+                }
+                snapshot.putInt(client.id);
+            }
+            snapshot.flip();
+            ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            record.putInt(0).put(TYPE_PRESENCE).putInt(nodeId).putInt(snapshot.remaining()).flip();
+            write(channel, record, snapshot);
+            EventLog.event(EventLog.Type.CLUSTER_LINK, 0, "to node " + node);
+            watch(channel, current);
+
+            Frame frame;
+            while ((frame = current.take()) != null) {
+                try {
+                    record.clear();
+                    record.putInt(frame instanceof Forward ? ((Forward) frame).targetId : 0).flip();
+                    write(channel, record, frame.header(), frame.body());
+                } finally {
+                    frame.release();
+                }
+            }
+            throw new EOFException("closed by the peer");
+        }
+
+        /**
+         * The peer never sends on this link, so a read returns only when it
+         * is gone. Closing the queue then ends the link at once, rather than
+         * at the next write after the peer has come back.
+         */
+        private void watch(SocketChannel channel, OutboundQueue current) {
+            Thread watcher = new Thread(() -> {
+                try {
+                    channel.read(ByteBuffer.allocate(1));
+                } catch (IOException e) {
+                    // Closed either way
+                }
+                current.close();
+            }, "cluster-watch-" + address);
+            watcher.setDaemon(true);
+            watcher.start();
+        }
+    }
+}
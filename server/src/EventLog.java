@@ -0,0 +1,234 @@
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Event Log
+ * Connection events and I/O errors from the relay threads, written to
+ * stdout by a thread of its own.
+ *
+ * A thread that logs only claims a slot in a fixed ring with a
+ * compare-and-set and stores the record there; it never formats, prints or
+ * waits. When the ring is full the record is dropped and counted. The
+ * writer thread drains the ring, formats each record as one line of
+ * key=value fields and prints a batch at a time.
+ *
+ * Error types are rate limited at the source: past MAX_ERRORS_PER_SECOND of
+ * one type, records are only counted, and the writer prints how many were
+ * suppressed. A mass disconnect then costs a counter increment per failed
+ * write instead of a stack trace.
+ */
+final class EventLog {
+    private static final int CAPACITY = 8192; // Power of two
+    private static final int MAX_ERRORS_PER_SECOND = 20; // Per type
+    private static final long IDLE_PARK_NANOS = 10_000_000L;
+
+    enum Type {
+        CONNECT(false),
+        DISCONNECT(false),
+        LOGIN(false),
+        LOGIN_REPLACED(false), // A newer login took the user ID over
+        LOGIN_REFUSED(true), // Wrong token, or the name is taken
+        ACCEPT_FAILED(true), // Socket unusable before the connection was set up
+        BAD_FRAME(true),
+        SLOW_CONSUMER(true),
+        STALLED_STREAM(true),
+        READ_FAILED(true),
+        WRITE_FAILED(true),
+        READ_IDLE(true), // Heartbeat client silent past the read timeout
+        WRITE_IDLE(true), // No write progress within the write timeout
+        CLOSE_FAILED(true),
+        SELECT_FAILED(true), // An NIO loop's selector, which it then replaces
+        CLUSTER_LINK(false), // Link to or from another node up
+        CLUSTER_LINK_LOST(true),
+        CLUSTER_LINK_REFUSED(true), // Not from a peer, or a bad node ID
+        UDP_SEND_FAILED(true),
+        LOG_WRITE_FAILED(true),
+        MAILBOX_SPILL_FAILED(true),
+        REGISTRY_WRITE_FAILED(true);
+
+        final boolean error;
+        // --- Rate Limit (errors only) ---
+        private final AtomicLong window = new AtomicLong(); // Second the count is for
+        private final AtomicInteger inWindow = new AtomicInteger();
+        private final LongAdder suppressed = new LongAdder();
+
+        Type(boolean error) {
+            this.error = error;
+        }
+
+        /**
+         * True if another record of this type may be logged this second.
+         */
+        private boolean allow() {
+            long second = System.nanoTime() / 1_000_000_000L;
+            long current = window.get();
+            if (current != second && window.compareAndSet(current, second)) {
+                inWindow.set(0);
+            }
+            if (inWindow.incrementAndGet() <= MAX_ERRORS_PER_SECOND)
+                return true;
+            suppressed.increment();
+            return false;
+        }
+    }
+
+    /**
+     * One record, immutable once in the ring.
+     */
+    private static final class Event {
+        final long time = System.currentTimeMillis();
+        final Type type;
+        final int clientId;
+        final long bytes;
+        final String detail;
+        final Throwable cause;
+
+        Event(Type type, int clientId, long bytes, String detail, Throwable cause) {
+            this.type = type;
+            this.clientId = clientId;
+            this.bytes = bytes;
+            this.detail = detail;
+            this.cause = cause;
+        }
+    }
+
+    // --- Metrics ---
+    static final LongAdder logged = new LongAdder();
+    static final LongAdder dropped = new LongAdder(); // Ring was full
+    static final LongAdder suppressed = new LongAdder(); // Over the error rate limit
+
+    // --- Ring ---
+    // Producers claim sequence numbers from head; the writer alone moves
+    // tail. A claimed slot stays null until its record is stored.
+    private static final AtomicReferenceArray<Event> ring = new AtomicReferenceArray<>(CAPACITY);
+    private static final AtomicLong head = new AtomicLong();
+    private static volatile long tail;
+
+    private static final PrintStream out = System.out;
+    private static long reportedDrops; // Writer only
+
+    static {
+        Thread writer = new Thread(EventLog::writeLoop, "event-log");
+        writer.setDaemon(true);
+        writer.setPriority(Thread.MIN_PRIORITY);
+        writer.start();
+        // Whatever is still in the ring when the server stops
+        Runtime.getRuntime().addShutdownHook(new Thread(EventLog::drain, "event-log-flush"));
+    }
+
+    private EventLog() {
+    }
+
+    static void event(Type type, int clientId, String detail) {
+        log(type, clientId, 0, detail, null);
+    }
+
+    static void error(Type type, int clientId, Throwable cause) {
+        log(type, clientId, 0, null, cause);
+    }
+
+    /**
+     * Queues a record. Never blocks; drops the record if the ring is full
+     * or the type is over its error rate.
+     *
+     * @param clientId 0 when no client is involved
+     * @param bytes    0 when there is no size to report
+     */
+    static void log(Type type, int clientId, long bytes, String detail, Throwable cause) {
+        if (type.error && !type.allow()) {
+            suppressed.increment();
+            return;
+        }
+        long sequence;
+        do {
+            sequence = head.get();
+            if (sequence - tail >= CAPACITY) {
+                dropped.increment();
+                return;
+            }
+        } while (!head.compareAndSet(sequence, sequence + 1));
+        ring.set((int) sequence & (CAPACITY - 1), new Event(type, clientId, bytes, detail, cause));
+        logged.increment();
+    }
+
+    private static void writeLoop() {
+        long lastSummary = System.nanoTime();
+        while (true) {
+            boolean wrote = drain();
+            long now = System.nanoTime();
+            if (now - lastSummary >= 1_000_000_000L) {
+                lastSummary = now;
+                summarize();
+            }
+            if (!wrote) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Prints the records published so far, up to the first one still
+     * being stored. Returns false if there were none. Only ever runs on
+     * one thread at a time.
+     */
+    private static synchronized boolean drain() {
+        StringBuilder batch = null;
+        long next = tail;
+        while (next < head.get()) {
+            int slot = (int) next & (CAPACITY - 1);
+            Event event = ring.get(slot);
+            if (event == null)
+                break; // Claimed but not stored yet, picked up next time
+            ring.set(slot, null);
+            tail = ++next; // Frees the slot for producers
+            if (batch == null) {
+                batch = new StringBuilder(4096);
+            }
+            format(batch, event);
+        }
+        if (batch == null)
+            return false;
+        out.print(batch);
+        return true;
+    }
+
+    /**
+     * Prints how many records each type lost to the rate limit, and how
+     * many were dropped because the ring was full, since the last summary.
+     */
+    private static void summarize() {
+        for (Type type : Type.values()) {
+            long count = type.suppressed.sumThenReset();
+            if (count > 0) {
+                out.println(Instant.now() + " " + type + " suppressed=" + count);
+            }
+        }
+        long drops = dropped.sum();
+        if (drops > reportedDrops) {
+            out.println(Instant.now() + " EVENT_LOG_FULL dropped=" + (drops - reportedDrops));
+            reportedDrops = drops;
+        }
+    }
+
+    private static void format(StringBuilder line, Event event) {
+        line.append(Instant.ofEpochMilli(event.time)).append(' ').append(event.type);
+        if (event.clientId != 0) {
+            line.append(" client=").append(event.clientId);
+        }
+        if (event.bytes != 0) {
+            line.append(" bytes=").append(event.bytes);
+        }
+        if (event.detail != null) {
+            line.append(" detail=\"").append(event.detail).append('"');
+        }
+        if (event.cause != null) {
+            line.append(" cause=\"").append(event.cause).append('"');
+        }
+        line.append('\n');
+    }
+}
@@ -0,0 +1,103 @@
+import java.nio.ByteBuffer;
+
+/**
+ * An outbound packet: the 9-byte [Type][SenderID][Length] header followed by
+ * the body exactly as it was received. The body is shared read-only between
+ * every recipient of a broadcast and is never copied on the way out.
+ * The prebuilt header is the protocol version 1 one; writers of version 2
+ * connections encode their own from the type, sender and body length.
+ * Whoever holds a frame holds a reference to its pooled body and must
+ * release it when done.
+ * Bodies too large to buffer are relayed by StreamedFrame instead, whose
+ * queue entries extend this class without a body of their own.
+ */
+class Frame {
+    static final int HEADER_SIZE = 9;
+    private static final ByteBuffer NOT_SMALLER = ByteBuffer.allocate(0);
+
+    final byte type;
+    final int senderId;
+    private final ByteBuffer header;
+    private final ByteBuffer body;
+    private final BufferPool.PooledBuffer pooled;
+    private ByteBuffer compressed; // Made on first use, guarded by this
+
+    /**
+     * Takes over the caller's reference to {@code pooled}.
+     */
+    Frame(byte type, int senderId, BufferPool.PooledBuffer pooled) {
+        this.type = type;
+        this.senderId = senderId;
+        this.pooled = pooled;
+        this.body = pooled.buffer().asReadOnlyBuffer();
+        this.header = header(type, senderId, body.remaining());
+    }
+
+    /**
+     * A header-only frame whose body is supplied separately.
+     */
+    Frame(byte type, int senderId, int length) {
+        this.type = type;
+        this.senderId = senderId;
+        this.pooled = null;
+        this.body = null;
+        this.header = header(type, senderId, length);
+    }
+
+    private static ByteBuffer header(byte type, int senderId, int length) {
+        ByteBuffer h = ByteBuffer.allocate(HEADER_SIZE);
+        h.put(type);
+        h.putInt(senderId);
+        h.putInt(length);
+        h.flip();
+        return h.asReadOnlyBuffer();
+    }
+
+    /**
+     * Total size on the wire.
+     */
+    int length() {
+        return HEADER_SIZE + body.remaining();
+    }
+
+    int bodyLength() {
+        return body.remaining();
+    }
+
+    /**
+     * A fresh view of the header, so each writer has its own position.
+     */
+    ByteBuffer header() {
+        return header.duplicate();
+    }
+
+    /**
+     * A fresh view of the shared body.
+     */
+    ByteBuffer body() {
+        return body.duplicate();
+    }
+
+    /**
+     * The body as sent in a COMPRESSED frame, or null if compressing does
+     * not make it smaller. Compressed by the first writer that asks and then
+     * shared, like the body.
+     */
+    synchronized ByteBuffer compressedBody() {
+        if (compressed == null) {
+            byte[] data = new byte[body.remaining()];
+            body.duplicate().get(data);
+            byte[] packed = Protocol.compress(data, 0, data.length);
+            compressed = packed != null ? ByteBuffer.wrap(packed).asReadOnlyBuffer() : NOT_SMALLER;
+        }
+        return compressed != NOT_SMALLER ? compressed.duplicate() : null;
+    }
+
+    void retain() {
+        pooled.retain();
+    }
+
+    void release() {
+        pooled.release();
+    }
+}
@@ -0,0 +1,105 @@
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Idle Timer
+ * One hashed timer wheel for the idle checks of every connection, instead
+ * of a timer per connection.
+ *
+ * Each connection sits in exactly one slot, the one for the next moment
+ * something about it could be due: a ping, a read timeout or a write
+ * timeout. Readers and writers never touch the wheel; they only stamp the
+ * connection with the coarse time kept here. When its slot comes round,
+ * the connection is checked against those stamps and put back in the slot
+ * for its next deadline, or dropped once it has been evicted. A slot holds
+ * deadlines from any turn of the wheel, and those from a later turn are
+ * simply put back.
+ *
+ * The wheel is only touched by its own thread. Connections to add are
+ * handed over through a concurrent queue.
+ */
+final class IdleTimer implements Runnable {
+    private static final long TICK_MILLIS = 100;
+    private static final int WHEEL_SIZE = 512; // Power of two, 51.2 s per turn
+
+    // Milliseconds on a monotonic clock, advanced once per tick
+    private static volatile long now = System.nanoTime() / 1_000_000;
+
+    // --- Metrics ---
+    static final LongAdder pings = new LongAdder();
+    static final LongAdder readIdleEvictions = new LongAdder();
+    static final LongAdder writeIdleEvictions = new LongAdder();
+
+    private final Queue<Server.Connection> added = new ConcurrentLinkedQueue<>();
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ArrayDeque<Server.Connection>[] wheel = new ArrayDeque[WHEEL_SIZE];
+    private long tick; // Next tick to run, in ticks since the clock's origin
+
+    IdleTimer() {
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel[i] = new ArrayDeque<>();
+        }
+        tick = now / TICK_MILLIS;
+    }
+
+    /**
+     * The time readers and writers stamp connections with. Cheaper than
+     * reading the system clock and accurate to a tick.
+     */
+    static long now() {
+        return now;
+    }
+
+    /**
+     * Starts watching a connection. Safe from any thread.
+     */
+    void add(Server.Connection connection) {
+        added.add(connection);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            LockSupport.parkNanos(TICK_MILLIS * 1_000_000);
+            long time = System.nanoTime() / 1_000_000;
+            now = time;
+
+            Server.Connection connection;
+            while ((connection = added.poll()) != null) {
+                schedule(connection, time);
+            }
+            // Catch up on ticks missed while the thread was not scheduled
+            while (tick <= time / TICK_MILLIS) {
+                runSlot(wheel[(int) (tick & (WHEEL_SIZE - 1))], time);
+                tick++;
+            }
+        }
+    }
+
+    private void runSlot(ArrayDeque<Server.Connection> slot, long time) {
+        for (int i = slot.size(); i > 0; i--) {
+            Server.Connection connection = slot.poll();
+            if (connection.idleDeadline > time) {
+                slot.add(connection); // Due on a later turn
+            } else {
+                long next = Server.checkIdle(connection, time);
+                if (next >= 0) {
+                    schedule(connection, next);
+                }
+            }
+        }
+    }
+
+    /**
+     * Puts a connection in the first slot that runs at or after the given
+     * time, and never in the one running now.
+     */
+    private void schedule(Server.Connection connection, long deadline) {
+        connection.idleDeadline = deadline;
+        long slot = Math.max(tick + 1, (deadline + TICK_MILLIS - 1) / TICK_MILLIS);
+        wheel[(int) (slot & (WHEEL_SIZE - 1))].add(connection);
+    }
+}
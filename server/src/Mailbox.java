@@ -0,0 +1,408 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Offline Mailbox
+ * Holds the direct messages sent to a registered user while it is not
+ * connected, and hands them over when it logs in again.
+ *
+ * Messages are kept as the frames that would have been sent, sharing their
+ * pooled bodies. Memory is bounded twice: per mailbox by userMemoryLimit,
+ * and across all mailboxes by memoryLimit. Past either limit messages go to
+ * a spill file in the forward packet format instead, and once a mailbox has
+ * spilled, every later message follows it there so the order is kept. A
+ * mailbox holds at most {@code limit} bytes in total; further messages are
+ * dropped.
+ *
+ * Spilled messages wait in the spill queue until the mailbox-spill thread
+ * has written them, so the thread storing a message never waits for the
+ * disk. While a mailbox is being delivered the spill thread leaves it
+ * alone, and the delivery sends what is still queued from memory.
+ *
+ * On login the mailbox is delivered by the connection's writer: the frames
+ * in memory first, then the spill file with FileChannel.transferTo, in
+ * batches of about BATCH_BYTES of whole messages, then the spill queue.
+ * Once it is empty the server forgets the mailbox. A message leaves the
+ * mailbox only once it has been written to the socket, so a delivery cut
+ * short by a disconnect continues from there on the next login, at worst
+ * repeating part of a batch. What a dropped connection still had in its
+ * socket buffer is lost, as for any other message.
+ *
+ * Messages still in memory are lost when the server stops; spill files are
+ * temporary too.
+ */
+final class Mailbox {
+    private static final int BATCH_BYTES = 64 * 1024;
+
+    // --- Metrics ---
+    static final LongAdder stored = new LongAdder(); // Messages put in a mailbox
+    static final LongAdder spilled = new LongAdder(); // Of those, written to a spill file
+    static final LongAdder dropped = new LongAdder(); // Mailbox full or spill failed
+    static final LongAdder deliveredBytes = new LongAdder();
+    private static final AtomicLong memoryInUse = new AtomicLong(); // All mailboxes
+
+    private static final ExecutorService spiller = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "mailbox-spill");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final int userId;
+    private final long memoryLimit;
+    private final long userMemoryLimit;
+    private final long limit;
+
+    // --- Guarded by this ---
+    private final ArrayDeque<Frame> memory = new ArrayDeque<>();
+    private long memoryBytes;
+    private File spillFile;
+    private FileChannel spill; // Null while nothing is spilled
+    private long spillRead, spillEnd; // Undelivered part of the spill file
+    private final ArrayDeque<Long> batchEnds = new ArrayDeque<>(); // Message boundaries about BATCH_BYTES apart
+    private long lastBatchEnd;
+    private final ArrayDeque<Frame> spillQueue = new ArrayDeque<>(); // Newer than the spill file, not written yet
+    private long queuedBytes;
+    private boolean spillScheduled; // The spill thread has been given this mailbox
+    private Delivery delivery; // The one that may take messages out
+
+    /**
+     * @param memoryLimit     bytes all mailboxes together keep in memory
+     * @param userMemoryLimit bytes this mailbox keeps in memory
+     * @param limit           bytes this mailbox holds in memory and on disk
+     */
+    Mailbox(int userId, long memoryLimit, long userMemoryLimit, long limit) {
+        this.userId = userId;
+        this.memoryLimit = memoryLimit;
+        this.userMemoryLimit = userMemoryLimit;
+        this.limit = limit;
+    }
+
+    /**
+     * Chat messages are kept; calls and file transfers need the other side
+     * to answer and are dropped as before.
+     */
+    static boolean accepts(byte type) {
+        return type >= 1 && type <= 3;
+    }
+
+    static long memoryInUse() {
+        return memoryInUse.get();
+    }
+
+    /**
+     * Keeps a frame for the user. Returns false if it was dropped.
+     */
+    synchronized boolean store(Frame frame) {
+        int size = frame.length();
+        if (memoryBytes + (spillEnd - spillRead) + queuedBytes + size > limit) {
+            dropped.increment();
+            return false;
+        }
+        frame.retain();
+        if (spillRead == spillEnd && spillQueue.isEmpty() && memoryBytes + size <= userMemoryLimit
+                && reserveMemory(size)) {
+            memory.add(frame);
+            memoryBytes += size;
+        } else {
+            spillQueue.add(frame);
+            queuedBytes += size;
+            scheduleSpill();
+            spilled.increment();
+        }
+        stored.increment();
+        return true;
+    }
+
+    /**
+     * True when every message has been delivered.
+     */
+    synchronized boolean isEmpty() {
+        return memory.isEmpty() && spillRead == spillEnd && spillQueue.isEmpty();
+    }
+
+    /**
+     * Takes size bytes from the budget shared by all mailboxes.
+     */
+    private boolean reserveMemory(int size) {
+        long used;
+        do {
+            used = memoryInUse.get();
+            if (used + size > memoryLimit)
+                return false;
+        } while (!memoryInUse.compareAndSet(used, used + size));
+        return true;
+    }
+
+    /**
+     * Hands the mailbox to the spill thread unless it already has it or a
+     * delivery is running. Holds the lock.
+     */
+    private void scheduleSpill() {
+        if (!spillScheduled && delivery == null && !spillQueue.isEmpty()) {
+            spillScheduled = true;
+            spiller.execute(this::writeSpill);
+        }
+    }
+
+    /**
+     * Runs on the spill thread: appends the spill queue to the spill file,
+     * creating it if needed, without holding the lock while writing. The
+     * written frames leave the queue only if no delivery has started in the
+     * meantime; otherwise the delivery sends them and the bytes written
+     * past the end of the file are overwritten later.
+     */
+    private void writeSpill() {
+        while (true) {
+            List<Frame> batch;
+            FileChannel channel;
+            long start;
+            synchronized (this) {
+                if (spillQueue.isEmpty() || delivery != null) {
+                    spillScheduled = false;
+                    return;
+                }
+                batch = new ArrayList<>(spillQueue);
+                for (Frame frame : batch) {
+                    frame.retain(); // A delivery may take them out of the queue while they are written
+                }
+                channel = spill;
+                start = spillEnd;
+            }
+
+            File created = null;
+            long[] ends = new long[batch.size()];
+            boolean failed = false;
+            try {
+                if (channel == null) {
+                    created = File.createTempFile("mailbox-" + userId + "-", ".spill");
+                    created.deleteOnExit();
+                    channel = FileChannel.open(created.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                }
+                long position = start;
+                for (int i = 0; i < ends.length; i++) {
+                    Frame frame = batch.get(i);
+                    for (ByteBuffer part : new ByteBuffer[] { frame.header(), frame.body() }) {
+                        while (part.hasRemaining()) {
+                            position += channel.write(part, position);
+                        }
+                    }
+                    ends[i] = position;
+                }
+            } catch (ClosedChannelException e) {
+                failed = true; // A delivery emptied the mailbox and closed the file
+            } catch (IOException e) {
+                EventLog.error(EventLog.Type.MAILBOX_SPILL_FAILED, userId, e);
+                failed = true;
+            }
+
+            boolean adopted = false;
+            synchronized (this) {
+                if (failed) {
+                    for (Frame frame : batch) {
+                        if (spillQueue.peek() != frame)
+                            break;
+                        dequeue();
+                        dropped.increment();
+                    }
+                } else if (delivery == null && spillEnd == start && spill == (created != null ? null : channel)) {
+                    if (created != null) {
+                        spill = channel;
+                        spillFile = created;
+                        adopted = true;
+                    }
+                    for (int i = 0; i < ends.length && spillQueue.peek() == batch.get(i); i++) {
+                        dequeue();
+                        spillEnd = ends[i];
+                        if (spillEnd - lastBatchEnd >= BATCH_BYTES) {
+                            batchEnds.add(spillEnd);
+                            lastBatchEnd = spillEnd;
+                        }
+                    }
+                }
+            }
+            if (created != null && !adopted) {
+                close(channel);
+                created.delete();
+            }
+            for (Frame frame : batch) {
+                frame.release();
+            }
+        }
+    }
+
+    /**
+     * Takes the oldest frame out of the spill queue. Holds the lock.
+     */
+    private void dequeue() {
+        Frame frame = spillQueue.poll();
+        queuedBytes -= frame.length();
+        frame.release();
+    }
+
+    /**
+     * Starts handing the mailbox to a client that just logged in, taking
+     * over from any earlier delivery. Returns null if it is empty.
+     */
+    synchronized Delivery deliver() {
+        delivery = isEmpty() ? null : new Delivery();
+        return delivery;
+    }
+
+    private void closeSpill() {
+        close(spill);
+        spillFile.delete();
+        spill = null;
+        spillFile = null;
+        spillRead = spillEnd = lastBatchEnd = 0;
+        batchEnds.clear();
+    }
+
+    /**
+     * Queue entry that writes the mailbox out on the connection's writer.
+     */
+    final class Delivery extends TransferFrame {
+        private Frame head; // Frame from memory being written
+        private final ByteBuffer headHeader = ByteBuffer.allocate(Protocol.MAX_HEADER_SIZE);
+        private ByteBuffer headBody;
+        private final TransferFrame.PacketCopier copier = new TransferFrame.PacketCopier(); // Batch being sent
+        private FileChannel channel; // Spill file it comes from
+        private long batchEnd;
+
+        private Delivery() {
+            super(UserRegistry.TYPE_LOGIN, 0);
+        }
+
+        @Override
+        int length() {
+            return 0; // The mailbox keeps counting its messages until they are written
+        }
+
+        @Override
+        boolean transferTo(WritableByteChannel target, Protocol.Encoder encoder) throws IOException {
+            while (true) {
+                if (head != null) {
+                    target.write(headHeader);
+                    if (!headHeader.hasRemaining()) {
+                        target.write(headBody);
+                    }
+                    if (headHeader.hasRemaining() || headBody.hasRemaining())
+                        return false; // Socket buffer is full
+                    deliveredBytes.add(head.length());
+                    written(head);
+                    head = null;
+                } else if (!copier.isDone()) {
+                    long start = copier.position();
+                    boolean done = copier.copy(target, encoder);
+                    deliveredBytes.add(copier.position() - start);
+                    if (!done)
+                        return false;
+                    written(batchEnd);
+                } else if (!next(encoder)) {
+                    if (isEmpty()) {
+                        Server.mailboxDelivered(userId, Mailbox.this);
+                    }
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Picks the next message from memory, the next batch from the spill
+         * file or the next message from the spill queue. Returns false when
+         * the mailbox is empty, or this delivery has been taken over or
+         * released.
+         */
+        private boolean next(Protocol.Encoder encoder) {
+            synchronized (Mailbox.this) {
+                if (delivery != this)
+                    return false;
+                if (!memory.isEmpty()) {
+                    start(memory.peek(), encoder);
+                    return true;
+                }
+                if (spillRead < spillEnd) {
+                    channel = spill;
+                    batchEnd = batchEnds.isEmpty() ? spillEnd : batchEnds.peek();
+                    copier.start(channel, spillRead, batchEnd);
+                    return true;
+                }
+                if (!spillQueue.isEmpty()) {
+                    start(spillQueue.peek(), encoder);
+                    return true;
+                }
+                if (spill != null) {
+                    closeSpill();
+                }
+                delivery = null;
+                return false;
+            }
+        }
+
+        private void start(Frame frame, Protocol.Encoder encoder) {
+            head = frame;
+            headHeader.clear();
+            encoder.encode(headHeader, frame.type, 0, frame.senderId, frame.bodyLength());
+            headHeader.flip();
+            headBody = frame.body();
+        }
+
+        private void written(Frame frame) {
+            synchronized (Mailbox.this) {
+                if (delivery != this)
+                    return;
+                if (memory.peek() == frame) {
+                    memory.poll();
+                    memoryBytes -= frame.length();
+                    memoryInUse.addAndGet(-frame.length());
+                    frame.release();
+                } else if (spillQueue.peek() == frame) {
+                    dequeue();
+                }
+            }
+        }
+
+        private void written(long end) {
+            synchronized (Mailbox.this) {
+                if (delivery == this && spill == channel && end > spillRead) {
+                    spillRead = end;
+                    while (!batchEnds.isEmpty() && batchEnds.peek() <= end) {
+                        batchEnds.poll();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Stops the delivery. What has not been written stays in the
+         * mailbox for the next login.
+         */
+        @Override
+        void release() {
+            synchronized (Mailbox.this) {
+                if (delivery == this) {
+                    delivery = null;
+                    scheduleSpill(); // What was stored while it ran
+                }
+            }
+        }
+    }
+
+    private void close(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            EventLog.error(EventLog.Type.MAILBOX_SPILL_FAILED, userId, e);
+        }
+    }
+}
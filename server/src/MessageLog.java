@@ -0,0 +1,526 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Persistent Message Log
+ * Keeps every chat message (text, image, voice note) the server routes, so a
+ * client that connects late or reconnects can catch up on what it missed.
+ *
+ * Messages are stored in the forward packet format, [Type (1)] [SenderID (4)]
+ * [Length (4)] [Body], back to back in memory-mapped segment files. A new
+ * segment is started when the current one is full, and old segments are
+ * deleted by age and total size. Each message has an offset, counting up
+ * from 0 across all segments. Each segment file has an index file next to
+ * it holding one entry per message, [Position (4)] [Time (8)] [TargetID (4)];
+ * the offset is the segment's base offset, from the file name, plus the
+ * entry's number.
+ *
+ * In memory every segment keeps, per conversation (the broadcast channel
+ * and each pair of users), the list of its messages. A replay merges the
+ * client's conversations and sends the resulting file ranges straight from
+ * the page cache to the socket with FileChannel.transferTo; messages that
+ * follow each other in the file go out in a single transfer.
+ *
+ * Protocol (type 16, TYPE_HISTORY):
+ *   client -> server: [After (8)]  replay everything logged after this offset
+ *                                  (-1 for everything still kept)
+ *   server -> client: [Offset (8)] the client has everything up to here; sent
+ *                                  after each logged message and at the end
+ *                                  of a replay
+ */
+final class MessageLog {
+    static final byte TYPE_HISTORY = 16;
+    private static final int INDEX_ENTRY = 16; // [Position (4)] [Time (8)] [TargetID (4)]
+    private static final int INDEX_CHUNK = 64 * 1024 * INDEX_ENTRY; // Index is mapped this much at a time
+
+    // --- Metrics ---
+    static final LongAdder logged = new LongAdder(); // Messages appended
+    static final LongAdder replayedBytes = new LongAdder(); // Sent from the log with transferTo
+
+    private final File dir;
+    private final int segmentSize;
+    private final long retentionMillis;
+    private final long retentionBytes;
+
+    // --- Guarded by this ---
+    private final TreeMap<Long, Segment> segments = new TreeMap<>(); // By base offset
+    private Segment active;
+    private long nextOffset;
+    private int highestClientId; // Seen in the segments found on start
+
+    /**
+     * Opens the log in dir, creating it if needed, and indexes the segments
+     * already there.
+     */
+    MessageLog(File dir, int segmentSize, long retentionMillis, long retentionBytes) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.retentionMillis = retentionMillis;
+        this.retentionBytes = retentionBytes;
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Cannot create " + dir);
+
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".log"));
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                long base = Long.parseLong(file.getName().substring(0, file.getName().length() - 4));
+                Segment segment = new Segment(base, false);
+                segment.recover();
+                segments.put(base, segment);
+                nextOffset = base + segment.count();
+            }
+        }
+        if (!segments.isEmpty()) {
+            Segment last = segments.lastEntry().getValue();
+            last.openForAppend();
+            active = last;
+        }
+        enforceRetention();
+    }
+
+    /**
+     * Highest sender or target ID in the messages that were already on
+     * disk, so the IDs still in the log are never handed out again.
+     */
+    synchronized int highestClientId() {
+        return highestClientId;
+    }
+
+    /**
+     * Only complete chat messages are logged. Bodies too large to buffer are
+     * relayed as they arrive and are not kept.
+     */
+    boolean accepts(byte type, int length) {
+        return type >= 1 && type <= 3 && Frame.HEADER_SIZE + length <= segmentSize;
+    }
+
+    /**
+     * Offset the next message will get.
+     */
+    synchronized long nextOffset() {
+        return nextOffset;
+    }
+
+    /**
+     * Appends a routed message, the body between the buffer's position and
+     * limit. Returns its offset, or -1 if it could not be written.
+     */
+    synchronized long append(byte type, int senderId, int targetId, ByteBuffer body) {
+        int recordSize = Frame.HEADER_SIZE + body.remaining();
+        try {
+            if (active == null || active.size + recordSize > active.capacity()) {
+                roll();
+            }
+            active.append(type, senderId, targetId, body, System.currentTimeMillis());
+        } catch (IOException e) {
+            EventLog.error(EventLog.Type.LOG_WRITE_FAILED, senderId, e);
+            return -1;
+        }
+        logged.increment();
+        return nextOffset++;
+    }
+
+    private void roll() throws IOException {
+        if (active != null) {
+            active.seal();
+        }
+        active = new Segment(nextOffset, true);
+        segments.put(nextOffset, active);
+        enforceRetention();
+    }
+
+    /**
+     * Deletes the oldest segments while they are past the age limit or the
+     * log is over its size limit. The segment being written is always kept.
+     */
+    synchronized void enforceRetention() {
+        long total = 0;
+        for (Segment segment : segments.values()) {
+            total += segment.size;
+        }
+        long now = System.currentTimeMillis();
+        while (segments.size() > 1) {
+            Segment oldest = segments.firstEntry().getValue();
+            if (now - oldest.lastTime <= retentionMillis && total <= retentionBytes)
+                break;
+            segments.remove(oldest.base);
+            total -= oldest.size;
+            oldest.deleted = true;
+            if (oldest.refs == 0) {
+                oldest.delete();
+            }
+        }
+    }
+
+    /**
+     * Creates the queue entry that sends the given client the messages of
+     * its conversations with offsets after {@code after} and before
+     * {@code before}, followed by an [Offset] of before - 1.
+     */
+    synchronized Replay replay(int clientId, long after, long before) {
+        if (after >= nextOffset) {
+            after = -1; // The log has been reset since the client last saw it
+        }
+        return new Replay(clientId, after + 1, before);
+    }
+
+    /**
+     * Finds the next segment holding messages for a replay at or after its
+     * cursor and loads their file ranges into it. Returns false when the
+     * replay has reached its end.
+     */
+    private synchronized boolean loadRanges(Replay replay) {
+        while (replay.cursor < replay.before) {
+            Map.Entry<Long, Segment> entry = segments.floorEntry(replay.cursor);
+            if (entry == null) {
+                entry = segments.ceilingEntry(replay.cursor); // Older messages are gone
+                if (entry == null)
+                    return false;
+            }
+            Segment segment = entry.getValue();
+            long end = segment.base + segment.count();
+            if (end <= replay.cursor)
+                return false;
+            long from = Math.max(replay.cursor, segment.base);
+            long to = Math.min(replay.before, end);
+            replay.cursor = end;
+            if (from >= to)
+                continue;
+            if (segment.ranges(replay.clientId, (int) (from - segment.base), (int) (to - segment.base), replay.ranges)) {
+                segment.refs++;
+                replay.segment = segment;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized void release(Segment segment) {
+        if (--segment.refs == 0 && segment.deleted) {
+            segment.delete();
+        }
+    }
+
+    /**
+     * Conversation a message belongs to: 0 for broadcast, otherwise both
+     * user IDs, smaller first.
+     */
+    private static long conversation(int senderId, int targetId) {
+        if (targetId == 0)
+            return 0;
+        int low = Math.min(senderId, targetId), high = Math.max(senderId, targetId);
+        return ((long) low << 32) | (high & 0xFFFFFFFFL);
+    }
+
+    private static boolean isMember(long conversation, int clientId) {
+        return conversation == 0 || (int) (conversation >>> 32) == clientId || (int) conversation == clientId;
+    }
+
+    /**
+     * One segment file and its index. Guarded by the log.
+     */
+    private final class Segment {
+        final long base;
+        final File logFile, indexFile;
+        private final FileChannel channel; // Read by replays
+        private MappedByteBuffer map; // Null once sealed
+        private FileChannel indexChannel;
+        private MappedByteBuffer indexMap; // Current chunk of the index
+        private long indexMapStart;
+        int size; // Bytes of messages
+        long lastTime; // When the newest message was logged
+        int refs; // Replays reading from this segment
+        boolean deleted;
+
+        private final IntList positions = new IntList(); // Per message
+        private final Map<Long, IntList> conversations = new HashMap<>(); // Message numbers
+
+        Segment(long base, boolean create) throws IOException {
+            this.base = base;
+            String name = String.format("%020d", base);
+            this.logFile = new File(dir, name + ".log");
+            this.indexFile = new File(dir, name + ".idx");
+            this.channel = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (create) {
+                openForAppend();
+            }
+        }
+
+        int count() {
+            return positions.size();
+        }
+
+        int capacity() {
+            return map.capacity();
+        }
+
+        /**
+         * Rebuilds the in-memory index from the index file. Entries past the
+         * end of the log file were not completely written and are ignored.
+         */
+        void recover() throws IOException {
+            long length = channel.size();
+            if (!indexFile.exists() || length == 0)
+                return;
+            try (FileChannel index = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+                MappedByteBuffer entries = index.map(FileChannel.MapMode.READ_ONLY, 0, index.size());
+                MappedByteBuffer log = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+                while (entries.remaining() >= INDEX_ENTRY) {
+                    int position = entries.getInt();
+                    long time = entries.getLong();
+                    int targetId = entries.getInt();
+                    if (time == 0 || position != size || position + Frame.HEADER_SIZE > length)
+                        break; // Unused or torn
+                    int senderId = log.getInt(position + 1);
+                    int bodyLength = log.getInt(position + 5);
+                    if (bodyLength < 0 || position + Frame.HEADER_SIZE + bodyLength > length)
+                        break;
+                    add(position, conversation(senderId, targetId));
+                    highestClientId = Math.max(highestClientId, Math.max(senderId, targetId));
+                    size = position + Frame.HEADER_SIZE + bodyLength;
+                    lastTime = time;
+                }
+            }
+        }
+
+        void openForAppend() throws IOException {
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentSize, size));
+            indexChannel = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            mapIndex((long) count() * INDEX_ENTRY);
+        }
+
+        private void mapIndex(long position) throws IOException {
+            indexMapStart = position - position % INDEX_CHUNK;
+            indexMap = indexChannel.map(FileChannel.MapMode.READ_WRITE, indexMapStart, INDEX_CHUNK);
+        }
+
+        /**
+         * Writes the message, then its index entry, which makes it part of
+         * the log when the files are read back.
+         */
+        void append(byte type, int senderId, int targetId, ByteBuffer body, long time) throws IOException {
+            int position = size;
+            map.position(position);
+            map.put(type).putInt(senderId).putInt(body.remaining()).put(body.duplicate());
+            size = map.position();
+
+            long entry = (long) count() * INDEX_ENTRY;
+            if (entry >= indexMapStart + INDEX_CHUNK) {
+                mapIndex(entry);
+            }
+            indexMap.position((int) (entry - indexMapStart));
+            indexMap.putInt(position).putLong(time).putInt(targetId);
+
+            add(position, conversation(senderId, targetId));
+            lastTime = time;
+        }
+
+        private void add(int position, long conversation) {
+            int number = positions.size();
+            positions.add(position);
+            conversations.computeIfAbsent(conversation, c -> new IntList()).add(number);
+        }
+
+        /**
+         * Flushes the segment and drops the mappings; it is only read from
+         * now on.
+         */
+        void seal() throws IOException {
+            map.force();
+            indexMap.force();
+            map = null;
+            indexMap = null;
+            indexChannel.close();
+            indexChannel = null;
+        }
+
+        /**
+         * Fills ranges with [Position, Length] pairs covering the client's
+         * messages numbered from (inclusive) to to (exclusive), joining
+         * messages that are next to each other in the file. Returns false if
+         * there are none.
+         */
+        boolean ranges(int clientId, int from, int to, IntList ranges) {
+            List<IntList> lists = new ArrayList<>();
+            for (Map.Entry<Long, IntList> entry : conversations.entrySet()) {
+                if (isMember(entry.getKey(), clientId))
+                    lists.add(entry.getValue());
+            }
+            int[] next = new int[lists.size()];
+            for (int i = 0; i < next.length; i++) {
+                next[i] = lists.get(i).search(from);
+            }
+
+            ranges.clear();
+            int previous = -2;
+            while (true) {
+                // Lowest message number across the client's conversations
+                int best = -1, number = to;
+                for (int i = 0; i < next.length; i++) {
+                    IntList list = lists.get(i);
+                    if (next[i] < list.size() && list.get(next[i]) < number) {
+                        number = list.get(next[i]);
+                        best = i;
+                    }
+                }
+                if (best < 0)
+                    break;
+                next[best]++;
+                int start = positions.get(number);
+                int end = number + 1 < count() ? positions.get(number + 1) : size;
+                if (number == previous + 1) {
+                    ranges.set(ranges.size() - 1, ranges.get(ranges.size() - 1) + end - start);
+                } else {
+                    ranges.add(start);
+                    ranges.add(end - start);
+                }
+                previous = number;
+            }
+            return ranges.size() > 0;
+        }
+
+        void delete() {
+            try {
+                channel.close();
+                if (indexChannel != null)
+                    indexChannel.close();
+            } catch (IOException e) {
+                EventLog.log(EventLog.Type.LOG_WRITE_FAILED, 0, 0, "closing " + logFile.getName(), e);
+            }
+            map = null;
+            indexMap = null;
+            logFile.delete();
+            indexFile.delete();
+        }
+    }
+
+    /**
+     * A client's catch-up, sitting in its outbound queue like a frame. The
+     * connection's writer hands it the socket, and it sends the logged
+     * messages with FileChannel.transferTo, followed by the [Offset] marker.
+     * File ranges are worked out one segment at a time, so a long history
+     * is never listed in memory all at once.
+     */
+    final class Replay extends TransferFrame {
+        private final int clientId;
+        private final long before; // Offsets from here on reach the client live
+        private long cursor; // Next offset to look for
+        private final IntList ranges = new IntList();
+        private Segment segment; // Being sent from
+        private int range; // Next pair in ranges
+        private final TransferFrame.PacketCopier copier = new TransferFrame.PacketCopier(); // Range being sent
+        private ByteBuffer marker; // Encoded once the messages are out
+        private boolean released;
+
+        private Replay(int clientId, long from, long before) {
+            super(TYPE_HISTORY, 8);
+            this.clientId = clientId;
+            this.cursor = from;
+            this.before = before;
+        }
+
+        @Override
+        int length() {
+            // The messages come from disk, only the marker is held in memory
+            return HEADER_SIZE + 8;
+        }
+
+        /**
+         * Sends the messages and then the marker, as much as the channel
+         * takes.
+         */
+        @Override
+        boolean transferTo(WritableByteChannel target, Protocol.Encoder encoder) throws IOException {
+            while (true) {
+                if (!copier.isDone()) {
+                    long start = copier.position();
+                    boolean done = copier.copy(target, encoder);
+                    replayedBytes.add(copier.position() - start);
+                    if (!done)
+                        return false; // Socket buffer is full
+                } else if (segment != null && range < ranges.size()) {
+                    long position = ranges.get(range++);
+                    copier.start(segment.channel, position, position + ranges.get(range++));
+                } else if (!released && nextSegment()) {
+                    range = 0;
+                } else {
+                    if (marker == null) {
+                        marker = ByteBuffer.allocate(Protocol.MAX_HEADER_SIZE + 8);
+                        encoder.encode(marker, TYPE_HISTORY, 0, 0, 8);
+                        marker.putLong(before - 1).flip();
+                    }
+                    target.write(marker);
+                    return !marker.hasRemaining();
+                }
+            }
+        }
+
+        private boolean nextSegment() {
+            if (segment != null) {
+                MessageLog.this.release(segment);
+                segment = null;
+            }
+            return loadRanges(this);
+        }
+
+        /**
+         * Stops the replay and lets go of its segment.
+         */
+        @Override
+        void release() {
+            released = true;
+            if (segment != null) {
+                MessageLog.this.release(segment);
+                segment = null;
+            }
+        }
+    }
+
+    /**
+     * Growable int array, to keep per-message index entries unboxed.
+     */
+    private static final class IntList {
+        private int[] values = new int[16];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int get(int index) {
+            return values[index];
+        }
+
+        void set(int index, int value) {
+            values[index] = value;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        /**
+         * Index of the first value not less than key; the list is sorted.
+         */
+        int search(int key) {
+            int i = Arrays.binarySearch(values, 0, size, key);
+            return i >= 0 ? i : -i - 1;
+        }
+    }
+}
@@ -0,0 +1,347 @@
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.*;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics
+ * Counters and histograms on the routing path: frames and bytes per
+ * message type in and out, fan-out per routed frame, time per socket write
+ * and time spent waiting for a client's outbound queue lock, plus gauges
+ * for connections and calls.
+ *
+ * Recording is a LongAdder increment or two, so concurrent readers and
+ * writers never contend on one counter and never take a lock. Histograms
+ * have a bucket per power of two, which is coarse but needs no more than
+ * the bit length of the value to place it.
+ *
+ * Everything can be read over HTTP in the Prometheus text format
+ * (--metrics-port, bound to the loopback address) and as attributes of the
+ * JMX bean ChatServer:type=Metrics. Gauges and the counters kept by other
+ * classes are read when asked for, not on the hot path.
+ */
+final class Metrics {
+    static final String OBJECT_NAME = "ChatServer:type=Metrics";
+
+    // --- Per Message Type ---
+    private static final LongAdder[] framesIn = adders(256); // Routed from clients
+    private static final LongAdder[] bytesIn = adders(256); // Bodies, after inflating
+    private static final LongAdder[] framesOut = adders(256); // Queued for clients
+    private static final LongAdder[] bytesOut = adders(256); // Headers and bodies
+
+    // --- Histograms ---
+    static final Histogram fanout = new Histogram("chat_fanout_recipients",
+            "Clients a routed frame was queued for", 21, 1);
+    static final Histogram writeLatency = new Histogram("chat_write_seconds",
+            "Time per gathering write to a client socket", 37, 1e-9);
+    static final Histogram lockWait = new Histogram("chat_queue_lock_wait_seconds",
+            "Time a sender waited for a client's outbound queue lock", 37, 1e-9);
+    static final Histogram pingRtt = new Histogram("chat_ping_rtt_seconds",
+            "Time from a ping being queued to its pong being read", 37, 1e-9);
+
+    private Metrics() {
+    }
+
+    private static LongAdder[] adders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /**
+     * Counts a frame received from a client, by its body length.
+     */
+    static void received(byte type, int length) {
+        framesIn[type & 0xFF].increment();
+        bytesIn[type & 0xFF].add(length);
+    }
+
+    /**
+     * Counts a frame queued for a client, by its length on the wire.
+     */
+    static void queued(Frame frame) {
+        framesOut[frame.type & 0xFF].increment();
+        bytesOut[frame.type & 0xFF].add(frame.length());
+    }
+
+    /**
+     * Histogram with a bucket for each power of two, up to 2^(buckets-1).
+     * Values are recorded in whole units (nanoseconds, recipients) and
+     * scaled when exported.
+     */
+    static final class Histogram {
+        final String name;
+        private final String help;
+        private final double scale; // Exported unit per recorded unit
+        private final LongAdder[] counts;
+        private final LongAdder sum = new LongAdder();
+        private final String[] bounds; // Exported "le" labels, exact decimals
+
+        Histogram(String name, String help, int buckets, double scale) {
+            this.name = name;
+            this.help = help;
+            this.scale = scale;
+            this.counts = adders(buckets);
+            this.bounds = new String[buckets - 1];
+            for (int i = 0; i < bounds.length; i++) {
+                bounds[i] = BigDecimal.valueOf(upperBound(i)).multiply(BigDecimal.valueOf(scale))
+                        .stripTrailingZeros().toPlainString();
+            }
+        }
+
+        void record(long value) {
+            value = Math.max(0, value);
+            counts[Math.min(counts.length - 1, 64 - Long.numberOfLeadingZeros(value))].increment();
+            sum.add(value);
+        }
+
+        /**
+         * Largest value that falls in the bucket, in recorded units.
+         */
+        private static long upperBound(int bucket) {
+            return (1L << bucket) - 1;
+        }
+
+        long count() {
+            long count = 0;
+            for (LongAdder bucket : counts) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        /**
+         * Upper bound of the bucket holding the given percentile, in
+         * exported units.
+         */
+        double percentile(double percent) {
+            long[] snapshot = new long[counts.length];
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                total += snapshot[i] = counts[i].sum();
+            }
+            long rank = Math.max(1, (long) Math.ceil(percent / 100 * total));
+            long seen = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                seen += snapshot[i];
+                if (seen >= rank)
+                    return upperBound(i) * scale;
+            }
+            return 0;
+        }
+
+        void writePrometheus(StringBuilder out) {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(" histogram\n");
+            long cumulative = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                cumulative += counts[i].sum();
+                out.append(name).append("_bucket{le=\"").append(bounds[i]).append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+            cumulative += counts[counts.length - 1].sum();
+            out.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+            out.append(name).append("_sum ").append(sum.sum() * scale).append('\n');
+            out.append(name).append("_count ").append(cumulative).append('\n');
+        }
+    }
+
+    /**
+     * Scalar metrics by name: gauges first, then the counters of the
+     * server's parts. Read when exported, so computing them may cost a pass
+     * over the clients.
+     */
+    static Map<String, Number> scalars() {
+        int connected = 0, inCall = 0, calls = 0, groupCall = 0;
+        long queuedBytes = 0;
+        for (Server.Connection client : Server.clients()) {
+            connected++;
+            queuedBytes += client.outbound.bytes();
+            int peer = client.callPeer;
+            if (peer != 0) {
+                inCall++;
+                // Each call once, by its lower ID or by the end on this node
+                if (client.id < peer || Server.client(peer) == null) {
+                    calls++;
+                }
+            }
+            if (client.mixerInput != null) {
+                groupCall++;
+            }
+        }
+
+        Map<String, Number> values = new LinkedHashMap<>();
+        values.put("chat_active_connections", connected);
+        values.put("chat_active_calls", calls);
+        values.put("chat_clients_in_call", inCall);
+        values.put("chat_group_call_participants", groupCall);
+        values.put("chat_queued_bytes", queuedBytes);
+        values.put("chat_voice_drops_total", OutboundQueue.voiceDrops.sum());
+        values.put("chat_frame_drops_total", OutboundQueue.frameDrops.sum());
+        values.put("chat_slow_consumer_disconnects_total", OutboundQueue.slowConsumerDisconnects.sum());
+        values.put("chat_pool_acquires_total", BufferPool.acquires.sum());
+        values.put("chat_pool_hits_total", BufferPool.hits.sum());
+        values.put("chat_pool_outstanding", BufferPool.outstanding.sum());
+        values.put("chat_mixed_frames_total", AudioMixer.mixedFrames.sum());
+        values.put("chat_mix_skipped_frames_total", AudioMixer.skippedFrames.sum());
+        values.put("chat_system_events_total", SystemEvents.published.sum());
+        values.put("chat_system_events_dropped_total", SystemEvents.dropped.sum());
+        values.put("chat_compressed_in_total", Server.Connection.compressedIn.sum());
+        values.put("chat_compressed_out_total", Server.Connection.compressedOut.sum());
+        values.put("chat_compression_saved_bytes_total", Server.Connection.compressionSaved.sum());
+        values.put("chat_mailbox_stored_total", Mailbox.stored.sum());
+        values.put("chat_mailbox_memory_bytes", Mailbox.memoryInUse());
+        values.put("chat_pings_total", IdleTimer.pings.sum());
+        values.put("chat_read_idle_evictions_total", IdleTimer.readIdleEvictions.sum());
+        values.put("chat_write_idle_evictions_total", IdleTimer.writeIdleEvictions.sum());
+        values.put("chat_write_failure_evictions_total", Server.writeFailureEvictions.sum());
+        values.put("chat_events_logged_total", EventLog.logged.sum());
+        values.put("chat_events_dropped_total", EventLog.dropped.sum());
+        values.put("chat_events_suppressed_total", EventLog.suppressed.sum());
+        return values;
+    }
+
+    /**
+     * Everything in the Prometheus text exposition format, version 0.0.4.
+     */
+    static String prometheus() {
+        StringBuilder out = new StringBuilder(8 * 1024);
+        for (Map.Entry<String, Number> entry : scalars().entrySet()) {
+            String name = entry.getKey();
+            out.append("# TYPE ").append(name).append(name.endsWith("_total") ? " counter\n" : " gauge\n");
+            out.append(name).append(' ').append(entry.getValue()).append('\n');
+        }
+        writeByType(out, "chat_frames_received_total", framesIn);
+        writeByType(out, "chat_bytes_received_total", bytesIn);
+        writeByType(out, "chat_frames_sent_total", framesOut);
+        writeByType(out, "chat_bytes_sent_total", bytesOut);
+        fanout.writePrometheus(out);
+        writeLatency.writePrometheus(out);
+        lockWait.writePrometheus(out);
+        pingRtt.writePrometheus(out);
+        return out.toString();
+    }
+
+    /**
+     * Writes a counter labelled by message type, for the types seen so far.
+     */
+    private static void writeByType(StringBuilder out, String name, LongAdder[] counters) {
+        out.append("# TYPE ").append(name).append(" counter\n");
+        for (int type = 0; type < counters.length; type++) {
+            long value = counters[type].sum();
+            if (value > 0) {
+                out.append(name).append("{type=\"").append(type).append("\"} ").append(value).append('\n');
+            }
+        }
+    }
+
+    /**
+     * Serves GET /metrics on the loopback address. The server runs on a
+     * thread of its own, so a scrape never holds up client I/O.
+     */
+    static void startHttp(int port) throws IOException {
+        HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/metrics", exchange -> {
+            byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        http.start();
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, for JConsole
+     * and other JMX tools.
+     */
+    static void registerMBean() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(), new ObjectName(OBJECT_NAME));
+    }
+
+    /**
+     * Read-only view of the same metrics as attributes. Counters by type
+     * are summed over the types, histograms give count and percentiles.
+     */
+    private static final class Bean implements DynamicMBean {
+        private Map<String, Number> values() {
+            Map<String, Number> values = scalars();
+            values.put("chat_frames_received_total", total(framesIn));
+            values.put("chat_bytes_received_total", total(bytesIn));
+            values.put("chat_frames_sent_total", total(framesOut));
+            values.put("chat_bytes_sent_total", total(bytesOut));
+            for (Histogram histogram : new Histogram[] { fanout, writeLatency, lockWait, pingRtt }) {
+                values.put(histogram.name + "_count", histogram.count());
+                values.put(histogram.name + "_p50", histogram.percentile(50));
+                values.put(histogram.name + "_p99", histogram.percentile(99));
+                values.put(histogram.name + "_p999", histogram.percentile(99.9));
+            }
+            return values;
+        }
+
+        private static long total(LongAdder[] counters) {
+            long total = 0;
+            for (LongAdder counter : counters) {
+                total += counter.sum();
+            }
+            return total;
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Number value = values().get(attribute);
+            if (value == null)
+                throw new AttributeNotFoundException(attribute);
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Number> values = values();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                if (values.containsKey(attribute)) {
+                    list.add(new Attribute(attribute, values.get(attribute)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String action, Object[] params, String[] signature) throws MBeanException {
+            throw new MBeanException(new UnsupportedOperationException(action));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (Map.Entry<String, Number> entry : values().entrySet()) {
+                attributes.add(new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+                        entry.getKey(), true, false, false));
+            }
+            return new MBeanInfo(getClass().getName(), "Chat server metrics",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
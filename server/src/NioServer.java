@@ -0,0 +1,446 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * NIO Chat Server
+ * Serves all clients from a few selector threads instead of one thread per
+ * connection. Speaks the same [Type][TargetID][Length][Body] protocol, so
+ * existing clients work unchanged.
+ */
+class NioServer {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final long SELECT_TIMEOUT = 1000; // ms, how often stalled streams are checked
+
+    private final int port;
+    private final IoLoop[] loops;
+
+    NioServer(int port, int ioThreads) throws IOException {
+        this.port = port;
+        this.loops = new IoLoop[Math.max(1, ioThreads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new IoLoop();
+        }
+    }
+
+    /**
+     * Starts the I/O threads and accepts connections on the calling thread,
+     * handing each one to the loops in round-robin order.
+     */
+    void run() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            new Thread(loops[i], "nio-io-" + i).start();
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                if (!Server.configureSocket(channel, false))
+                    continue;
+
+                int clientId = Server.nextClientId();
+                EventLog.event(EventLog.Type.CONNECT, clientId, String.valueOf(channel.socket().getRemoteSocketAddress()));
+
+                IoLoop loop = loops[next];
+                next = (next + 1) % loops.length;
+                NioConnection connection = new NioConnection(channel, clientId, loop);
+                Server.addClient(connection);
+                loop.execute(connection::register);
+            }
+        }
+    }
+
+    /**
+     * A single selector thread. Other threads talk to it through the task
+     * queue so that all key and channel state is only touched here.
+     */
+    private static class IoLoop implements Runnable {
+        private volatile Selector selector; // Replaced if select() fails
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        // Connections not reading because their stream window is full
+        private final Set<NioConnection> paused = new HashSet<>();
+        // Connections waiting out the coalescing linger before writing
+        private final Set<NioConnection> lingering = new HashSet<>();
+
+        IoLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select(lingering.isEmpty() ? SELECT_TIMEOUT : 1);
+                } catch (IOException e) {
+                    EventLog.error(EventLog.Type.SELECT_FAILED, 0, e);
+                    if (!rebuildSelector())
+                        return;
+                    continue;
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    boolean writing = false;
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable(readBuffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            writing = true;
+                            connection.onWritable();
+                        }
+                    } catch (IOException e) {
+                        if (writing) {
+                            Server.writeFailureEvictions.increment();
+                            Server.evict(connection, EventLog.Type.WRITE_FAILED, e);
+                        } else {
+                            EventLog.error(EventLog.Type.READ_FAILED, connection.id, e);
+                        }
+                        connection.close();
+                    } catch (CancelledKeyException e) {
+                        connection.close();
+                    }
+                }
+
+                if (!lingering.isEmpty()) {
+                    long now = System.nanoTime();
+                    Iterator<NioConnection> waiting = lingering.iterator();
+                    while (waiting.hasNext()) {
+                        NioConnection connection = waiting.next();
+                        if (connection.lingerDone(now)) {
+                            waiting.remove();
+                            connection.enableWrite();
+                        }
+                    }
+                }
+
+                if (!paused.isEmpty()) {
+                    long now = System.nanoTime();
+                    for (NioConnection connection : new ArrayList<>(paused)) {
+                        connection.checkStall(now);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Moves the loop's connections to a new selector after select()
+         * failed, so they keep being served. If no selector can be opened,
+         * closes them instead and waits a while before the loop tries
+         * again. Returns false if interrupted meanwhile.
+         */
+        private boolean rebuildSelector() {
+            Selector old = selector;
+            Selector fresh;
+            try {
+                fresh = Selector.open();
+            } catch (IOException e) {
+                EventLog.error(EventLog.Type.SELECT_FAILED, 0, e);
+                for (SelectionKey key : new ArrayList<>(old.keys())) {
+                    ((NioConnection) key.attachment()).close();
+                }
+                try {
+                    Thread.sleep(SELECT_TIMEOUT);
+                } catch (InterruptedException interrupted) {
+                    return false;
+                }
+                return true;
+            }
+            for (SelectionKey key : new ArrayList<>(old.keys())) {
+                NioConnection connection = (NioConnection) key.attachment();
+                try {
+                    connection.key = key.channel().register(fresh, key.interestOps(), connection);
+                } catch (ClosedChannelException | CancelledKeyException e) {
+                    connection.close();
+                }
+            }
+            selector = fresh;
+            try {
+                old.close();
+            } catch (IOException e) {
+                EventLog.error(EventLog.Type.CLOSE_FAILED, 0, e);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Per-connection state: an incremental frame decoder for the inbound side
+     * and gathering writes from the outbound queue on the outbound side.
+     */
+    private static class NioConnection extends Server.Connection {
+        private final SocketChannel channel;
+        private final IoLoop loop;
+        private SelectionKey key;
+
+        // --- Decoder State ---
+        private BufferPool.PooledBuffer body; // null while reading the header
+        private byte type;
+        private int targetId;
+        private boolean compressed;
+
+        // --- Streamed Frame State ---
+        private StreamedFrame streaming; // Inbound frame being relayed as it arrives
+        private BufferPool.PooledBuffer chunk; // Chunk of it being filled
+        private int streamRemaining; // Body bytes not yet appended
+        private long pausedAt; // When reading was paused for the window
+        private final Runnable windowListener;
+
+        // --- Write State ---
+        private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+        private long lingerUntil; // While in the loop's lingering set
+        private volatile boolean closed;
+
+        NioConnection(SocketChannel channel, int id, IoLoop loop) {
+            super(id);
+            this.channel = channel;
+            this.loop = loop;
+            this.windowListener = () -> loop.execute(this::resumeReading);
+        }
+
+        void register() {
+            try {
+                key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+                // Packets may have been queued before registration
+                if (!outbound.isEmpty()) {
+                    writeScheduled.set(true);
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void onReadable(ByteBuffer buffer) throws IOException {
+            buffer.clear();
+            if (streaming != null) {
+                if (chunk == null && !streaming.hasWindow()) {
+                    pauseReading();
+                    return;
+                }
+                // Read no further than the current chunk, so a chunk is only
+                // started once there is room for it
+                int chunkLeft = chunk != null ? chunk.buffer().remaining()
+                        : Math.min(StreamedFrame.CHUNK_SIZE, streamRemaining);
+                buffer.limit(Math.min(buffer.capacity(), chunkLeft));
+            }
+            int count = channel.read(buffer);
+            if (count < 0) {
+                close();
+                return;
+            }
+            lastRead = IdleTimer.now();
+            buffer.flip();
+
+            while (buffer.hasRemaining() && !closed) {
+                if (streaming != null) {
+                    relayChunk(buffer);
+                    continue;
+                }
+                if (body == null) {
+                    if (!decoder.readHeader(buffer))
+                        break;
+
+                    // --- Protocol Header ---
+                    // [Type] [TargetID] [Length] in the version agreed with the client
+                    if (!Server.isHeaderAllowed(this, decoder)) {
+                        close();
+                        return;
+                    }
+                    type = decoder.type;
+                    targetId = decoder.peer; // 0 = Broadcast, >0 = Direct Message
+                    int length = decoder.length;
+                    compressed = (decoder.flags & Protocol.FLAG_COMPRESSED) != 0;
+
+                    if (Server.shouldStream(length)) {
+                        streaming = Server.routeStream(this, type, targetId, length);
+                        streamRemaining = length;
+                        streaming.setWindowListener(windowListener);
+                        continue;
+                    }
+                    body = BufferPool.acquire(length);
+                }
+
+                transfer(buffer, body.buffer());
+                if (!body.buffer().hasRemaining()) {
+                    body.buffer().flip();
+                    BufferPool.PooledBuffer frame = body;
+                    body = null;
+                    if (compressed && (frame = Server.decompress(this, type, frame)) == null) {
+                        close();
+                        return;
+                    }
+                    Server.route(this, type, targetId, frame);
+                }
+            }
+        }
+
+        /**
+         * Feeds received bytes into the streamed frame, appending each chunk
+         * once it is full.
+         */
+        private void relayChunk(ByteBuffer buffer) {
+            if (chunk == null) {
+                chunk = BufferPool.acquire(Math.min(StreamedFrame.CHUNK_SIZE, streamRemaining));
+            }
+            transfer(buffer, chunk.buffer());
+            if (chunk.buffer().hasRemaining())
+                return;
+
+            chunk.buffer().flip();
+            streamRemaining -= chunk.buffer().remaining();
+            BufferPool.PooledBuffer full = chunk;
+            chunk = null;
+            streaming.append(full);
+            if (streamRemaining == 0) {
+                streaming.setWindowListener(null);
+                streaming = null;
+            }
+        }
+
+        private void pauseReading() {
+            if (paused())
+                return;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            pausedAt = System.nanoTime();
+            loop.paused.add(this);
+        }
+
+        private void resumeReading() {
+            if (!paused() || closed)
+                return;
+            loop.paused.remove(this);
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+
+        private boolean paused() {
+            return loop.paused.contains(this);
+        }
+
+        /**
+         * Drops the readers holding up the stream once reading has been
+         * paused for longer than the stall timeout.
+         */
+        void checkStall(long now) {
+            if (now - pausedAt < TimeUnit.MILLISECONDS.toNanos(Server.streamStallTimeout()))
+                return;
+            pausedAt = now;
+            if (streaming != null) {
+                streaming.disconnectLaggards();
+            }
+        }
+
+        /**
+         * Copies as many bytes as fit from src into dst.
+         */
+        private static void transfer(ByteBuffer src, ByteBuffer dst) {
+            int n = Math.min(src.remaining(), dst.remaining());
+            int limit = src.limit();
+            src.limit(src.position() + n);
+            dst.put(src);
+            src.limit(limit);
+        }
+
+        void onWritable() throws IOException {
+            while (hasPendingWrite() || fillBatch(null)) {
+                if (!writeBatch(channel))
+                    return; // Socket buffer full, wait for the next OP_WRITE
+            }
+
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            writeScheduled.set(false);
+            // A sender may have queued a packet after the loop above emptied
+            if (hasWritableData() && writeScheduled.compareAndSet(false, true)) {
+                enableWrite();
+            }
+        }
+
+        @Override
+        void onQueued() {
+            if (writeScheduled.compareAndSet(false, true)) {
+                loop.execute(Server.coalesceLinger() > 0 ? this::linger : this::enableWrite);
+            }
+        }
+
+        /**
+         * Holds back the write for up to the linger time, so frames queued
+         * meanwhile go out in the same batch.
+         */
+        private void linger() {
+            if (closed)
+                return;
+            lingerUntil = System.nanoTime() + Server.coalesceLinger();
+            if (lingerDone(lingerUntil - 1)) {
+                enableWrite();
+            } else {
+                loop.lingering.add(this);
+            }
+        }
+
+        private boolean lingerDone(long now) {
+            return now >= lingerUntil || stream != null || isBatchReady();
+        }
+
+        @Override
+        void disconnect() {
+            loop.execute(this::close);
+        }
+
+        private void enableWrite() {
+            if (key != null && key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+
+        void close() {
+            if (closed)
+                return;
+            closed = true;
+            loop.lingering.remove(this);
+            if (key != null)
+                key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                EventLog.error(EventLog.Type.CLOSE_FAILED, id, e);
+            }
+            outbound.close();
+            discardBatch();
+            if (body != null) {
+                body.release(); // Partially received frame
+                body = null;
+            }
+            if (streaming != null) {
+                loop.paused.remove(this);
+                if (chunk != null) {
+                    chunk.release();
+                    chunk = null;
+                }
+                streaming.setWindowListener(null);
+                streaming.abort(); // Recipients pad out the rest of the body
+                streaming = null;
+            }
+            Server.removeClient(this);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of packets waiting to be written to one client.
+ * Senders only enqueue, so a client with a full TCP window never blocks the
+ * thread that is broadcasting to it. When the queue grows past its limits,
+ * voice frames are dropped first and then the client is treated as a slow
+ * consumer.
+ * Call audio and signalling (types 4 and 6-10) go in a realtime lane that is
+ * always drained first, so they overtake queued images and file chunks.
+ * Everything else keeps its order.
+ * The queue retains every frame it accepts. Frames handed out by poll() and
+ * take() must be released by the writer once they are on the wire.
+ */
+class OutboundQueue {
+    private static final byte TYPE_VOICE_STREAM = 4;
+
+    enum Result {
+        QUEUED, // Accepted for delivery
+        DROPPED, // Discarded by the overflow policy
+        OVERFLOW // Queue is full, the client should be disconnected
+    }
+
+    // --- Global Metrics ---
+    static final LongAdder voiceDrops = new LongAdder();
+    static final LongAdder frameDrops = new LongAdder();
+    static final LongAdder slowConsumerDisconnects = new LongAdder();
+
+    private final long limitBytes;
+    private final long voiceLimitBytes;
+    private final boolean disconnectOnOverflow;
+
+    private final ArrayDeque<Frame> realtime = new ArrayDeque<>();
+    private final ArrayDeque<Frame> packets = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private long queuedBytes;
+    private long realtimeBytes;
+    private boolean closed;
+
+    /**
+     * @param limitBytes           maximum bytes queued before overflow
+     * @param voiceLimitBytes      voice frames are dropped once this many
+     *                             bytes of realtime frames are already queued
+     * @param disconnectOnOverflow disconnect the client on overflow instead
+     *                             of dropping the new packet
+     */
+    OutboundQueue(long limitBytes, long voiceLimitBytes, boolean disconnectOnOverflow) {
+        this.limitBytes = limitBytes;
+        this.voiceLimitBytes = voiceLimitBytes;
+        this.disconnectOnOverflow = disconnectOnOverflow;
+    }
+
+    Result offer(Frame frame) {
+        if (lock.tryLock()) {
+            Metrics.lockWait.record(0);
+        } else {
+            long start = System.nanoTime();
+            lock.lock();
+            Metrics.lockWait.record(System.nanoTime() - start);
+        }
+        try {
+            if (closed)
+                return Result.DROPPED;
+
+            // Late audio is useless, so voice gives way long before the hard
+            // limit. Only realtime frames are ever sent ahead of it.
+            if (frame.type == TYPE_VOICE_STREAM && realtimeBytes + frame.length() > voiceLimitBytes) {
+                voiceDrops.increment();
+                return Result.DROPPED;
+            }
+
+            if (queuedBytes + frame.length() > limitBytes) {
+                evictVoice();
+            }
+            if (queuedBytes + frame.length() > limitBytes && !isEmptyLocked()) {
+                if (disconnectOnOverflow) {
+                    slowConsumerDisconnects.increment();
+                    return Result.OVERFLOW;
+                }
+                frameDrops.increment();
+                return Result.DROPPED;
+            }
+
+            frame.retain();
+            if (Protocol.isRealtime(frame.type)) {
+                realtime.add(frame);
+                realtimeBytes += frame.length();
+            } else {
+                packets.add(frame);
+            }
+            queuedBytes += frame.length();
+            notEmpty.signal();
+            return Result.QUEUED;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes every queued voice frame to make room for other traffic.
+     */
+    private void evictVoice() {
+        Iterator<Frame> it = realtime.iterator();
+        while (it.hasNext()) {
+            Frame queued = it.next();
+            if (queued.type == TYPE_VOICE_STREAM) {
+                it.remove();
+                queuedBytes -= queued.length();
+                realtimeBytes -= queued.length();
+                queued.release();
+                voiceDrops.increment();
+            }
+        }
+    }
+
+    /**
+     * Must hold the lock. Takes the next packet, realtime ones first.
+     */
+    private Frame next() {
+        Frame frame = realtime.poll();
+        if (frame != null) {
+            realtimeBytes -= frame.length();
+        } else {
+            frame = packets.poll();
+        }
+        if (frame != null)
+            queuedBytes -= frame.length();
+        return frame;
+    }
+
+    private boolean isEmptyLocked() {
+        return realtime.isEmpty() && packets.isEmpty();
+    }
+
+    /**
+     * Returns the next packet without blocking, or null if there is none.
+     */
+    Frame poll() {
+        lock.lock();
+        try {
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the next realtime packet without blocking, or null if there
+     * is none. Lets a writer send them between the chunks of a long body.
+     */
+    Frame pollRealtime() {
+        lock.lock();
+        try {
+            Frame frame = realtime.poll();
+            if (frame != null) {
+                realtimeBytes -= frame.length();
+                queuedBytes -= frame.length();
+            }
+            return frame;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits up to nanos for at least frames packets or bytes bytes to be
+     * queued, for a realtime packet, or for the queue to close. Lets a
+     * writer gather a burst of small packets into one write.
+     */
+    void awaitBacklog(int frames, long bytes, long nanos) throws InterruptedException {
+        lock.lock();
+        try {
+            while (nanos > 0 && !closed && realtime.isEmpty() && packets.size() < frames && queuedBytes < bytes) {
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean hasRealtime() {
+        lock.lock();
+        try {
+            return !realtime.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for the next packet. Returns null once the queue is closed.
+     */
+    Frame take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (isEmptyLocked()) {
+                if (closed)
+                    return null;
+                notEmpty.await();
+            }
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isEmpty() {
+        lock.lock();
+        try {
+            return isEmptyLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int depth() {
+        lock.lock();
+        try {
+            return realtime.size() + packets.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long bytes() {
+        lock.lock();
+        try {
+            return queuedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            Frame frame;
+            while ((frame = next()) != null) {
+                frame.release();
+            }
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Rooms
+ * Named rooms that clients join, so a message can go to the members of a
+ * room instead of to everyone on the server. A room exists while it has
+ * members: the first join creates it and the last leave removes it.
+ *
+ * Each room gets an ID below zero when it is created, and messages to it
+ * are addressed like direct messages. A frame whose target is a room ID
+ * goes to every other member, provided the sender is a member too, so a
+ * room message costs as much as the room is large. Recipients see the
+ * sender's ID as for any other message. Room messages are live only; they
+ * are neither logged nor kept in mailboxes.
+ *
+ * Members are kept in a concurrent set per room, and rooms in concurrent
+ * maps, so joins, leaves and lookups in different rooms do not wait for
+ * each other. A fan-out walks the member set as it is, without a lock or a
+ * copy, while members come and go: whoever joins or leaves during a
+ * fan-out may or may not get that message, every other member gets it
+ * exactly once.
+ *
+ * Protocol (type 19, TYPE_ROOM):
+ *   client -> server, target 0:      [Name (UTF-8)]  join, creating the room
+ *   server -> client:                [RoomID (4)] [Name (UTF-8)]  joined, with
+ *                                    RoomID 0 if the name was refused
+ *   client -> server, target RoomID: empty body, leave
+ */
+final class Rooms {
+    static final byte TYPE_ROOM = 19;
+    static final int MAX_ROOMS_PER_CLIENT = 64;
+
+    private final Map<String, Room> byName = new ConcurrentHashMap<>();
+    private final Map<Integer, Room> byId = new ConcurrentHashMap<>();
+    private final AtomicInteger lastId = new AtomicInteger(); // Counts down from -1
+
+    static final class Room {
+        final int id;
+        final String name;
+        private final Set<Server.Connection> members = ConcurrentHashMap.newKeySet();
+
+        private Room(int id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+    }
+
+    static boolean isRoom(int targetId) {
+        return targetId < 0;
+    }
+
+    int count() {
+        return byId.size();
+    }
+
+    /**
+     * Adds a client to the room of that name, creating it if needed.
+     * Returns null if the name is not valid or the client is in too many
+     * rooms already.
+     */
+    Room join(Server.Connection client, String name) {
+        if (!UserRegistry.isValidName(name))
+            return null;
+        for (Room room : client.rooms) {
+            if (room.name.equals(name))
+                return room;
+        }
+        if (client.rooms.size() >= MAX_ROOMS_PER_CLIENT)
+            return null;
+        // Runs under the name's lock, so the last member cannot leave and
+        // remove the room in between
+        Room joined = byName.compute(name, (key, room) -> {
+            if (room == null) {
+                room = new Room(lastId.decrementAndGet(), key);
+                byId.put(room.id, room);
+            }
+            room.members.add(client);
+            return room;
+        });
+        client.rooms.add(joined);
+        return joined;
+    }
+
+    /**
+     * Takes a client out of a room it is in, removing the room once it is
+     * empty. Returns false if the client was not in it.
+     */
+    boolean leave(Server.Connection client, int roomId) {
+        Room room = byId.get(roomId);
+        if (room == null || !client.rooms.remove(room))
+            return false;
+        byName.computeIfPresent(room.name, (key, current) -> {
+            if (current != room)
+                return current;
+            room.members.remove(client);
+            if (!room.members.isEmpty())
+                return room;
+            byId.remove(room.id);
+            return null;
+        });
+        return true;
+    }
+
+    /**
+     * Takes a disconnected client out of all its rooms.
+     */
+    void leaveAll(Server.Connection client) {
+        while (!client.rooms.isEmpty()) {
+            leave(client, client.rooms.get(client.rooms.size() - 1).id);
+        }
+    }
+
+    /**
+     * The members a message from the sender to the room goes to, sender
+     * included; none if the room does not exist or the sender is not in it.
+     * The set is live, not a copy.
+     */
+    Collection<Server.Connection> audience(Server.Connection sender, int roomId) {
+        Room room = byId.get(roomId);
+        if (room == null || !room.members.contains(sender))
+            return Collections.emptySet();
+        return room.members;
+    }
+}
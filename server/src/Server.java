@@ -1,8 +1,11 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.*;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Chat Server
@@ -10,23 +13,309 @@ import java.util.concurrent.atomic.AtomicInteger;
  * signaling.
  */
 public class Server {
-    private static final int PORT = 8889;
+    private static final int DEFAULT_PORT = 8889;
+    private static final byte TYPE_CODECS = 15;
 
-    // Thread-safe map to store connected clients (ID -> Handler)
-    private static Map<Integer, ClientHandler> clients = new ConcurrentHashMap<>();
-    private static AtomicInteger idCounter = new AtomicInteger(1);
+    // Thread-safe map to store connected clients (ID -> Connection)
+    private static Map<Integer, Connection> clients = new ConcurrentHashMap<>();
+    private static UserRegistry users; // Hands out every client and user ID
+    // Offline mailboxes of registered users (ID -> Mailbox), from the first
+    // message kept for a user until the mailbox has been delivered
+    private static Map<Integer, Mailbox> mailboxes = new ConcurrentHashMap<>();
+    // A user's login and the messages kept for it hold the user's stripe
+    private static final Object[] mailboxLocks = new Object[64];
+    // Named rooms and their members, addressed by IDs below zero
+    private static final Rooms rooms = new Rooms();
 
+    // --- Outbound Queue Limits ---
+    private static long queueLimit = 8 * 1024 * 1024; // Bytes queued per client before overflow
+    private static long voiceQueueLimit = 256 * 1024; // Voice is dropped once this much is queued
+    private static boolean disconnectSlowConsumers = true;
+    // How long a writer waits for more small frames before writing, 0 = never
+    private static long coalesceLinger = 0; // ns
+
+    // --- Frame Size Limits ---
+    private static final int[] maxFrameSize = new int[256]; // Per message type
+    private static int streamThreshold = 1024 * 1024; // Larger bodies are relayed as they arrive
+    private static long streamStallTimeout = 10_000; // ms before stalled stream readers are dropped
+    private static int sendBufferSize = 0; // SO_SNDBUF for client sockets, 0 = OS default
+    private static UdpRelay udpRelay; // null unless --udp-port is given
+    private static AudioMixer mixer; // Group call audio
+    private static final SystemEvents systemEvents = new SystemEvents(); // Call status notices
+    private static MessageLog messageLog; // null without --log-dir
+    private static Cluster cluster; // null unless --node-id is given
+
+    // --- Idle Timeouts ---
+    private static long pingInterval = 15_000; // ms without reads before a client is pinged, 0 = never
+    private static long readIdleTimeout = 45_000; // ms without reads before a heartbeat client is evicted
+    private static long writeIdleTimeout = 30_000; // ms a write may make no progress
+    private static IdleTimer idleTimer; // null with all of the above off
+
+    // --- Mailbox Limits ---
+    private static long mailboxMemory = 64 * 1024 * 1024; // In memory across all mailboxes
+    private static long mailboxUserMemory = 1024 * 1024; // In memory per mailbox, the rest spills to disk
+    private static long mailboxLimit = 64 * 1024 * 1024; // Per mailbox, in memory and on disk
+
+    static {
+        Arrays.fill(maxFrameSize, 1024 * 1024);
+        maxFrameSize[1] = 64 * 1024; // TYPE_TEXT
+        maxFrameSize[2] = 32 * 1024 * 1024; // TYPE_IMAGE
+        maxFrameSize[3] = 32 * 1024 * 1024; // TYPE_AUDIO
+        maxFrameSize[4] = 64 * 1024; // TYPE_VOICE_STREAM
+        for (int type = 6; type <= 10; type++) {
+            maxFrameSize[type] = 4 * 1024; // Call signaling
+        }
+        maxFrameSize[11] = 4 * 1024; // TYPE_FILE_OFFER
+        maxFrameSize[12] = 64 * 1024; // TYPE_FILE_CHUNK
+        maxFrameSize[13] = 4 * 1024; // TYPE_FILE_ACK
+        maxFrameSize[15] = 256; // TYPE_CODECS
+        maxFrameSize[16] = 8; // TYPE_HISTORY
+        maxFrameSize[17] = 4 * UserRegistry.MAX_NAME_LENGTH + 1 + UserRegistry.TOKEN_LENGTH; // TYPE_LOGIN, UTF-8 name and token
+        maxFrameSize[18] = 64; // TYPE_HELLO
+        maxFrameSize[19] = 4 * UserRegistry.MAX_NAME_LENGTH; // TYPE_ROOM, UTF-8 name
+        maxFrameSize[20] = 64; // TYPE_PING
+        maxFrameSize[21] = 64; // TYPE_PONG
+        for (int i = 0; i < mailboxLocks.length; i++) {
+            mailboxLocks[i] = new Object();
+        }
+    }
+
+    // Runs client threads when --virtual-threads is on, otherwise null
+    private static ExecutorService virtualExecutor;
+
+    /**
+     * Usage: java Server [--nio] [--io-threads=N] [--virtual-threads]
+     *                    [--queue-limit=BYTES] [--voice-queue-limit=BYTES]
+     *                    [--slow-consumer=disconnect|drop] [--stats-interval=SECONDS]
+     *                    [--max-frame-size=[TYPE:]BYTES] [--stream-threshold=BYTES]
+     *                    [--stream-stall-timeout=SECONDS] [--send-buffer=BYTES]
+     *                    [--udp-port=PORT] [--log-dir=DIR] [--no-log]
+     *                    [--log-segment-size=BYTES] [--log-retention-hours=HOURS]
+     *                    [--log-retention-bytes=BYTES] [--users-file=FILE]
+     *                    [--mailbox-memory=BYTES] [--mailbox-limit=BYTES]
+     *                    [--coalesce-linger=MICROSECONDS] [--port=PORT]
+     *                    [--node-id=N --cluster-port=PORT --peer=HOST:PORT...]
+     *                    [--metrics-port=PORT] [--ping-interval=SECONDS]
+     *                    [--read-idle-timeout=SECONDS] [--write-idle-timeout=SECONDS]
+     * By default every client gets its own platform thread. With
+     * --virtual-threads each client gets a virtual thread instead (JDK 21+).
+     * With --nio the server runs a selector event loop on a few I/O threads
+     * (one per core by default).
+     */
     public static void main(String[] args) {
-        System.out.println("Chat Server starting on port " + PORT + "...");
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
+        boolean nio = false;
+        boolean virtualThreads = false;
+        int ioThreads = Runtime.getRuntime().availableProcessors();
+        int statsInterval = 0;
+        int udpPort = 0;
+        String logDir = null; // No message log unless --log-dir is given
+        int logSegmentSize = 64 * 1024 * 1024;
+        long logRetentionHours = 7 * 24;
+        long logRetentionBytes = 1024L * 1024 * 1024;
+        String usersFile = "chat-users.txt";
+        int port = DEFAULT_PORT;
+        int nodeId = -1;
+        int clusterPort = 0;
+        int metricsPort = 0;
+        List<InetSocketAddress> peers = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--nio")) {
+                nio = true;
+            } else if (arg.equals("--virtual-threads")) {
+                virtualThreads = true;
+            } else if (arg.startsWith("--io-threads=")) {
+                ioThreads = Integer.parseInt(arg.substring("--io-threads=".length()));
+            } else if (arg.startsWith("--queue-limit=")) {
+                queueLimit = Long.parseLong(arg.substring("--queue-limit=".length()));
+            } else if (arg.startsWith("--voice-queue-limit=")) {
+                voiceQueueLimit = Long.parseLong(arg.substring("--voice-queue-limit=".length()));
+            } else if (arg.startsWith("--slow-consumer=")) {
+                disconnectSlowConsumers = !arg.substring("--slow-consumer=".length()).equals("drop");
+            } else if (arg.startsWith("--stats-interval=")) {
+                statsInterval = Integer.parseInt(arg.substring("--stats-interval=".length()));
+            } else if (arg.startsWith("--max-frame-size=")) {
+                String value = arg.substring("--max-frame-size=".length());
+                int colon = value.indexOf(':');
+                if (colon < 0) {
+                    Arrays.fill(maxFrameSize, Integer.parseInt(value));
+                } else {
+                    int type = Integer.parseInt(value.substring(0, colon)) & 0xFF;
+                    maxFrameSize[type] = Integer.parseInt(value.substring(colon + 1));
+                }
+            } else if (arg.startsWith("--stream-threshold=")) {
+                streamThreshold = Integer.parseInt(arg.substring("--stream-threshold=".length()));
+            } else if (arg.startsWith("--stream-stall-timeout=")) {
+                streamStallTimeout = 1000L * Integer.parseInt(arg.substring("--stream-stall-timeout=".length()));
+            } else if (arg.startsWith("--send-buffer=")) {
+                sendBufferSize = Integer.parseInt(arg.substring("--send-buffer=".length()));
+            } else if (arg.startsWith("--udp-port=")) {
+                udpPort = Integer.parseInt(arg.substring("--udp-port=".length()));
+            } else if (arg.startsWith("--log-dir=")) {
+                logDir = arg.substring("--log-dir=".length());
+            } else if (arg.equals("--no-log")) {
+                logDir = null;
+            } else if (arg.startsWith("--log-segment-size=")) {
+                logSegmentSize = Integer.parseInt(arg.substring("--log-segment-size=".length()));
+            } else if (arg.startsWith("--log-retention-hours=")) {
+                logRetentionHours = Long.parseLong(arg.substring("--log-retention-hours=".length()));
+            } else if (arg.startsWith("--log-retention-bytes=")) {
+                logRetentionBytes = Long.parseLong(arg.substring("--log-retention-bytes=".length()));
+            } else if (arg.startsWith("--users-file=")) {
+                usersFile = arg.substring("--users-file=".length());
+            } else if (arg.startsWith("--mailbox-memory=")) {
+                mailboxMemory = Long.parseLong(arg.substring("--mailbox-memory=".length()));
+            } else if (arg.startsWith("--mailbox-limit=")) {
+                mailboxLimit = Long.parseLong(arg.substring("--mailbox-limit=".length()));
+            } else if (arg.startsWith("--coalesce-linger=")) {
+                coalesceLinger = 1000 * Long.parseLong(arg.substring("--coalesce-linger=".length()));
+            } else if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring("--port=".length()));
+            } else if (arg.startsWith("--node-id=")) {
+                nodeId = Integer.parseInt(arg.substring("--node-id=".length()));
+            } else if (arg.startsWith("--cluster-port=")) {
+                clusterPort = Integer.parseInt(arg.substring("--cluster-port=".length()));
+            } else if (arg.startsWith("--peer=")) {
+                String peer = arg.substring("--peer=".length());
+                int colon = peer.lastIndexOf(':');
+                peers.add(new InetSocketAddress(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+            } else if (arg.startsWith("--metrics-port=")) {
+                metricsPort = Integer.parseInt(arg.substring("--metrics-port=".length()));
+            } else if (arg.startsWith("--ping-interval=")) {
+                pingInterval = 1000L * Integer.parseInt(arg.substring("--ping-interval=".length()));
+            } else if (arg.startsWith("--read-idle-timeout=")) {
+                readIdleTimeout = 1000L * Integer.parseInt(arg.substring("--read-idle-timeout=".length()));
+            } else if (arg.startsWith("--write-idle-timeout=")) {
+                writeIdleTimeout = 1000L * Integer.parseInt(arg.substring("--write-idle-timeout=".length()));
+            }
+        }
+
+        if (nodeId >= Cluster.MAX_NODES || (nodeId >= 0) != (clusterPort > 0)) {
+            System.out.println("--node-id (0 to " + (Cluster.MAX_NODES - 1) + ") and --cluster-port go together");
+            return;
+        }
+
+        if (statsInterval > 0) {
+            ScheduledExecutorService stats = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "stats");
+                t.setDaemon(true);
+                return t;
+            });
+            stats.scheduleAtFixedRate(Server::printStats, statsInterval, statsInterval, TimeUnit.SECONDS);
+        }
+
+        try {
+            Metrics.registerMBean();
+        } catch (javax.management.JMException e) {
+            System.out.println("Could not register JMX metrics: " + e.getMessage());
+        }
+        if (metricsPort > 0) {
+            try {
+                Metrics.startHttp(metricsPort);
+            } catch (IOException e) {
+                System.out.println("Could not open metrics port " + metricsPort + ": " + e.getMessage());
+                return;
+            }
+            System.out.println("Metrics on http://127.0.0.1:" + metricsPort + "/metrics");
+        }
+
+        if (udpPort > 0) {
+            try {
+                udpRelay = new UdpRelay(udpPort);
+            } catch (IOException e) {
+                System.out.println("Could not open UDP port " + udpPort + ": " + e.getMessage());
+                return;
+            }
+            Thread relay = new Thread(udpRelay, "udp-relay");
+            relay.setDaemon(true);
+            relay.start();
+            System.out.println("UDP voice relay on port " + udpPort);
+        }
+
+        if (logDir != null) {
+            try {
+                messageLog = new MessageLog(new File(logDir), logSegmentSize,
+                        TimeUnit.HOURS.toMillis(logRetentionHours), logRetentionBytes);
+            } catch (IOException e) {
+                System.out.println("Could not open message log in " + logDir + ": " + e.getMessage());
+                return;
+            }
+            ScheduledExecutorService retention = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "log-retention");
+                t.setDaemon(true);
+                return t;
+            });
+            retention.scheduleAtFixedRate(messageLog::enforceRetention, 1, 1, TimeUnit.MINUTES);
+            System.out.println("Message log in " + logDir + " from offset " + messageLog.nextOffset());
+        }
+
+        try {
+            // Nodes of a cluster hand out IDs from separate partitions
+            users = nodeId >= 0 ? new UserRegistry(new File(usersFile), nodeId, Cluster.MAX_NODES)
+                    : new UserRegistry(new File(usersFile), 0, 1);
+            if (messageLog != null) {
+                users.skipPast(messageLog.highestClientId());
+            }
+        } catch (IOException e) {
+            System.out.println("Could not open user registry " + usersFile + ": " + e.getMessage());
+            return;
+        }
+        System.out.println(users.size() + " registered users in " + usersFile);
+
+        if (nodeId >= 0) {
+            cluster = new Cluster(nodeId, clusterPort, peers);
+            try {
+                cluster.start();
+            } catch (IOException e) {
+                System.out.println("Could not open cluster port " + clusterPort + ": " + e.getMessage());
+                return;
+            }
+            System.out.println("Cluster node " + nodeId + " on port " + clusterPort + " with " + peers.size() + " peers");
+        }
+
+        if (pingInterval > 0 || readIdleTimeout > 0 || writeIdleTimeout > 0) {
+            idleTimer = new IdleTimer();
+            Thread timer = new Thread(idleTimer, "idle-timer");
+            timer.setDaemon(true);
+            timer.start();
+        }
+
+        mixer = new AudioMixer(udpRelay);
+        Thread mixerThread = new Thread(mixer, "audio-mixer");
+        mixerThread.setDaemon(true);
+        mixerThread.setPriority(Thread.MAX_PRIORITY);
+        mixerThread.start();
+
+        if (nio) {
+            System.out.println("Chat Server starting on port " + port + " (NIO, " + ioThreads + " I/O threads)...");
+            try {
+                new NioServer(port, ioThreads).run();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+
+        if (virtualThreads) {
+            virtualExecutor = newVirtualThreadExecutor();
+            if (virtualExecutor == null) {
+                System.out.println("--virtual-threads requires JDK 21 or newer");
+                return;
+            }
+        }
+
+        System.out.println("Chat Server starting on port " + port + (virtualThreads ? " (virtual threads)" : "") + "...");
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
             while (true) {
-                Socket socket = serverSocket.accept();
-                int clientId = idCounter.getAndIncrement();
-                System.out.println("New client connected: User " + clientId + " (" + socket + ")");
+                SocketChannel channel = serverChannel.accept();
+                if (!configureSocket(channel, true))
+                    continue;
+                int clientId = nextClientId();
+                EventLog.event(EventLog.Type.CONNECT, clientId, String.valueOf(channel.socket().getRemoteSocketAddress()));
 
-                ClientHandler handler = new ClientHandler(socket, clientId);
-                clients.put(clientId, handler);
-                new Thread(handler).start();
+                ClientHandler handler = new ClientHandler(channel, clientId);
+                addClient(handler);
+                startThread(handler);
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -34,145 +323,1309 @@ public class Server {
     }
 
     /**
-     * Broadcasts a message to all clients except the sender.
+     * Looks up Executors.newVirtualThreadPerTaskExecutor() reflectively so the
+     * server still compiles and runs on JDKs without virtual threads.
+     * Returns null when they are not available.
      */
-    static void broadcast(byte[] data, ClientHandler sender) {
-        for (ClientHandler client : clients.values()) {
-            if (client != sender) {
-                client.sendMessage(data);
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Starts a client thread, virtual or platform depending on the mode.
+     */
+    static void startThread(Runnable task) {
+        if (virtualExecutor != null) {
+            virtualExecutor.execute(task);
+        } else {
+            new Thread(task).start();
+        }
+    }
+
+    static OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(queueLimit, voiceQueueLimit, disconnectSlowConsumers);
+    }
+
+    /**
+     * Prints outbound queue depth, drop counters and buffer pool usage.
+     */
+    static void printStats() {
+        int maxDepth = 0, v2Clients = 0;
+        long queuedFrames = 0, queuedBytes = 0;
+        for (Connection client : clients.values()) {
+            if (client.agreedVersion >= Protocol.V2) {
+                v2Clients++;
             }
+            int depth = client.outbound.depth();
+            maxDepth = Math.max(maxDepth, depth);
+            queuedFrames += depth;
+            queuedBytes += client.outbound.bytes();
         }
+        System.out.println("[stats] clients=" + clients.size()
+                + " rooms=" + rooms.count()
+                + (cluster != null ? " node=" + cluster.nodeId() + " links=" + cluster.linksUp()
+                        + " remoteClients=" + cluster.remoteClients() + " clusterForwarded=" + Cluster.forwarded.sum()
+                        + " clusterReceived=" + Cluster.received.sum() : "")
+                + " v2=" + v2Clients
+                + " queued=" + queuedFrames + " frames/" + queuedBytes + " bytes"
+                + " maxDepth=" + maxDepth
+                + " voiceDrops=" + OutboundQueue.voiceDrops.sum()
+                + " frameDrops=" + OutboundQueue.frameDrops.sum()
+                + " slowDisconnects=" + OutboundQueue.slowConsumerDisconnects.sum()
+                + String.format(" poolHitRate=%.1f%%", BufferPool.hitRate())
+                + " poolOutstanding=" + BufferPool.outstanding.sum()
+                + " mixedFrames=" + AudioMixer.mixedFrames.sum()
+                + " mixSkipped=" + AudioMixer.skippedFrames.sum()
+                + (udpRelay != null ? " udpRelayed=" + UdpRelay.relayed.sum() + " udpRejected=" + UdpRelay.rejected.sum() : "")
+                + (messageLog != null ? " logged=" + MessageLog.logged.sum() + " replayedBytes=" + MessageLog.replayedBytes.sum() : "")
+                + " mailboxStored=" + Mailbox.stored.sum()
+                + " mailboxSpilled=" + Mailbox.spilled.sum()
+                + " mailboxDropped=" + Mailbox.dropped.sum()
+                + " mailboxMemory=" + Mailbox.memoryInUse()
+                + " mailboxDeliveredBytes=" + Mailbox.deliveredBytes.sum()
+                + " systemEvents=" + SystemEvents.published.sum()
+                + " systemEventsDropped=" + SystemEvents.dropped.sum()
+                + " compressedIn=" + Connection.compressedIn.sum()
+                + " compressedOut=" + Connection.compressedOut.sum()
+                + " compressionSaved=" + Connection.compressionSaved.sum()
+                + " pings=" + IdleTimer.pings.sum()
+                + " readIdleEvictions=" + IdleTimer.readIdleEvictions.sum()
+                + " writeIdleEvictions=" + IdleTimer.writeIdleEvictions.sum()
+                + " writeFailureEvictions=" + writeFailureEvictions.sum()
+                + " eventsLogged=" + EventLog.logged.sum()
+                + " eventsDropped=" + EventLog.dropped.sum()
+                + " eventsSuppressed=" + EventLog.suppressed.sum());
     }
 
     /**
-     * Sends a message to a specific client by ID.
+     * Checks a header from a client: the decoder found nothing wrong and
+     * the length is within the limit for its type. Compressed bodies are
+     * small by nature and are never streamed.
      */
-    static void sendTo(int targetId, byte[] data) {
-        ClientHandler client = clients.get(targetId);
-        if (client != null) {
-            client.sendMessage(data);
+    static boolean isHeaderAllowed(Connection sender, Protocol.Decoder header) {
+        if (header.error() != null) {
+            EventLog.event(EventLog.Type.BAD_FRAME, sender.id, header.error());
+            return false;
         }
+        byte type = header.type;
+        int length = header.length;
+        boolean compressed = (header.flags & Protocol.FLAG_COMPRESSED) != 0;
+        if (length >= 0 && length <= maxFrameSize[type & 0xFF] && !(compressed && shouldStream(length)))
+            return true;
+        EventLog.log(EventLog.Type.BAD_FRAME, sender.id, length, "over the limit for type " + type, null);
+        return false;
     }
 
     /**
-     * Broadcasts a system message (Sender ID 0) to all clients.
+     * Inflates a COMPRESSED body from a client, so it is routed, logged and
+     * kept like any other. Takes over the caller's reference. Returns null
+     * if the body is malformed or inflates past the limit for its type.
      */
-    static void broadcastSystemMessage(String text) {
+    static BufferPool.PooledBuffer decompress(Connection sender, byte type, BufferPool.PooledBuffer body) {
+        ByteBuffer packed = body.buffer();
+        byte[] data = new byte[packed.remaining()];
+        packed.get(data);
+        body.release();
         try {
-            byte[] body = text.getBytes("UTF-8");
-            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-            DataOutputStream bufferOut = new DataOutputStream(buffer);
-            bufferOut.writeByte(1); // TYPE_TEXT
-            bufferOut.writeInt(0); // Sender ID 0 (System)
-            bufferOut.writeInt(body.length);
-            bufferOut.write(body);
-            byte[] packet = buffer.toByteArray();
-
-            for (ClientHandler client : clients.values()) {
-                client.sendMessage(packet);
+            byte[] inflated = Protocol.decompress(data, 0, data.length, maxFrameSize[type & 0xFF]);
+            Connection.compressedIn.increment();
+            return BufferPool.wrap(inflated);
+        } catch (IOException e) {
+            EventLog.error(EventLog.Type.BAD_FRAME, sender.id, e);
+            return null;
+        }
+    }
+
+    /**
+     * Bodies longer than this are streamed rather than buffered.
+     */
+    static boolean shouldStream(int length) {
+        return length > streamThreshold;
+    }
+
+    static long streamStallTimeout() {
+        return streamStallTimeout;
+    }
+
+    static long coalesceLinger() {
+        return coalesceLinger;
+    }
+
+    /**
+     * Small frames go out immediately. A smaller send buffer keeps queued
+     * frames in the outbound queue, where realtime ones can still overtake
+     * bulk, instead of in the kernel.
+     *
+     * A socket the peer has already reset fails here. It is closed and
+     * false returned, and the accept loop goes on with the next one.
+     */
+    static boolean configureSocket(SocketChannel channel, boolean blocking) {
+        try {
+            channel.configureBlocking(blocking);
+            channel.socket().setTcpNoDelay(true);
+            if (sendBufferSize > 0) {
+                channel.socket().setSendBufferSize(sendBufferSize);
             }
+            return true;
         } catch (IOException e) {
-            e.printStackTrace();
+            EventLog.error(EventLog.Type.ACCEPT_FAILED, 0, e);
+            try {
+                channel.close();
+            } catch (IOException closeFailed) {
+                EventLog.error(EventLog.Type.CLOSE_FAILED, 0, closeFailed);
+            }
+            return false;
         }
     }
 
-    static void removeClient(ClientHandler client) {
-        clients.remove(client.id);
-        System.out.println("Client disconnected: User " + client.id);
+    /**
+     * ID for a new connection, which it keeps unless it logs in.
+     */
+    static int nextClientId() {
+        return users.nextId();
+    }
+
+    static void addClient(Connection client) {
+        // Messages logged from here on reach the client live, earlier ones by replay
+        client.logStart = messageLog != null ? messageLog.nextOffset() : 0;
+        clients.put(client.id, client);
+        if (cluster != null) {
+            cluster.online(client.id);
+        }
+        if (idleTimer != null) {
+            idleTimer.add(client);
+        }
     }
 
+    // Clients dropped on their first failed write
+    static final LongAdder writeFailureEvictions = new LongAdder();
+
     /**
-     * Handles communication with a single client.
+     * Drops a client whose socket has failed or gone quiet, from any
+     * thread. Nothing more is queued for it and broadcasts skip it from
+     * now on, before its reader has noticed; the reader then cleans up the
+     * rest as for any disconnect.
+     */
+    static void evict(Connection client, EventLog.Type reason, Throwable cause) {
+        EventLog.log(reason, client.id, client.outbound.bytes(), null, cause);
+        client.evicted = true;
+        client.outbound.close();
+        if (clients.remove(client.id, client) && cluster != null) {
+            cluster.offline(client.id);
+        }
+        client.disconnect();
+    }
+
+    /**
+     * Idle check for one client, run by the idle timer when one of its
+     * deadlines may have passed. Evicts a client whose write has made no
+     * progress for the write timeout, or a heartbeat client that has sent
+     * nothing for the read timeout, and pings a client that has been quiet
+     * for the ping interval. Returns when the client should be checked
+     * next, or -1 to stop watching it.
+     */
+    static long checkIdle(Connection client, long now) {
+        if (client.evicted || client.removed)
+            return -1;
+        long writeSince = client.writeSince;
+        if (writeIdleTimeout > 0 && writeSince != 0 && now - writeSince >= writeIdleTimeout) {
+            IdleTimer.writeIdleEvictions.increment();
+            evict(client, EventLog.Type.WRITE_IDLE, null);
+            return -1;
+        }
+        long lastRead = client.lastRead;
+        boolean heartbeat = readIdleTimeout > 0 && client.heartbeat;
+        if (heartbeat && now - lastRead >= readIdleTimeout) {
+            IdleTimer.readIdleEvictions.increment();
+            evict(client, EventLog.Type.READ_IDLE, null);
+            return -1;
+        }
+        if (pingInterval > 0 && now - Math.max(lastRead, client.lastPing) >= pingInterval) {
+            ping(client);
+            client.lastPing = now;
+        }
+
+        long next = Long.MAX_VALUE;
+        if (writeIdleTimeout > 0) {
+            // A write that starts stalling now cannot time out any sooner
+            next = (writeSince != 0 ? writeSince : now) + writeIdleTimeout;
+        }
+        if (heartbeat) {
+            next = Math.min(next, lastRead + readIdleTimeout);
+        }
+        if (pingInterval > 0) {
+            next = Math.min(next, Math.max(lastRead, client.lastPing) + pingInterval);
+        }
+        return next == Long.MAX_VALUE ? -1 : next;
+    }
+
+    /**
+     * Sends [Time (8)] from sender 0; heartbeat clients echo it back.
+     */
+    private static void ping(Connection client) {
+        Frame ping = new Frame(Protocol.TYPE_PING, 0, BufferPool.wrap(ByteBuffer.allocate(8).putLong(System.nanoTime()).array()));
+        client.sendMessage(ping);
+        ping.release();
+        IdleTimer.pings.increment();
+    }
+
+    /**
+     * Broadcasts a message to all clients except the sender.
+     */
+    static void broadcast(Frame frame, Connection sender) {
+        int recipients = 0;
+        for (Connection client : clients.values()) {
+            if (client != sender && client.sendMessage(frame)) {
+                recipients++;
+            }
+        }
+        Metrics.fanout.record(recipients);
+    }
+
+    /**
+     * Sends a message to the other members of a room the sender is in.
+     */
+    static void sendToRoom(int roomId, Frame frame, Connection sender) {
+        int recipients = 0;
+        for (Connection client : rooms.audience(sender, roomId)) {
+            if (client != sender && client.sendMessage(frame)) {
+                recipients++;
+            }
+        }
+        Metrics.fanout.record(recipients);
+    }
+
+    /**
+     * Sends a message to a specific client by ID.
+     */
+    static void sendTo(int targetId, Frame frame) {
+        Connection client = clients.get(targetId);
+        Metrics.fanout.record(client != null && client.sendMessage(frame) ? 1 : 0);
+    }
+
+    /**
+     * Sends a message to a registered user, or keeps it in the user's
+     * mailbox while the user is away.
+     */
+    static void sendOrStore(int userId, Frame frame) {
+        // Login takes the same lock, so the message either goes out live or
+        // is found in the mailbox
+        synchronized (mailboxLock(userId)) {
+            Connection client = clients.get(userId);
+            if (client != null) {
+                Metrics.fanout.record(client.sendMessage(frame) ? 1 : 0);
+                return;
+            }
+            Mailbox mailbox = mailboxes.computeIfAbsent(userId,
+                    id -> new Mailbox(id, mailboxMemory, mailboxUserMemory, mailboxLimit));
+            if (!mailbox.store(frame) && mailbox.isEmpty()) {
+                mailboxes.remove(userId, mailbox);
+            }
+        }
+    }
+
+    /**
+     * Forgets a mailbox whose delivery has emptied it, unless a message
+     * has come in since.
+     */
+    static void mailboxDelivered(int userId, Mailbox mailbox) {
+        synchronized (mailboxLock(userId)) {
+            if (mailbox.isEmpty()) {
+                mailboxes.remove(userId, mailbox);
+            }
+        }
+    }
+
+    private static Object mailboxLock(int userId) {
+        return mailboxLocks[userId & (mailboxLocks.length - 1)];
+    }
+
+    /**
+     * Hands a group call frame, [Seq (4)] [Codec (1)] [Audio], to the mixer.
+     */
+    static void mixGroupAudio(Connection sender, ByteBuffer payload) {
+        mixer.offer(sender, payload);
+    }
+
+    static Collection<Connection> clients() {
+        return clients.values();
+    }
+
+    static Connection client(int id) {
+        return clients.get(id);
+    }
+
+    static void removeClient(Connection client) {
+        client.removed = true;
+        // Unless a newer login has taken the ID over
+        if (clients.remove(client.id, client) && cluster != null) {
+            cluster.offline(client.id);
+        }
+        rooms.leaveAll(client);
+        leaveMedia(client);
+        endCall(client, client.callPeer);
+        EventLog.event(EventLog.Type.DISCONNECT, client.id, null);
+    }
+
+    private static void leaveMedia(Connection client) {
+        mixer.leave(client);
+        if (udpRelay != null) {
+            udpRelay.closeSession(client);
+        }
+    }
+
+    /**
+     * Forwards a frame received from a client and announces call events.
+     * Shared by the thread-per-client and NIO modes.
+     *
+     * @param body the received payload; route() takes over the caller's
+     *             reference and shares the buffer with every recipient
+     */
+    static void route(Connection sender, byte type, int targetId, BufferPool.PooledBuffer body) {
+        Metrics.received(type, body.buffer().remaining());
+        if (type == UdpRelay.TYPE_MEDIA_SESSION) {
+            body.release(); // Only ever sent by the server
+            return;
+        }
+        if (type == TYPE_CODECS) {
+            negotiateCodec(sender, body);
+            return;
+        }
+        if (type == 4 && targetId == 0) { // Group call audio
+            mixGroupAudio(sender, body.buffer());
+            body.release();
+            return;
+        }
+        if (type == MessageLog.TYPE_HISTORY) {
+            replayHistory(sender, body);
+            return;
+        }
+        if (type == UserRegistry.TYPE_LOGIN) {
+            login(sender, body);
+            return;
+        }
+        if (type == Protocol.TYPE_HELLO) {
+            hello(sender, body);
+            return;
+        }
+        if (type == Protocol.TYPE_PONG || type == Protocol.TYPE_PING) {
+            // The read itself counted as activity, the echoed time gives the round trip
+            ByteBuffer echo = body.buffer();
+            if (type == Protocol.TYPE_PONG && echo.remaining() == 8) {
+                Metrics.pingRtt.record(System.nanoTime() - echo.getLong(echo.position()));
+            }
+            body.release();
+            return;
+        }
+        if (type == Rooms.TYPE_ROOM) {
+            joinOrLeaveRoom(sender, targetId, body);
+            return;
+        }
+
+        // --- Message Log ---
+        // Chat messages are kept so clients that connect later can catch up
+        long offset = -1;
+        if (messageLog != null && !Rooms.isRoom(targetId) && messageLog.accepts(type, body.buffer().remaining())) {
+            offset = messageLog.append(type, sender.id, targetId, body.buffer());
+        }
+
+        // --- Construct Forward Packet ---
+        // [Type (1 byte)] [SenderID (4 bytes)] [Length (4 bytes)] [Body]
+        // Only the header is new, the body goes out as received
+        Frame frame = new Frame(type, sender.id, body);
+
+        // --- Routing Logic ---
+        if (targetId == 0) {
+            broadcast(frame, sender);
+            broadcastToNodes(frame);
+        } else if (Rooms.isRoom(targetId)) {
+            sendToRoom(targetId, frame, sender);
+        } else if (clients.get(targetId) == null && sendToNode(targetId, frame)) {
+            // On another node, or waiting in a mailbox there
+        } else if (offset < 0 && Mailbox.accepts(type) && users.isUser(targetId)) {
+            // Not in the log, so it has to wait in the mailbox if the user is away
+            sendOrStore(targetId, frame);
+        } else {
+            sendTo(targetId, frame);
+        }
+        frame.release(); // Recipients' queues and mailboxes hold their own references
+        if (offset >= 0) {
+            sendLogOffset(offset, sender, targetId);
+        }
+
+        // --- Call Status Monitoring ---
+        // Intercept call messages to broadcast status updates to everyone
+        int id = sender.id;
+        if (type == 6) { // TYPE_CALL_REQUEST
+            systemEvents.publish(SystemEvents.Kind.CALL_REQUEST, id, targetId);
+        } else if (type == 7) { // TYPE_CALL_ACCEPT
+            systemEvents.publish(SystemEvents.Kind.CALL_ACCEPT, id, targetId);
+            sender.callPeer = targetId;
+            Connection caller = clients.get(targetId);
+            if (caller != null) {
+                caller.callPeer = id;
+            }
+            if (udpRelay != null) {
+                // Both ends of the call may now switch their audio to UDP
+                udpRelay.offerSession(sender, targetId);
+                if (caller != null) {
+                    udpRelay.offerSession(caller, id);
+                }
+            }
+        } else if (type == 8) { // TYPE_CALL_DECLINE
+            systemEvents.publish(SystemEvents.Kind.CALL_DECLINE, id, targetId);
+        } else if (type == 9) { // TYPE_CALL_END
+            mixer.leave(sender);
+            endCall(sender, targetId);
+            systemEvents.publish(SystemEvents.Kind.CALL_END, id, targetId);
+        } else if (type == 10) { // TYPE_GROUP_CALL_REQUEST
+            systemEvents.publish(SystemEvents.Kind.GROUP_CALL, id);
+        }
+    }
+
+    /**
+     * Delivers a frame a client of another node sent, as route() does for
+     * this node's clients. Frames from sender 0 are the other node's call
+     * notices and are not logged.
+     *
+     * @param body takes over the caller's reference
+     */
+    static void routeFromNode(byte type, int senderId, int targetId, BufferPool.PooledBuffer body) {
+        if (Rooms.isRoom(targetId) || type == UdpRelay.TYPE_MEDIA_SESSION) {
+            body.release(); // Rooms and media sessions belong to one node
+            return;
+        }
+        long offset = -1;
+        if (senderId != 0 && messageLog != null && messageLog.accepts(type, body.buffer().remaining())) {
+            offset = messageLog.append(type, senderId, targetId, body.buffer());
+        }
+
+        Frame frame = new Frame(type, senderId, body);
+        if (targetId == 0) {
+            for (Connection client : clients.values()) {
+                client.sendMessage(frame);
+            }
+        } else if (offset < 0 && Mailbox.accepts(type) && users.isUser(targetId)) {
+            sendOrStore(targetId, frame);
+        } else {
+            sendTo(targetId, frame);
+        }
+        frame.release();
+        if (offset >= 0) {
+            sendLogOffset(offset, null, targetId);
+        }
+
+        if (type == 7) { // TYPE_CALL_ACCEPT from the other end of the call
+            Connection caller = clients.get(targetId);
+            if (caller != null) {
+                caller.callPeer = senderId;
+                if (udpRelay != null) {
+                    udpRelay.offerSession(caller, senderId);
+                }
+            }
+        } else if (type == 9) { // TYPE_CALL_END
+            Connection client = clients.get(targetId);
+            if (client != null && client.callPeer == senderId) {
+                client.callPeer = 0;
+            }
+            if (client != null && udpRelay != null) {
+                udpRelay.endCall(client, senderId);
+            }
+        }
+    }
+
+    /**
+     * Clears the call between a client and its peer, on whichever ends are
+     * connected here. Calls are tracked for the metrics and to limit where
+     * UDP audio may go.
+     */
+    private static void endCall(Connection client, int peerId) {
+        client.callPeer = 0;
+        if (udpRelay != null) {
+            udpRelay.endCall(client, peerId);
+        }
+        Connection peer = peerId != 0 ? clients.get(peerId) : null;
+        if (peer != null) {
+            if (peer.callPeer == client.id) {
+                peer.callPeer = 0;
+            }
+            if (udpRelay != null) {
+                udpRelay.endCall(peer, client.id);
+            }
+        }
+    }
+
+    /**
+     * Sends a frame for every client to the other nodes of the cluster.
+     */
+    static void broadcastToNodes(Frame frame) {
+        if (cluster != null) {
+            cluster.broadcast(frame);
+        }
+    }
+
+    /**
+     * Sends a direct message for a client that is not connected here to
+     * the node it is on. Returns false if it is on no other node.
+     */
+    static boolean sendToNode(int targetId, Frame frame) {
+        return cluster != null && cluster.forward(frame, targetId);
+    }
+
+    /**
+     * Tells the sender and the recipients of a logged message its offset,
+     * [Offset (8)] from sender 0, so they can ask for what came after it
+     * when they reconnect. The sender is null for messages from another
+     * node.
      */
-    private static class ClientHandler implements Runnable {
-        private Socket socket;
-        private int id;
-        private DataInputStream in;
-        private DataOutputStream out;
+    private static void sendLogOffset(long offset, Connection sender, int targetId) {
+        byte[] body = new byte[8];
+        ByteBuffer.wrap(body).putLong(offset);
+        Frame marker = new Frame(MessageLog.TYPE_HISTORY, 0, BufferPool.wrap(body));
+        if (targetId == 0) {
+            for (Connection client : clients.values()) {
+                client.sendMessage(marker);
+            }
+        } else {
+            if (sender != null) {
+                sender.sendMessage(marker);
+            }
+            Connection target = clients.get(targetId);
+            if (target != null) {
+                target.sendMessage(marker);
+            }
+        }
+        marker.release();
+    }
+
+    /**
+     * Answers [After (8)] by queueing a replay of the client's conversations
+     * from the log, up to where its live messages begin.
+     */
+    private static void replayHistory(Connection client, BufferPool.PooledBuffer body) {
+        ByteBuffer request = body.buffer();
+        long after = request.remaining() == 8 ? request.getLong(request.position()) : -1;
+        body.release();
+        if (messageLog == null)
+            return;
+        MessageLog.Replay replay = messageLog.replay(client.id, after, client.logStart);
+        if (!client.sendMessage(replay)) {
+            replay.release();
+        }
+    }
+
+    /**
+     * Agrees on the protocol version with a client. The answer is the last
+     * frame the client gets in version 1; the writer switches once it has
+     * written it. Only the first hello counts, later ones are answered with
+     * version 1 and change nothing.
+     */
+    private static void hello(Connection client, BufferPool.PooledBuffer body) {
+        ByteBuffer request = body.buffer();
+        int requested = request.remaining() >= 1 ? request.get(request.position()) : Protocol.V1;
+        int requestedCapabilities = request.remaining() >= 5 ? request.getInt(request.position() + 1) : 0;
+        body.release();
 
-        public ClientHandler(Socket socket, int id) {
-            this.socket = socket;
+        int version = Protocol.V1;
+        int capabilities = 0;
+        if (!client.greeted) {
+            client.greeted = true;
+            version = Math.max(Protocol.V1, Math.min(requested, Protocol.MAX_VERSION));
+            capabilities = requestedCapabilities & Protocol.SUPPORTED_CAPABILITIES;
+            if (version < Protocol.V2) {
+                capabilities &= ~Protocol.CAP_COMPRESSION;
+            }
+            client.agreedVersion = version;
+            client.compression = (capabilities & Protocol.CAP_COMPRESSION) != 0;
+            client.heartbeat = (capabilities & Protocol.CAP_HEARTBEAT) != 0;
+            // The next header from the client is in the new version
+            client.decoder.setVersion(version);
+            if (client.compression) {
+                client.decoder.accept(Protocol.FLAG_COMPRESSED);
+            }
+        }
+
+        ByteBuffer answer = ByteBuffer.allocate(5);
+        answer.put((byte) version).putInt(capabilities);
+        Frame reply = new Frame(Protocol.TYPE_HELLO, 0, BufferPool.wrap(answer.array()));
+        client.sendMessage(reply);
+        reply.release();
+    }
+
+    /**
+     * Answers [Name (UTF-8)][0][Token (16)] by moving the connection to the
+     * user's permanent ID, which a new name takes from the guest ID, and
+     * delivering the user's mailbox. The reply is [UserID (4)] from sender 0, followed by the new token if the login
+     * claimed the name, or an empty body if the name is refused. A client
+     * logs in at most once, as the first thing it does.
+     */
+    private static void login(Connection client, BufferPool.PooledBuffer body) {
+        ByteBuffer request = body.buffer();
+        byte[] bytes = new byte[request.remaining()];
+        request.get(bytes);
+        body.release();
+        int nameLength = 0;
+        while (nameLength < bytes.length && bytes[nameLength] != 0) {
+            nameLength++;
+        }
+        String name = new String(bytes, 0, nameLength, StandardCharsets.UTF_8);
+        byte[] token = bytes.length - nameLength - 1 == UserRegistry.TOKEN_LENGTH
+                ? Arrays.copyOfRange(bytes, nameLength + 1, bytes.length) : null;
+
+        int userId = 0;
+        byte[] issued = null;
+        if (!client.loggedIn && UserRegistry.isValidName(name)) {
+            UserRegistry.Grant grant = users.login(name, token, client.id);
+            if (grant != null) {
+                userId = grant.id;
+                issued = grant.token;
+                if (issued == null && !users.isClaimed(userId)) {
+                    // Nothing to check the login against, so it only gets
+                    // the name while nobody else is using it
+                    issued = clients.containsKey(userId) ? null : users.claim(userId);
+                    if (issued == null) {
+                        userId = 0;
+                    }
+                }
+            }
+        }
+        if (userId == 0) {
+            EventLog.event(EventLog.Type.LOGIN_REFUSED, client.id, name);
+            Frame refused = new Frame(UserRegistry.TYPE_LOGIN, 0, BufferPool.wrap(new byte[0]));
+            client.sendMessage(refused);
+            refused.release();
+            return;
+        }
+
+        // Only reached with the user's token, so this is the user again,
+        // for example reconnecting before the old connection timed out
+        Connection previous = clients.get(userId);
+        if (previous != null && previous != client) {
+            EventLog.event(EventLog.Type.LOGIN_REPLACED, userId, "closing the older connection");
+            previous.disconnect();
+        }
+        // Calls and UDP sessions were set up under the guest ID
+        leaveMedia(client);
+        if (clients.remove(client.id, client) && cluster != null) {
+            cluster.offline(client.id);
+        }
+        int guestId = client.id;
+        client.id = userId;
+        client.loggedIn = true;
+
+        ByteBuffer answer = ByteBuffer.allocate(4 + (issued != null ? issued.length : 0)).putInt(userId);
+        if (issued != null) {
+            answer.put(issued);
+        }
+        Frame accepted = new Frame(UserRegistry.TYPE_LOGIN, 0, BufferPool.wrap(answer.array()));
+        client.sendMessage(accepted);
+        accepted.release();
+
+        synchronized (mailboxLock(userId)) {
+            // Messages logged for the user while it was away come by replay
+            client.logStart = messageLog != null ? messageLog.nextOffset() : 0;
+            clients.put(userId, client);
+            if (cluster != null) {
+                cluster.online(userId);
+            }
+            Mailbox mailbox = mailboxes.get(userId);
+            Mailbox.Delivery delivery = mailbox != null ? mailbox.deliver() : null;
+            if (delivery == null) {
+                if (mailbox != null) {
+                    mailboxes.remove(userId, mailbox);
+                }
+            } else if (!client.sendMessage(delivery)) {
+                delivery.release();
+            }
+        }
+        EventLog.event(EventLog.Type.LOGIN, userId, "guest " + guestId + " as " + name);
+    }
+
+    /**
+     * Joins the room named in the body when the target is 0, answering
+     * [RoomID (4)] [Name (UTF-8)] from sender 0, with RoomID 0 if refused.
+     * Leaves the room when the target is its ID, without an answer.
+     */
+    private static void joinOrLeaveRoom(Connection client, int targetId, BufferPool.PooledBuffer body) {
+        ByteBuffer request = body.buffer();
+        byte[] bytes = new byte[request.remaining()];
+        request.get(bytes);
+        body.release();
+
+        if (Rooms.isRoom(targetId)) {
+            rooms.leave(client, targetId);
+            return;
+        }
+        Rooms.Room room = targetId == 0 ? rooms.join(client, new String(bytes, StandardCharsets.UTF_8)) : null;
+        ByteBuffer answer = ByteBuffer.allocate(4 + bytes.length);
+        answer.putInt(room != null ? room.id : 0).put(bytes);
+        Frame reply = new Frame(Rooms.TYPE_ROOM, 0, BufferPool.wrap(answer.array()));
+        client.sendMessage(reply);
+        reply.release();
+    }
+
+    /**
+     * Picks the voice codec a client should send with: the first one in its
+     * list, [Codec IDs (1 each), preferred first], that the server can mix.
+     * The answer is [Codec ID (1)] from sender 0.
+     */
+    private static void negotiateCodec(Connection client, BufferPool.PooledBuffer body) {
+        ByteBuffer offered = body.buffer();
+        byte chosen = VoiceCodec.PCM;
+        while (offered.hasRemaining()) {
+            byte id = offered.get();
+            if (VoiceCodec.decoder(id) != null) {
+                chosen = id;
+                break;
+            }
+        }
+        body.release();
+
+        client.codec = chosen;
+        Frame frame = new Frame(TYPE_CODECS, 0, BufferPool.wrap(new byte[] { chosen }));
+        client.sendMessage(frame);
+        frame.release();
+    }
+
+    /**
+     * Starts relaying a frame too large to buffer, with the same routing as
+     * route(). The caller appends the body to the returned stream chunk by
+     * chunk as it arrives.
+     */
+    static StreamedFrame routeStream(Connection sender, byte type, int targetId, int length) {
+        Metrics.received(type, length);
+        StreamedFrame stream = new StreamedFrame(type, sender.id, length);
+        if (targetId == 0 || Rooms.isRoom(targetId)) {
+            for (Connection client : targetId == 0 ? clients.values() : rooms.audience(sender, targetId)) {
+                if (client != sender) {
+                    offerStream(stream, client);
+                }
+            }
+        } else {
+            Connection client = clients.get(targetId);
+            if (client != null) {
+                offerStream(stream, client);
+            }
+        }
+        return stream;
+    }
+
+    private static void offerStream(StreamedFrame stream, Connection client) {
+        StreamedFrame.Reader reader = stream.newReader(client);
+        if (!client.sendMessage(reader)) {
+            reader.release();
+        }
+    }
+
+    /**
+     * A connected client, independent of the I/O model serving it.
+     * Packets are queued here and written out by the connection's own writer.
+     */
+    abstract static class Connection {
+        // Frames gathered into a single write
+        private static final int MAX_BATCH = 64;
+        // Bytes after which a batch stops gathering, so a realtime frame
+        // queued during a write waits behind at most this much
+        private static final int MAX_BATCH_BYTES = 64 * 1024;
+
+        // Given on connect, replaced by the user's permanent ID on login
+        volatile int id;
+        // Set once the client has logged in (reader only)
+        boolean loggedIn;
+        // Set once the client has said hello (reader only)
+        boolean greeted;
+        final OutboundQueue outbound = newOutboundQueue();
+
+        // --- Protocol ---
+        // Headers from the client (reader only)
+        final Protocol.Decoder decoder = new Protocol.Decoder(Protocol.FLAG_PRIORITY);
+        // Headers to the client (writer only); switches version once the
+        // hello answer has been written
+        private final Protocol.Encoder encoder = new Protocol.Encoder();
+        // Version agreed in the hello, for the writer to switch to
+        volatile int agreedVersion = Protocol.V1;
+        // Text to the client may be compressed (capability agreed in the hello)
+        volatile boolean compression;
+
+        // --- Compression Metrics ---
+        static final LongAdder compressedIn = new LongAdder(); // Frames inflated from clients
+        static final LongAdder compressedOut = new LongAdder(); // Frames sent compressed
+        static final LongAdder compressionSaved = new LongAdder(); // Bytes those saved
+
+        // --- Gathering Write State (writer only) ---
+        private final ByteBuffer[] writeBuffers = new ByteBuffer[2 * MAX_BATCH];
+        // Per slot: the frame to release once written, or a stream chunk to
+        // report as written
+        private final Frame[] slotFrames = new Frame[2 * MAX_BATCH];
+        private final boolean[] slotChunks = new boolean[2 * MAX_BATCH];
+        // Per slot: room for a header encoded for this connection
+        private final ByteBuffer[] slotHeaders = new ByteBuffer[2 * MAX_BATCH];
+        private int writeOffset;
+        private int writeCount;
+        // Streamed frame being written, later frames wait until it is done,
+        // except realtime ones when it is sent in chunks
+        volatile StreamedFrame.Reader stream;
+        private boolean chunkedStream; // Each chunk is a frame of its own (writer only)
+        // Log replay or mailbox being written (writer only), later frames
+        // wait until it is done
+        private TransferFrame transfer;
+        // First log offset this client receives live
+        volatile long logStart;
+        // Group call input while this client is in the mix
+        volatile AudioMixer.Participant mixerInput;
+        // Voice codec agreed with the client, also used for the mix it hears
+        volatile byte codec = VoiceCodec.PCM;
+        // Other end of the 1:1 call the client is in, 0 if none
+        volatile int callPeer;
+
+        // --- Idle State ---
+        // IdleTimer.now() when bytes last arrived from the client
+        volatile long lastRead = IdleTimer.now();
+        // IdleTimer.now() when the current batch started or last made
+        // progress, 0 while there is nothing to write (writer only)
+        volatile long writeSince;
+        // The client answers pings (agreed in the hello)
+        volatile boolean heartbeat;
+        long lastPing; // Idle timer only
+        long idleDeadline; // Idle timer only
+        // Set once the client is out of the clients map
+        volatile boolean evicted;
+        volatile boolean removed;
+        // Rooms the client is in (reader only)
+        final List<Rooms.Room> rooms = new ArrayList<>();
+
+        Connection(int id) {
             this.id = id;
         }
 
+        /**
+         * Queues a frame for this client. Returns false if it was not queued.
+         */
+        boolean sendMessage(Frame frame) {
+            OutboundQueue.Result result = outbound.offer(frame);
+            if (result == OutboundQueue.Result.QUEUED) {
+                Metrics.queued(frame);
+                onQueued();
+                return true;
+            } else if (result == OutboundQueue.Result.OVERFLOW) {
+                EventLog.log(EventLog.Type.SLOW_CONSUMER, id, outbound.bytes(), "queue full, disconnecting", null);
+                disconnect();
+            }
+            return false;
+        }
+
+        /**
+         * Called after a packet has been queued so the writer can pick it up.
+         */
+        abstract void onQueued();
+
+        /**
+         * Closes the connection from any thread.
+         */
+        abstract void disconnect();
+
+        /**
+         * Returns true while part of the current batch is still unwritten.
+         */
+        boolean hasPendingWrite() {
+            return writeOffset < writeCount || transfer != null;
+        }
+
+        /**
+         * True when there is something for fillBatch() to pick up.
+         */
+        boolean hasWritableData() {
+            StreamedFrame.Reader current = stream;
+            if (current != null && !current.isFinished())
+                return current.hasChunk() || (chunkedStream && outbound.hasRealtime());
+            return !outbound.isEmpty();
+        }
+
+        /**
+         * True if the writer should wait up to the linger time for more
+         * frames before writing this one, so a burst of small frames goes
+         * out in one write. Realtime frames never wait.
+         */
+        boolean shouldLinger(Frame first) {
+            return coalesceLinger > 0 && !Protocol.isRealtime(first.type) && !(first instanceof TransferFrame)
+                    && !(first instanceof StreamedFrame.Reader) && stream == null;
+        }
+
+        /**
+         * True once enough is queued to fill a batch, or something is queued
+         * that should not wait, so lingering can stop.
+         */
+        boolean isBatchReady() {
+            return outbound.depth() >= MAX_BATCH || outbound.bytes() >= MAX_BATCH_BYTES || outbound.hasRealtime();
+        }
+
+        /**
+         * True while a stream is being sent in chunks, so the writer should
+         * not wait on the stream alone.
+         */
+        boolean isChunkedStream() {
+            return chunkedStream;
+        }
+
+        /**
+         * Starts a new batch with the given frame followed by whatever else is
+         * queued, up to MAX_BATCH frames or MAX_BATCH_BYTES. A streamed frame
+         * ends the batch and is followed by its body chunks as they arrive.
+         * Returns false if there was nothing to write.
+         */
+        boolean fillBatch(Frame first) {
+            writeOffset = 0;
+            writeCount = 0;
+            StreamedFrame.Reader current = stream;
+            if (current != null) {
+                if (!current.isFinished()) {
+                    if (chunkedStream) {
+                        fillRealtime();
+                    }
+                    fillStream(current);
+                    return writeCount > 0;
+                }
+                current.release();
+                stream = null;
+            }
+
+            Frame frame = first != null ? first : outbound.poll();
+            int batchBytes = 0;
+            while (frame != null) {
+                if (frame instanceof TransferFrame) {
+                    transfer = (TransferFrame) frame; // Sent once the batch is out
+                    break;
+                }
+                if (frame instanceof StreamedFrame.Reader) {
+                    StreamedFrame.Reader reader = (StreamedFrame.Reader) frame;
+                    stream = reader;
+                    chunkedStream = encoder.version() >= Protocol.V2;
+                    if (!chunkedStream) {
+                        addSlot(frame.header(), null, false);
+                    }
+                    fillStream(reader);
+                    break;
+                }
+                addFrame(frame);
+                batchBytes += frame.length();
+                if (writeCount + 2 > writeBuffers.length || batchBytes >= MAX_BATCH_BYTES)
+                    break;
+                frame = outbound.poll();
+            }
+            return writeCount > 0 || transfer != null;
+        }
+
+        /**
+         * Adds a frame's header, in this connection's protocol version, and
+         * its body.
+         */
+        private void addFrame(Frame frame) {
+            ByteBuffer compressed = null;
+            if (encoder.version() == Protocol.V1) {
+                addSlot(frame.header(), null, false);
+            } else if (compression && Protocol.isCompressible(frame.type, frame.bodyLength())
+                    && (compressed = frame.compressedBody()) != null) {
+                compressedOut.increment();
+                compressionSaved.add(frame.bodyLength() - compressed.remaining());
+                addSlot(encodeHeader(frame.type, Protocol.FLAG_COMPRESSED, frame.senderId, compressed.remaining()), null, false);
+            } else {
+                addSlot(encodeHeader(frame.type, 0, frame.senderId, frame.bodyLength()), null, false);
+            }
+            addSlot(compressed != null ? compressed : frame.body(), frame, false);
+            if (frame.type == Protocol.TYPE_HELLO && frame.senderId == 0) {
+                encoder.setVersion(agreedVersion); // The client reads the new version from here on
+            }
+        }
+
+        /**
+         * Adds the realtime frames that are waiting, leaving room for a
+         * chunk after them.
+         */
+        private void fillRealtime() {
+            Frame frame;
+            while (writeCount + 4 <= writeBuffers.length && (frame = outbound.pollRealtime()) != null) {
+                addFrame(frame);
+            }
+        }
+
+        private void fillStream(StreamedFrame.Reader reader) {
+            ByteBuffer chunk;
+            int slotsPerChunk = chunkedStream ? 2 : 1;
+            while (writeCount + slotsPerChunk <= writeBuffers.length && (chunk = reader.nextChunk()) != null) {
+                if (chunkedStream) {
+                    int flags = reader.remaining() > 0 ? Protocol.FLAG_CHUNKED : 0;
+                    addSlot(encodeHeader(reader.type, flags, reader.senderId, chunk.remaining()), null, false);
+                }
+                addSlot(chunk, null, true);
+            }
+        }
+
+        /**
+         * Encodes a header into the next slot's header buffer.
+         */
+        private ByteBuffer encodeHeader(byte type, int flags, int peer, int length) {
+            ByteBuffer header = slotHeaders[writeCount];
+            if (header == null) {
+                header = slotHeaders[writeCount] = ByteBuffer.allocate(Protocol.MAX_HEADER_SIZE);
+            }
+            header.clear();
+            encoder.encode(header, type, flags, peer, length);
+            header.flip();
+            return header;
+        }
+
+        private void addSlot(ByteBuffer buffer, Frame owner, boolean chunk) {
+            writeBuffers[writeCount] = buffer;
+            slotFrames[writeCount] = owner;
+            slotChunks[writeCount] = chunk;
+            writeCount++;
+        }
+
+        /**
+         * Writes as much of the current batch as the channel accepts with one
+         * gathering write, then any transfer that ends it. Returns true once
+         * the whole batch is out.
+         * Each frame is released as soon as its body has been written.
+         */
+        boolean writeBatch(GatheringByteChannel channel) throws IOException {
+            if (writeSince == 0) {
+                writeSince = IdleTimer.now();
+            }
+            if (writeOffset < writeCount) {
+                long start = System.nanoTime();
+                if (channel.write(writeBuffers, writeOffset, writeCount - writeOffset) > 0) {
+                    writeSince = IdleTimer.now();
+                }
+                Metrics.writeLatency.record(System.nanoTime() - start);
+            }
+            while (writeOffset < writeCount && !writeBuffers[writeOffset].hasRemaining()) {
+                if (slotFrames[writeOffset] != null) {
+                    slotFrames[writeOffset].release();
+                    slotFrames[writeOffset] = null;
+                }
+                if (slotChunks[writeOffset]) {
+                    slotChunks[writeOffset] = false;
+                    stream.chunkWritten();
+                }
+                writeBuffers[writeOffset++] = null;
+            }
+            if (writeOffset < writeCount)
+                return false;
+            if (transfer != null) {
+                if (!transfer.transferTo(channel, encoder))
+                    return false;
+                transfer.release();
+                transfer = null;
+            }
+            writeSince = 0;
+            return true;
+        }
+
+        /**
+         * Releases everything held for writing once the connection is gone:
+         * the rest of the batch and the place in any streamed frame.
+         */
+        void discardBatch() {
+            for (int i = writeOffset; i < writeCount; i++) {
+                if (slotFrames[i] != null) {
+                    slotFrames[i].release();
+                    slotFrames[i] = null;
+                }
+                slotChunks[i] = false;
+                writeBuffers[i] = null;
+            }
+            writeOffset = writeCount = 0;
+            if (transfer != null) {
+                transfer.release();
+                transfer = null;
+            }
+            leaveStream();
+        }
+
+        /**
+         * Gives up the place in the streamed frame being written, if any.
+         * Safe to call from any thread.
+         */
+        void leaveStream() {
+            StreamedFrame.Reader current = stream;
+            if (current != null) {
+                current.release();
+            }
+        }
+    }
+
+    /**
+     * Handles communication with a single client.
+     * One thread reads and routes frames, a second drains the outbound queue.
+     */
+    private static class ClientHandler extends Connection implements Runnable {
+        private static final long CHUNK_WAIT_MILLIS = 20; // One voice frame
+        private SocketChannel channel;
+        // Headers are parsed from here; bodies take what is left over first
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(8 * 1024);
+
+        public ClientHandler(SocketChannel channel, int id) {
+            super(id);
+            this.channel = channel;
+            readBuffer.flip(); // Empty
+        }
+
         @Override
         public void run() {
+            Server.startThread(this::writeLoop);
             try {
-                in = new DataInputStream(socket.getInputStream());
-                out = new DataOutputStream(socket.getOutputStream());
-
                 while (true) {
                     // --- Protocol Header ---
-                    // [Type (1 byte)] [TargetID (4 bytes)] [Length (4 bytes)]
-                    byte type = in.readByte();
-                    int targetId = in.readInt(); // 0 = Broadcast, >0 = Direct Message
-                    int length = in.readInt();
-
-                    if (length < 0)
-                        break; // Sanity check
-
-                    byte[] body = new byte[length];
-                    in.readFully(body);
-
-                    // --- Construct Forward Packet ---
-                    // [Type (1 byte)] [SenderID (4 bytes)] [Length (4 bytes)] [Body]
-                    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-                    DataOutputStream bufferOut = new DataOutputStream(buffer);
-                    bufferOut.writeByte(type);
-                    bufferOut.writeInt(id); // Sender ID is the current client
-                    bufferOut.writeInt(length);
-                    bufferOut.write(body);
-
-                    byte[] packet = buffer.toByteArray();
-
-                    // --- Routing Logic ---
-                    if (targetId == 0) {
-                        Server.broadcast(packet, this);
-                    } else {
-                        Server.sendTo(targetId, packet);
-                    }
+                    // [Type] [TargetID] [Length] in the version agreed with the client
+                    readHeader();
+                    if (!Server.isHeaderAllowed(this, decoder))
+                        break;
+                    byte type = decoder.type;
+                    int targetId = decoder.peer; // 0 = Broadcast, >0 = Direct Message
+                    int length = decoder.length;
+                    boolean compressed = (decoder.flags & Protocol.FLAG_COMPRESSED) != 0;
 
-                    // --- Call Status Monitoring ---
-                    // Intercept call messages to broadcast status updates to everyone
-                    String statusMsg = null;
-                    if (type == 6) { // TYPE_CALL_REQUEST
-                        statusMsg = "📞 User " + id + " is calling User " + targetId;
-                    } else if (type == 7) { // TYPE_CALL_ACCEPT
-                        statusMsg = "✓ User " + id + " accepted call from User " + targetId;
-                    } else if (type == 8) { // TYPE_CALL_DECLINE
-                        statusMsg = "✗ User " + id + " declined call from User " + targetId;
-                    } else if (type == 9) { // TYPE_CALL_END
-                        statusMsg = "Call ended between User " + id + " and User " + targetId;
-                    } else if (type == 10) { // TYPE_GROUP_CALL_REQUEST
-                        statusMsg = "📢 User " + id + " started a Group Call";
+                    if (Server.shouldStream(length)) {
+                        relayStreamed(type, targetId, length);
+                        continue;
                     }
 
-                    if (statusMsg != null) {
-                        Server.broadcastSystemMessage(statusMsg);
+                    BufferPool.PooledBuffer body = BufferPool.acquire(length);
+                    try {
+                        readFully(body.buffer());
+                    } catch (IOException e) {
+                        body.release();
+                        throw e;
                     }
+                    body.buffer().flip();
+                    if (compressed && (body = Server.decompress(this, type, body)) == null)
+                        break;
+
+                    Server.route(this, type, targetId, body);
                 }
             } catch (EOFException e) {
                 // Client disconnected normally
-            } catch (IOException e) {
-                // Connection error
+            } catch (ClosedChannelException e) {
+                // Closed here, by a disconnect or an eviction
+            } catch (IOException | InterruptedException e) {
+                EventLog.error(EventLog.Type.READ_FAILED, id, e);
             } finally {
-                try {
-                    socket.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+                disconnect();
+                outbound.close();
+                leaveStream(); // Wakes the writer if it is waiting on a stream
                 Server.removeClient(this);
             }
         }
 
-        public void sendMessage(byte[] data) {
+        /**
+         * Reads a large body chunk by chunk, forwarding each chunk as soon as
+         * it arrives and never holding more than the stream window.
+         */
+        private void relayStreamed(byte type, int targetId, int length) throws IOException, InterruptedException {
+            StreamedFrame stream = Server.routeStream(this, type, targetId, length);
+            int remaining = length;
             try {
-                synchronized (out) {
-                    out.write(data);
-                    out.flush();
+                while (remaining > 0) {
+                    if (!stream.awaitWindow(Server.streamStallTimeout())) {
+                        stream.disconnectLaggards();
+                        continue;
+                    }
+                    BufferPool.PooledBuffer chunk = BufferPool.acquire(Math.min(StreamedFrame.CHUNK_SIZE, remaining));
+                    try {
+                        readFully(chunk.buffer());
+                    } catch (IOException e) {
+                        chunk.release();
+                        throw e;
+                    }
+                    chunk.buffer().flip();
+                    remaining -= chunk.buffer().remaining();
+                    stream.append(chunk);
+                }
+            } finally {
+                if (remaining > 0) {
+                    stream.abort();
                 }
+            }
+        }
+
+        private void readHeader() throws IOException {
+            while (!decoder.readHeader(readBuffer)) {
+                readBuffer.clear();
+                if (channel.read(readBuffer) < 0)
+                    throw new EOFException();
+                lastRead = IdleTimer.now();
+                readBuffer.flip();
+            }
+        }
+
+        private void readFully(ByteBuffer buffer) throws IOException {
+            if (readBuffer.hasRemaining()) {
+                ByteBuffer buffered = readBuffer.duplicate();
+                buffered.limit(buffered.position() + Math.min(buffered.remaining(), buffer.remaining()));
+                buffer.put(buffered);
+                readBuffer.position(buffered.position());
+            }
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0)
+                    throw new EOFException();
+                lastRead = IdleTimer.now();
+            }
+        }
+
+        /**
+         * Writes queued frames, gathering everything that is waiting into one
+         * write so a burst goes out in as few system calls as possible.
+         */
+        private void writeLoop() {
+            try {
+                while (true) {
+                    StreamedFrame.Reader current = stream;
+                    if (current != null && !current.isFinished()) {
+                        if (isChunkedStream()) {
+                            current.awaitChunk(CHUNK_WAIT_MILLIS); // Look for realtime frames meanwhile
+                        } else {
+                            current.awaitChunk();
+                        }
+                        fillBatch(null);
+                    } else {
+                        Frame frame = outbound.take();
+                        if (frame == null)
+                            break;
+                        if (shouldLinger(frame)) {
+                            outbound.awaitBacklog(Connection.MAX_BATCH, Connection.MAX_BATCH_BYTES, Server.coalesceLinger());
+                        }
+                        fillBatch(frame);
+                    }
+                    while (hasPendingWrite()) {
+                        writeBatch(channel); // Blocking channel, keep going until the batch is out
+                    }
+                }
+            } catch (ClosedChannelException e) {
+                // Closed by the reader or a disconnect, nothing to report
+            } catch (IOException | InterruptedException e) {
+                // Closing the socket makes the reader clean up
+                writeFailureEvictions.increment();
+                Server.evict(this, EventLog.Type.WRITE_FAILED, e);
+            } finally {
+                discardBatch();
+            }
+        }
+
+        @Override
+        void onQueued() {
+            // The writer thread is woken by the queue itself
+        }
+
+        @Override
+        void disconnect() {
+            try {
+                channel.close();
             } catch (IOException e) {
-                e.printStackTrace();
+                EventLog.error(EventLog.Type.CLOSE_FAILED, id, e);
             }
         }
     }
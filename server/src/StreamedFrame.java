@@ -0,0 +1,353 @@
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A frame too large to buffer whole, relayed chunk by chunk as it arrives
+ * (cut-through forwarding). The header goes to every recipient straight
+ * away and each body chunk follows as soon as the sender has delivered it.
+ *
+ * At most WINDOW chunks are held at once. A chunk is released when the last
+ * recipient has written it, and the sender waits for a free slot before
+ * reading more, so server memory per stream stays constant no matter how
+ * large the attachment is.
+ *
+ * Recipients on protocol version 2 get each chunk as a frame of its own,
+ * flagged CHUNKED but for the last, instead of one header up front. Their
+ * writers can then send call audio and signalling between two chunks.
+ */
+final class StreamedFrame {
+    static final int CHUNK_SIZE = 64 * 1024;
+    static final int WINDOW = 8;
+
+    // Padding written to recipients if the sender disconnects mid-stream,
+    // so their framing stays intact
+    private static final ByteBuffer ZEROS = ByteBuffer.allocateDirect(CHUNK_SIZE).asReadOnlyBuffer();
+
+    final byte type;
+    final int senderId;
+    final int length;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final BufferPool.PooledBuffer[] chunks = new BufferPool.PooledBuffer[WINDOW];
+    private final int[] pendingReaders = new int[WINDOW];
+    private final List<Reader> readers = new ArrayList<>();
+    private int appended; // Chunks received from the sender
+    private int released; // Chunks every reader has written
+    private boolean aborted;
+    private Runnable windowListener;
+
+    StreamedFrame(byte type, int senderId, int length) {
+        this.type = type;
+        this.senderId = senderId;
+        this.length = length;
+    }
+
+    /**
+     * Creates the queue entry for one recipient. It counts as a reader from
+     * now on and must be released if it is not queued.
+     */
+    Reader newReader(Server.Connection connection) {
+        lock.lock();
+        try {
+            Reader reader = new Reader(connection);
+            readers.add(reader);
+            return reader;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // --- Sender Side ---
+
+    boolean hasWindow() {
+        lock.lock();
+        try {
+            return appended - released < WINDOW;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until another chunk may be appended. Returns false on timeout.
+     */
+    boolean awaitWindow(long timeoutMillis) throws InterruptedException {
+        lock.lock();
+        try {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (appended - released >= WINDOW) {
+                if (nanos <= 0)
+                    return false;
+                nanos = changed.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called whenever a window slot frees up, for senders that cannot block.
+     */
+    void setWindowListener(Runnable listener) {
+        lock.lock();
+        try {
+            windowListener = listener;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hands the next chunk to every reader, taking over the caller's
+     * reference. Senders must check for a free window slot before reading
+     * each chunk from their socket.
+     */
+    void append(BufferPool.PooledBuffer chunk) {
+        List<Reader> wake;
+        lock.lock();
+        try {
+            if (readers.isEmpty()) {
+                chunk.release(); // Nobody is listening
+                appended++;
+                released++;
+                return;
+            }
+            if (appended - released >= WINDOW) {
+                chunk.release();
+                throw new IllegalStateException("Stream window exceeded");
+            }
+            int slot = appended % WINDOW;
+            chunks[slot] = chunk;
+            pendingReaders[slot] = readers.size();
+            appended++;
+            changed.signalAll();
+            wake = new ArrayList<>(readers);
+        } finally {
+            lock.unlock();
+        }
+        for (Reader reader : wake) {
+            reader.connection.onQueued();
+        }
+    }
+
+    /**
+     * The sender went away. Readers pad the rest of the body with zeros.
+     */
+    void abort() {
+        List<Reader> wake;
+        lock.lock();
+        try {
+            aborted = true;
+            changed.signalAll();
+            wake = new ArrayList<>(readers);
+        } finally {
+            lock.unlock();
+        }
+        for (Reader reader : wake) {
+            reader.connection.onQueued();
+        }
+    }
+
+    /**
+     * Disconnects the readers still holding the oldest chunk, for when the
+     * window has been stuck longer than the stall timeout.
+     */
+    void disconnectLaggards() {
+        List<Reader> laggards = new ArrayList<>();
+        lock.lock();
+        try {
+            for (Reader reader : readers) {
+                if (reader.cursor == released)
+                    laggards.add(reader);
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Reader reader : laggards) {
+            EventLog.event(EventLog.Type.STALLED_STREAM, reader.connection.id, "disconnecting");
+            reader.connection.disconnect();
+        }
+    }
+
+    /**
+     * Must hold the lock. Counts one reader as done with the chunk at index.
+     */
+    private Runnable chunkDone(int index) {
+        int slot = index % WINDOW;
+        if (--pendingReaders[slot] > 0)
+            return null;
+        chunks[slot].release();
+        chunks[slot] = null;
+        released++;
+        changed.signalAll();
+        return windowListener;
+    }
+
+    /**
+     * One recipient's position in the stream. This is what sits in the
+     * recipient's outbound queue.
+     */
+    final class Reader extends Frame {
+        final Server.Connection connection;
+        private int cursor; // Next chunk this reader has yet to finish writing
+        private int next; // Next chunk to hand out
+        private long handedOut; // Body bytes handed out, chunks plus padding
+        private boolean detached;
+
+        private Reader(Server.Connection connection) {
+            super(StreamedFrame.this.type, StreamedFrame.this.senderId, length);
+            this.connection = connection;
+        }
+
+        @Override
+        int length() {
+            // Only the header sits in the queue, the body is bounded by the window
+            return HEADER_SIZE;
+        }
+
+        /**
+         * Returns a view of the next piece of body to write, or null if the
+         * sender has not delivered it yet.
+         */
+        ByteBuffer nextChunk() {
+            lock.lock();
+            try {
+                if (detached || handedOut == length)
+                    return null;
+                ByteBuffer view;
+                if (next < appended) {
+                    view = chunks[next % WINDOW].buffer().asReadOnlyBuffer();
+                } else if (aborted) {
+                    view = ZEROS.duplicate();
+                    view.limit((int) Math.min(CHUNK_SIZE, length - handedOut));
+                } else {
+                    return null;
+                }
+                next++;
+                handedOut += view.remaining();
+                return view;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * The writer finished the oldest piece it was handed.
+         */
+        void chunkWritten() {
+            Runnable listener = null;
+            lock.lock();
+            try {
+                if (detached)
+                    return;
+                if (cursor < appended)
+                    listener = chunkDone(cursor);
+                cursor++;
+            } finally {
+                lock.unlock();
+            }
+            if (listener != null)
+                listener.run();
+        }
+
+        boolean isFinished() {
+            lock.lock();
+            try {
+                return detached || (handedOut == length && cursor == next);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * True when nextChunk() would return something.
+         */
+        boolean hasChunk() {
+            lock.lock();
+            try {
+                return !detached && handedOut < length && (next < appended || aborted);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Blocks until nextChunk() has something or the reader is finished.
+         */
+        void awaitChunk() throws InterruptedException {
+            lock.lock();
+            try {
+                while (!detached && handedOut < length && next >= appended && !aborted) {
+                    changed.await();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Like awaitChunk(), but gives up after timeoutMillis, for writers
+         * that have realtime frames to look after meanwhile.
+         */
+        void awaitChunk(long timeoutMillis) throws InterruptedException {
+            lock.lock();
+            try {
+                long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+                while (!detached && handedOut < length && next >= appended && !aborted && nanos > 0) {
+                    nanos = changed.awaitNanos(nanos);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Body bytes not handed out by nextChunk() yet; 0 after the last
+         * piece.
+         */
+        long remaining() {
+            lock.lock();
+            try {
+                return length - handedOut;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        void retain() {
+            // The reader is created holding its place in the stream
+        }
+
+        /**
+         * Leaves the stream, giving up every chunk not yet written.
+         * Safe to call more than once.
+         */
+        @Override
+        void release() {
+            Runnable listener = null;
+            lock.lock();
+            try {
+                if (detached)
+                    return;
+                detached = true;
+                readers.remove(this);
+                for (int i = cursor; i < appended; i++) {
+                    Runnable l = chunkDone(i);
+                    if (l != null)
+                        listener = l;
+                }
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            if (listener != null)
+                listener.run();
+        }
+    }
+}
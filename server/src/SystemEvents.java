@@ -0,0 +1,135 @@
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * System Events
+ * Call status notices, broadcast to every client as text from sender ID 0
+ * ("User 3 is calling User 5").
+ *
+ * Each kind of notice is a template whose fixed text is encoded to UTF-8
+ * once, up front. An event only writes its user IDs as digits between the
+ * pieces, so no string is built or encoded per event, and the body is
+ * built once and shared by every recipient.
+ *
+ * In a cluster, notices also go to the other nodes' clients.
+ *
+ * Fan-out runs on a thread of its own, so the reader that routed the call
+ * signal goes straight back to its socket however many clients are
+ * connected. Notices keep their order. At most MAX_PENDING wait during a
+ * burst; more are dropped and counted, as they are only notices.
+ */
+final class SystemEvents {
+    private static final byte TYPE_TEXT = 1;
+    private static final int MAX_PENDING = 4096;
+
+    enum Kind {
+        CALL_REQUEST("📞 User ", " is calling User ", ""),
+        CALL_ACCEPT("✓ User ", " accepted call from User ", ""),
+        CALL_DECLINE("✗ User ", " declined call from User ", ""),
+        CALL_END("Call ended between User ", " and User ", ""),
+        GROUP_CALL("📢 User ", " started a Group Call");
+
+        private final byte[][] pieces; // Fixed text around the IDs, one more than there are IDs
+        private final int fixedLength;
+
+        Kind(String... pieces) {
+            this.pieces = new byte[pieces.length][];
+            int length = 0;
+            for (int i = 0; i < pieces.length; i++) {
+                this.pieces[i] = pieces[i].getBytes(StandardCharsets.UTF_8);
+                length += this.pieces[i].length;
+            }
+            this.fixedLength = length;
+        }
+
+        int ids() {
+            return pieces.length - 1;
+        }
+    }
+
+    // --- Metrics ---
+    static final LongAdder published = new LongAdder();
+    static final LongAdder dropped = new LongAdder(); // Fan-out backlog was full
+
+    private final ThreadPoolExecutor fanout = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(MAX_PENDING), task -> {
+                Thread thread = new Thread(task, "system-events");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * Queues a notice about one user, for kinds with a single ID.
+     */
+    void publish(Kind kind, int user) {
+        publish(kind, user, 0);
+    }
+
+    /**
+     * Queues a notice about a user and the user at the other end, for
+     * kinds with two IDs.
+     */
+    void publish(Kind kind, int user, int other) {
+        Frame frame = new Frame(TYPE_TEXT, 0, BufferPool.wrap(encode(kind, user, other)));
+        try {
+            fanout.execute(() -> {
+                try {
+                    for (Server.Connection client : Server.clients()) {
+                        client.sendMessage(frame);
+                    }
+                    Server.broadcastToNodes(frame);
+                } finally {
+                    frame.release();
+                }
+            });
+            published.increment();
+        } catch (RejectedExecutionException e) {
+            frame.release();
+            dropped.increment();
+        }
+    }
+
+    /**
+     * Fills the kind's template: its pieces with the IDs in between.
+     */
+    static byte[] encode(Kind kind, int user, int other) {
+        int length = kind.fixedLength + digits(user) + (kind.ids() > 1 ? digits(other) : 0);
+        byte[] body = new byte[length];
+        int position = 0;
+        for (int i = 0; i < kind.pieces.length; i++) {
+            byte[] piece = kind.pieces[i];
+            System.arraycopy(piece, 0, body, position, piece.length);
+            position += piece.length;
+            if (i < kind.ids()) {
+                position = putDecimal(body, position, i == 0 ? user : other);
+            }
+        }
+        return body;
+    }
+
+    private static int digits(long value) {
+        int digits = value < 0 ? 2 : 1;
+        for (long rest = Math.abs(value); rest >= 10; rest /= 10) {
+            digits++;
+        }
+        return digits;
+    }
+
+    private static int putDecimal(byte[] dst, int position, long value) {
+        int end = position + digits(value);
+        if (value < 0) {
+            dst[position] = '-';
+            value = -value;
+        }
+        int i = end;
+        do {
+            dst[--i] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        return end;
+    }
+}
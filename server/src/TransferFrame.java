@@ -0,0 +1,126 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An outbound queue entry whose bytes are not held in memory, such as a
+ * replay from the message log or a mailbox being delivered. The
+ * connection's writer sends it with transferTo() once the frames queued
+ * ahead of it are out, and holds back the frames behind it until it is
+ * done.
+ * Entries are created holding the only reference, which the queue takes
+ * over; release() stops the transfer and may be called more than once.
+ */
+abstract class TransferFrame extends Frame {
+    TransferFrame(byte type, int length) {
+        super(type, 0, length);
+    }
+
+    /**
+     * Bytes held in memory until the transfer is done, which is what the
+     * outbound queue counts against its limit.
+     */
+    @Override
+    abstract int length();
+
+    /**
+     * Sends as much as the channel takes, with headers from the
+     * connection's encoder. Returns true once everything has been written.
+     */
+    abstract boolean transferTo(WritableByteChannel target, Protocol.Encoder encoder) throws IOException;
+
+    @Override
+    void retain() {
+        // Created holding the only reference, which the queue takes over
+    }
+
+    @Override
+    abstract void release();
+
+    /**
+     * Sends a run of packets stored back to back in a file in the version 1
+     * format. For version 1 connections the run goes out in one transfer;
+     * for later versions each header is read back and re-encoded, and only
+     * the bodies are transferred. Keeps its place between calls, so a full
+     * socket can be retried.
+     */
+    static final class PacketCopier {
+        private FileChannel file;
+        private long position, end;
+        private long bodyRemaining; // Of the packet being copied, re-encoded runs only
+        private final ByteBuffer stored = ByteBuffer.allocate(Protocol.V1_HEADER_SIZE);
+        private final ByteBuffer header = ByteBuffer.allocate(Protocol.MAX_HEADER_SIZE);
+
+        PacketCopier() {
+            header.flip();
+        }
+
+        /**
+         * Starts on the packets between position and end.
+         */
+        void start(FileChannel file, long position, long end) {
+            this.file = file;
+            this.position = position;
+            this.end = end;
+            this.bodyRemaining = 0;
+            header.clear().flip();
+        }
+
+        boolean isDone() {
+            return position == end && bodyRemaining == 0 && !header.hasRemaining();
+        }
+
+        /**
+         * File position reached so far.
+         */
+        long position() {
+            return position;
+        }
+
+        /**
+         * Returns true once the whole run has been sent.
+         */
+        boolean copy(WritableByteChannel target, Protocol.Encoder encoder) throws IOException {
+            if (encoder.version() == Protocol.V1) {
+                while (position < end) {
+                    long n = file.transferTo(position, end - position, target);
+                    position += n;
+                    if (n == 0)
+                        return false; // Socket buffer is full
+                }
+                return true;
+            }
+            while (true) {
+                if (header.hasRemaining()) {
+                    target.write(header);
+                    if (header.hasRemaining())
+                        return false;
+                } else if (bodyRemaining > 0) {
+                    long n = file.transferTo(position, bodyRemaining, target);
+                    position += n;
+                    bodyRemaining -= n;
+                    if (bodyRemaining > 0)
+                        return false;
+                } else if (position < end) {
+                    stored.clear();
+                    while (stored.hasRemaining()) {
+                        if (file.read(stored, position + stored.position()) < 0)
+                            throw new IOException("Packet cut short in " + file);
+                    }
+                    stored.flip();
+                    byte type = stored.get();
+                    int peer = stored.getInt();
+                    int length = stored.getInt();
+                    header.clear();
+                    encoder.encode(header, type, 0, peer, length);
+                    header.flip();
+                    position += Protocol.V1_HEADER_SIZE;
+                    bodyRemaining = length;
+                } else {
+                    return true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,203 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * UDP Media Relay
+ * Optional datagram path for call audio (--udp-port). Over TCP a lost
+ * segment holds back everything behind it, so on a lossy link audio falls
+ * further and further behind. Over UDP a lost packet is only a gap, which
+ * the receiver's jitter buffer conceals.
+ *
+ * When a call is accepted both parties get a session token in a
+ * TYPE_MEDIA_SESSION frame and register their UDP address by sending it to
+ * this port:
+ *
+ * Client -> Server: [Token (8)] [TargetID (4)] [Seq (4)] [Codec (1)] [Audio]
+ *                   TargetID -1 only registers, and is answered with an
+ *                   empty packet so the client knows UDP gets through.
+ * Server -> Client: [SenderID (4)] [Seq (4)] [Codec (1)] [Audio]
+ *
+ * Audio for a client without a registered address goes over its TCP
+ * connection instead, as a TYPE_VOICE_STREAM frame with the same payload
+ * behind the SenderID.
+ * Audio for a client of another cluster node goes to that node the same
+ * way.
+ * Group call audio (TargetID 0) goes to the AudioMixer.
+ *
+ * A token only carries audio to the peer of the call it was issued for,
+ * or to the group call once its client has joined that over TCP. Other
+ * targets are dropped, as is everything after the call has ended.
+ */
+class UdpRelay implements Runnable {
+    static final byte TYPE_MEDIA_SESSION = 14;
+    private static final byte TYPE_VOICE_STREAM = 4;
+    private static final int REGISTER = -1;
+    private static final int MAX_DATAGRAM = 2048;
+
+    // --- Metrics ---
+    static final LongAdder relayed = new LongAdder(); // Datagrams sent on to a client
+    static final LongAdder rejected = new LongAdder(); // Unknown token, target not allowed or malformed
+
+    private final int port;
+    private final DatagramChannel channel;
+    private final Map<Long, Session> sessions = new ConcurrentHashMap<>(); // By token
+    private final Map<Integer, Session> clientSessions = new ConcurrentHashMap<>(); // By client ID
+
+    // Relay thread only
+    private final ByteBuffer in = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+    private final ByteBuffer out = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+
+    private static final class Session {
+        final long token;
+        final Server.Connection connection;
+        volatile SocketAddress address; // Learned from the client's first datagram
+        volatile int peerId; // Other end of the call, 0 when there is none
+
+        Session(long token, Server.Connection connection) {
+            this.token = token;
+            this.connection = connection;
+        }
+    }
+
+    UdpRelay(int port) throws IOException {
+        this.port = port;
+        this.channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(port));
+    }
+
+    /**
+     * Sends the client its session token for a call with {@code peerId},
+     * creating the session on first use.
+     */
+    void offerSession(Server.Connection connection, int peerId) {
+        Session session = clientSessions.computeIfAbsent(connection.id, id -> {
+            Session created = new Session(ThreadLocalRandom.current().nextLong(), connection);
+            sessions.put(created.token, created);
+            return created;
+        });
+        session.peerId = peerId;
+
+        // [Token (8)] [UDP Port (2)]
+        byte[] body = new byte[10];
+        ByteBuffer.wrap(body).putLong(session.token).putShort((short) port);
+        Frame frame = new Frame(TYPE_MEDIA_SESSION, 0, BufferPool.wrap(body));
+        connection.sendMessage(frame);
+        frame.release();
+    }
+
+    /**
+     * Ends the connection's session, unless its user ID has already passed
+     * to a newer connection that logged in as the same user.
+     */
+    void closeSession(Server.Connection connection) {
+        Session session = clientSessions.get(connection.id);
+        if (session != null && session.connection == connection && clientSessions.remove(connection.id, session)) {
+            sessions.remove(session.token);
+        }
+    }
+
+    /**
+     * Stops the client's audio to {@code peerId}, if that is its call.
+     */
+    void endCall(Server.Connection connection, int peerId) {
+        Session session = clientSessions.get(connection.id);
+        if (session != null && session.connection == connection && session.peerId == peerId) {
+            session.peerId = 0;
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                in.clear();
+                SocketAddress from = channel.receive(in);
+                in.flip();
+                handle(from);
+            } catch (IOException e) {
+                EventLog.error(EventLog.Type.UDP_SEND_FAILED, 0, e); // Keep relaying
+            }
+        }
+    }
+
+    private void handle(SocketAddress from) throws IOException {
+        if (in.remaining() < 16) {
+            rejected.increment();
+            return;
+        }
+        Session sender = sessions.get(in.getLong());
+        if (sender == null) {
+            rejected.increment();
+            return;
+        }
+        sender.address = from;
+        int targetId = in.getInt();
+
+        if (targetId == REGISTER) {
+            out.clear();
+            out.flip();
+            channel.send(out, from);
+            return;
+        }
+        if (targetId == 0) {
+            if (sender.connection.mixerInput == null) {
+                rejected.increment(); // Not in the group call
+                return;
+            }
+            Server.mixGroupAudio(sender.connection, in); // [Seq (4)] [Codec (1)] [Audio]
+            return;
+        }
+        if (targetId != sender.peerId) {
+            rejected.increment();
+            return;
+        }
+        Server.Connection client = Server.client(targetId);
+
+        // --- Forward Packet ---
+        // [SenderID (4)] [Seq (4)] [Codec (1)] [Audio]
+        out.clear();
+        out.putInt(sender.connection.id);
+        out.put(in);
+        out.flip();
+        if (client != null && sendDatagram(client, out))
+            return;
+
+        // Not registered, fall back to its TCP connection; on another node,
+        // over the cluster link to the node it is on
+        int senderId = out.getInt();
+        BufferPool.PooledBuffer body = BufferPool.acquire(out.remaining());
+        body.buffer().put(out).flip();
+        Frame frame = new Frame(TYPE_VOICE_STREAM, senderId, body);
+        if (client != null) {
+            client.sendMessage(frame);
+        } else {
+            Server.sendToNode(targetId, frame);
+        }
+        frame.release();
+    }
+
+    /**
+     * Sends the rest of {@code packet} to the client's registered address.
+     * Returns false, leaving the packet untouched, if the client has not
+     * registered. Safe to call from any thread.
+     */
+    boolean sendDatagram(Server.Connection client, ByteBuffer packet) {
+        Session session = clientSessions.get(client.id);
+        SocketAddress address = session != null ? session.address : null;
+        if (address == null)
+            return false;
+        try {
+            channel.send(packet, address);
+            relayed.increment();
+        } catch (IOException e) {
+            EventLog.error(EventLog.Type.UDP_SEND_FAILED, client.id, e); // Lost like any other datagram
+        }
+        return true;
+    }
+}
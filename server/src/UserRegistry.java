@@ -0,0 +1,341 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * User Registry
+ * Gives every user name a permanent user ID, so a client that logs in again
+ * gets the same ID back and messages addressed to it can wait for it.
+ *
+ * Clients that do not log in are guests and keep the ID they were given on
+ * connect. Guest and user IDs come from one counter and are never handed
+ * out twice, not even across restarts, so a message logged for an old ID can
+ * never reach someone else. The counter is saved in blocks of
+ * RESERVE_BLOCK: after a restart counting continues from the end of the
+ * last block, skipping what was left of it.
+ *
+ * The nodes of a cluster each keep their own registry and hand out IDs
+ * from their own partition, the IDs that leave the node's number when
+ * divided by the number of partitions. A name is registered on the node
+ * it logs in to.
+ *
+ * A name is registered and claimed together, by the first login that uses
+ * it: the user keeps the ID the connection had as a guest and gets a token
+ * that every later login for the name has to present. Only a hash of the
+ * token is saved. No more than REGISTRATIONS_PER_MINUTE new names are taken
+ * a minute, so a client cannot grow the file without limit. Names
+ * registered before tokens existed are unclaimed until their next login,
+ * which is only granted while the name is not online.
+ *
+ * User and token records are written and forced to disk by the
+ * registry-writer thread, so a login never waits for the disk; the
+ * registry in memory is updated at once. Reserve records are still
+ * written before any ID they cover is handed out.
+ *
+ * The registry file is append-only text, one record per line:
+ *   reserve <ID>        IDs below this may have been handed out
+ *   user <ID> <Name>    a registered user
+ *   token <ID> <Hash>   SHA-256 of the user's token, in hex
+ *
+ * Protocol (type 17, TYPE_LOGIN), sent by the client before anything else:
+ *   client -> server: [Name (UTF-8)][0][Token (16)]  the token is left out
+ *                                   (with the 0) for a name not claimed yet
+ *   server -> client: [UserID (4)]  the client's ID from now on, or an empty
+ *                                   body if the name was refused
+ *                     [Token (16)]  follows the ID when the login claimed
+ *                                   the name; the client keeps it for later
+ * A user who logs in with the token while already connected takes over,
+ * and the older connection is closed.
+ */
+final class UserRegistry {
+    static final byte TYPE_LOGIN = 17;
+    static final int MAX_NAME_LENGTH = 32; // Characters
+    static final int TOKEN_LENGTH = 16;
+    private static final int RESERVE_BLOCK = 1000;
+    private static final int REGISTRATIONS_PER_MINUTE = 60;
+    private static final long MINUTE_NANOS = 60_000_000_000L;
+
+    private final FileChannel file; // Written under fileLock
+    private final Object fileLock = new Object();
+    private StringBuilder pending = new StringBuilder(); // Records for the writer, guarded by this
+    private final Map<String, Integer> ids = new HashMap<>(); // Guarded by this
+    private final Map<Integer, String> names = new HashMap<>(); // Guarded by this
+    private final Map<Integer, byte[]> tokenHashes = new HashMap<>(); // Guarded by this
+    private final SecureRandom random = new SecureRandom();
+    private final int partition;
+    private final int partitions;
+    private int nextId = 1; // Guarded by this
+    private int reserved; // IDs below this are saved as used, guarded by this
+    private long windowStart = System.nanoTime(); // Of the registration window, guarded by this
+    private int registrations; // New names in the window, guarded by this
+
+    /**
+     * A granted login: the user ID, and the token if the login claimed the
+     * name.
+     */
+    static final class Grant {
+        final int id;
+        final byte[] token;
+
+        Grant(int id, byte[] token) {
+            this.id = id;
+            this.token = token;
+        }
+    }
+
+    /**
+     * Opens the registry file, creating it if needed, and reads the users
+     * registered so far. New IDs are taken from the given partition, out of
+     * {@code partitions}; a single server has one.
+     */
+    UserRegistry(File path, int partition, int partitions) throws IOException {
+        this.partition = partition;
+        this.partitions = partitions;
+        if (path.exists()) {
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(path), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split(" ", 3);
+                    if (fields[0].equals("reserve") && fields.length == 2) {
+                        nextId = Math.max(nextId, Integer.parseInt(fields[1]));
+                    } else if (fields[0].equals("user") && fields.length == 3) {
+                        int id = Integer.parseInt(fields[1]);
+                        ids.put(fields[2], id);
+                        names.put(id, fields[2]);
+                        nextId = Math.max(nextId, id + 1);
+                    } else if (fields[0].equals("token") && fields.length == 3) {
+                        tokenHashes.put(Integer.parseInt(fields[1]), fromHex(fields[2]));
+                    }
+                }
+            }
+        }
+        reserved = nextId;
+        file = FileChannel.open(path.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        Thread writer = new Thread(this::writeLoop, "registry-writer");
+        writer.setDaemon(true);
+        writer.start();
+        // Records logins made just before the server stops
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "registry-flush"));
+    }
+
+    /**
+     * Makes sure no ID up to and including {@code id} is handed out, for IDs
+     * found in data older than the registry.
+     */
+    void skipPast(int id) throws IOException {
+        int reserve;
+        synchronized (this) {
+            if (id < nextId)
+                return;
+            nextId = id + 1;
+            reserve = reserveBlock();
+        }
+        write("reserve " + reserve + "\n");
+    }
+
+    /**
+     * A fresh ID for a guest connection. If the next block cannot be saved
+     * the ID is still handed out, and may come round again after a restart.
+     * Called by the accept loop, which waits while a block is saved.
+     */
+    int nextId() {
+        int id;
+        int reserve = 0;
+        synchronized (this) {
+            int offset = Math.floorMod(nextId - partition, partitions);
+            if (offset != 0) {
+                nextId += partitions - offset;
+            }
+            if (nextId >= reserved) {
+                reserve = reserveBlock();
+            }
+            id = nextId++;
+        }
+        if (reserve != 0) {
+            try {
+                write("reserve " + reserve + "\n");
+            } catch (IOException e) {
+                EventLog.error(EventLog.Type.REGISTRY_WRITE_FAILED, 0, e);
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Logs a connection in under a name. A name seen for the first time is
+     * registered to {@code guestId}, the ID the connection already has, and
+     * claimed. Returns null if the name is claimed and the token does not
+     * match, or if too many names were registered in the last minute. An
+     * unclaimed name is granted whatever the token; see {@link #claim}.
+     */
+    synchronized Grant login(String name, byte[] token, int guestId) {
+        Integer id = ids.get(name);
+        if (id == null) {
+            long now = System.nanoTime();
+            if (now - windowStart >= MINUTE_NANOS) {
+                windowStart = now;
+                registrations = 0;
+            }
+            if (registrations == REGISTRATIONS_PER_MINUTE)
+                return null;
+            registrations++;
+            ids.put(name, guestId);
+            names.put(guestId, name);
+            queue("user " + guestId + " " + name);
+            return new Grant(guestId, issue(guestId));
+        }
+        byte[] expected = tokenHashes.get(id);
+        if (expected != null && (token == null || !MessageDigest.isEqual(expected, hash(token))))
+            return null;
+        return new Grant(id, null);
+    }
+
+    /**
+     * True once a token has been handed out for the user.
+     */
+    synchronized boolean isClaimed(int id) {
+        return tokenHashes.containsKey(id);
+    }
+
+    /**
+     * Hands out the token for an unclaimed user. Returns null if the user
+     * has been claimed in the meantime.
+     */
+    synchronized byte[] claim(int id) {
+        return tokenHashes.containsKey(id) ? null : issue(id);
+    }
+
+    /**
+     * True for IDs that belong to a registered user rather than a guest.
+     */
+    synchronized boolean isUser(int id) {
+        return names.containsKey(id);
+    }
+
+    synchronized int size() {
+        return names.size();
+    }
+
+    /**
+     * Names must be 1 to MAX_NAME_LENGTH characters with no control
+     * characters and no space at either end.
+     */
+    static boolean isValidName(String name) {
+        if (name.isEmpty() || name.length() > MAX_NAME_LENGTH || !name.trim().equals(name))
+            return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.isISOControl(name.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+
+    private static byte[] hash(byte[] token) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(token);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // Every JDK has SHA-256
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    /**
+     * Makes a token for the user and queues its hash to be saved. Holds
+     * the lock.
+     */
+    private byte[] issue(int id) {
+        byte[] token = new byte[TOKEN_LENGTH];
+        random.nextBytes(token);
+        byte[] hash = hash(token);
+        tokenHashes.put(id, hash);
+        queue("token " + id + " " + toHex(hash));
+        return token;
+    }
+
+    /**
+     * Moves the reserve to the end of the next block and returns it, to be
+     * written before the lock holder hands out an ID from the block.
+     */
+    private int reserveBlock() {
+        reserved = nextId + RESERVE_BLOCK * partitions; // RESERVE_BLOCK of this partition's IDs
+        return reserved;
+    }
+
+    /**
+     * Hands a record to the registry-writer thread. Holds the lock.
+     */
+    private void queue(String record) {
+        pending.append(record).append('\n');
+        notifyAll();
+    }
+
+    private void writeLoop() {
+        while (true) {
+            synchronized (this) {
+                while (pending.length() == 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            flush();
+        }
+    }
+
+    /**
+     * Writes every queued record with one force to disk.
+     */
+    private void flush() {
+        String batch;
+        synchronized (this) {
+            if (pending.length() == 0)
+                return;
+            batch = pending.toString();
+            pending = new StringBuilder();
+        }
+        try {
+            write(batch);
+        } catch (IOException e) {
+            EventLog.error(EventLog.Type.REGISTRY_WRITE_FAILED, 0, e);
+        }
+    }
+
+    /**
+     * Appends whole lines and forces them to disk.
+     */
+    private void write(String records) throws IOException {
+        ByteBuffer lines = ByteBuffer.wrap(records.getBytes(StandardCharsets.UTF_8));
+        synchronized (fileLock) {
+            while (lines.hasRemaining()) {
+                file.write(lines);
+            }
+            file.force(false);
+        }
+    }
+}